@@ -1,8 +1,25 @@
 package info.unterrainer.websocketserver;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.NetworkConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+
+import info.unterrainer.commons.jreutils.ShutdownHook;
 import info.unterrainer.oauthtokenmanager.OauthTokenManager;
 import io.javalin.Javalin;
 import io.javalin.websocket.WsExceptionHandler;
@@ -19,6 +36,25 @@ public class WebsocketServer {
 
 	private Javalin wss;
 	private boolean isOauthEnabled = false;
+	private WsExceptionHandler<Exception> exceptionHandler;
+
+	private final WsTimerWheel timer;
+	private final WsTimerWheel flushTimer;
+	private WsHeartbeat heartbeat;
+	private WsTokenCache tokenCache;
+	private WsAuthExecutor authExecutor;
+	private WsDispatcher dispatcher;
+	private WsMetricsRegistry metrics;
+	private WsCluster cluster;
+	private WsResumeConfig resumeConfig;
+	private WsQuarantineConfig quarantineConfig;
+	private WsAdmission admission;
+	private WsInboundLimitConfig inboundLimitConfig;
+	private WsDrainConfig drainConfig;
+	private WsPerformanceConfig performance;
+	private ServerConnector connector;
+	private WebSocketPolicy policy;
+	private final List<WsOauthHandlerBase> handlers = new CopyOnWriteArrayList<>();
 
 	public WebsocketServer() {
 		this("", (Javalin) null);
@@ -52,29 +88,62 @@ public class WebsocketServer {
 	/// This means, if you provide your own exception handler, it will be called first,
 	/// then the default one will be called, which just logs the exception.
 	public WebsocketServer(String name, Javalin server, WsExceptionHandler<Exception> exceptionHandler) {
+		this(name, server, null, exceptionHandler);
+	}
+
+	/// Creates its own Javalin instance with the given Jetty settings.
+	public WebsocketServer(String name, WsPerformanceConfig performance) {
+		this(name, performance, (WsExceptionHandler<Exception>) null);
+	}
+
+	public WebsocketServer(String name, WsPerformanceConfig performance,
+			WsExceptionHandler<Exception> exceptionHandler) {
+		this(name, null, performance, exceptionHandler);
+	}
+
+	public WebsocketServer(String name, WsPerformanceConfig performance, String keycloakHost,
+			String keycloakRealm) {
+		this(name, performance, keycloakHost, keycloakRealm, null);
+	}
+
+	public WebsocketServer(String name, WsPerformanceConfig performance, String keycloakHost, String keycloakRealm,
+			WsExceptionHandler<Exception> exceptionHandler) {
+		this(name, null, performance, exceptionHandler);
+		initOauth(keycloakHost, keycloakRealm);
+	}
+
+	private WebsocketServer(String name, Javalin server, WsPerformanceConfig performance,
+			WsExceptionHandler<Exception> exceptionHandler) {
 		this.name = name;
+		timer = new WsTimerWheel("ws-timer" + (name == null || name.isEmpty() ? "" : "-" + name));
+		flushTimer = new WsTimerWheel("ws-flush" + (name == null || name.isEmpty() ? "" : "-" + name), 1,
+				TimeUnit.MILLISECONDS, 256);
+		heartbeat = new WsHeartbeat(timer, 30, TimeUnit.SECONDS);
+		ShutdownHook.register(timer::stop);
+		ShutdownHook.register(flushTimer::stop);
 		try {
 			wss = server;
 			if (wss == null)
-				wss = Javalin.create();
+				wss = create(performance);
 
-			wss.wsException(Exception.class, (e, ctx) -> {
+			this.exceptionHandler = (e, ctx) -> {
 				log.error("(" + name + ") Uncaught websocket-exception in Websocket-Server: {}", e);
 				if (exceptionHandler != null) {
 			        exceptionHandler.handle(e, ctx);
 			    }
-			});
+			};
+			wss.wsException(Exception.class, this.exceptionHandler);
 		} catch (Exception e) {
 			log.error("(" + name + ") Error initializing Websocket-Server.", e);
 		}
 	}
 
 	public WebsocketServer(String keycloakHost, String keycloakRealm) {
-		this("", null, keycloakHost, keycloakRealm);
+		this("", (Javalin) null, keycloakHost, keycloakRealm);
 	}
 
 	public WebsocketServer(String name, String keycloakHost, String keycloakRealm) {
-		this(name, null, keycloakHost, keycloakRealm);
+		this(name, (Javalin) null, keycloakHost, keycloakRealm);
 	}
 
 	public WebsocketServer(Javalin server, String keycloakHost, String keycloakRealm) {
@@ -86,12 +155,12 @@ public class WebsocketServer {
 	}
 
 	public WebsocketServer(String keycloakHost, String keycloakRealm, WsExceptionHandler<Exception> exceptionHandler) {
-		this("", null, keycloakHost, keycloakRealm, exceptionHandler);
+		this("", (Javalin) null, keycloakHost, keycloakRealm, exceptionHandler);
 	}
 
 	public WebsocketServer(String name, String keycloakHost, String keycloakRealm,
 			WsExceptionHandler<Exception> exceptionHandler) {
-		this(name, null, keycloakHost, keycloakRealm, exceptionHandler);
+		this(name, (Javalin) null, keycloakHost, keycloakRealm, exceptionHandler);
 	}
 
 	public WebsocketServer(Javalin server, String keycloakHost, String keycloakRealm,
@@ -102,6 +171,10 @@ public class WebsocketServer {
 	public WebsocketServer(String name, Javalin server, String keycloakHost, String keycloakRealm,
 			WsExceptionHandler<Exception> exceptionHandler) {
 		this(name, server, exceptionHandler);
+		initOauth(keycloakHost, keycloakRealm);
+	}
+
+	private void initOauth(String keycloakHost, String keycloakRealm) {
 		if (keycloakHost == null || keycloakHost.isEmpty()) {
 			throw new IllegalArgumentException("(" + name + ") Keycloak host must not be null or empty.");
 		}
@@ -121,6 +194,84 @@ public class WebsocketServer {
 		}
 	}
 
+	private Javalin create(WsPerformanceConfig performance) {
+		if (performance == null)
+			return Javalin.create(config -> config.wsFactoryConfig(WsDeflateExtension::install));
+		this.performance = performance;
+		return Javalin.create(config -> {
+			config.server(() -> {
+				Server server = new Server(threadPool(performance));
+				connector = new ServerConnector(server, performance.getAcceptors(), performance.getSelectors());
+				connector.setIdleTimeout(performance.getIdleTimeoutMillis());
+				server.addConnector(connector);
+				return server;
+			});
+			config.wsFactoryConfig(factory -> {
+				WsDeflateExtension.install(factory);
+				policy = factory.getPolicy();
+				policy.setIdleTimeout(performance.getIdleTimeoutMillis());
+				policy.setMaxTextMessageSize(performance.getMaxTextMessageSize());
+				policy.setMaxBinaryMessageSize(performance.getMaxBinaryMessageSize());
+				policy.setInputBufferSize(performance.getInputBufferSize());
+			});
+		});
+	}
+
+	private ThreadPool threadPool(WsPerformanceConfig performance) {
+		String poolName = "ws-jetty" + (name == null || name.isEmpty() ? "" : "-" + name);
+		if (performance.isVirtualThreads())
+			return new WsVirtualThreadPool(poolName);
+		QueuedThreadPool pool = new QueuedThreadPool(performance.getMaxThreads(), performance.getMinThreads(),
+				performance.getThreadIdleTimeoutMillis());
+		pool.setName(poolName);
+		return pool;
+	}
+
+	public WsPerformanceConfig getPerformance() {
+		return performance;
+	}
+
+	/**
+	 * The settings the server actually runs with, as far as they can be read from
+	 * Jetty. Acceptors and selectors Jetty derives itself are known once the
+	 * server started.
+	 */
+	public Map<String, Object> getEffectiveSettings() {
+		Map<String, Object> settings = new LinkedHashMap<>();
+		Server server = wss.server() == null ? null : wss.server().server();
+		ThreadPool pool = server == null ? null : server.getThreadPool();
+		if (pool instanceof WsVirtualThreadPool)
+			settings.put("threads", "virtual");
+		else if (pool instanceof QueuedThreadPool) {
+			QueuedThreadPool queued = (QueuedThreadPool) pool;
+			settings.put("minThreads", queued.getMinThreads());
+			settings.put("maxThreads", queued.getMaxThreads());
+			settings.put("threadIdleTimeoutMillis", queued.getIdleTimeout());
+		} else if (pool != null)
+			settings.put("threads", pool.getClass().getSimpleName());
+		ServerConnector c = connector;
+		if (c == null && server != null && server.getConnectors() != null)
+			for (Connector candidate : server.getConnectors())
+				if (candidate instanceof ServerConnector) {
+					c = (ServerConnector) candidate;
+					break;
+				}
+		if (c != null) {
+			settings.put("acceptors", c.getAcceptors());
+			if (c.getSelectorManager() != null)
+				settings.put("selectors", c.getSelectorManager().getSelectorCount());
+			settings.put("connectionIdleTimeoutMillis", c.getIdleTimeout());
+		}
+		WebSocketPolicy p = policy;
+		if (p != null) {
+			settings.put("idleTimeoutMillis", p.getIdleTimeout());
+			settings.put("maxTextMessageSize", p.getMaxTextMessageSize());
+			settings.put("maxBinaryMessageSize", p.getMaxBinaryMessageSize());
+			settings.put("inputBufferSize", p.getInputBufferSize());
+		}
+		return settings;
+	}
+
 	/**
 	 * Starts the Websocket server on the specified port. Don't start this, if you
 	 * used this class as a decorator for an existing Javalin instance. Call the
@@ -130,22 +281,325 @@ public class WebsocketServer {
 	 * @return
 	 */
 	public WebsocketServer start(int port) {
+		if (connector != null) {
+			connector.setHost("0.0.0.0");
+			connector.setPort(port);
+		}
 		wss.start("0.0.0.0", port);
 		log.debug("(" + name + ") Websocket server started on port: {}", port);
+		if (performance != null)
+			log.info("({}) Effective performance settings: {}", name, getEffectiveSettings());
 		return this;
 	}
 	
+	/**
+	 * Stops the server, draining it first, if {@link #drainOnStop(WsDrainConfig)}
+	 * was set.
+	 */
 	public WebsocketServer stop() {
+		WsDrainConfig drain = drainConfig;
+		if (drain != null)
+			return stop(drain);
+		return stopNow();
+	}
+
+	/**
+	 * Takes the server out of service gracefully, see {@link WsDrainConfig}, and
+	 * stops it. Blocks until the close-handshakes of the sessions of the
+	 * OAuth-handlers completed or the deadline passed. Sessions of plain
+	 * {@link #ws(String, Consumer)}-endpoints aren't tracked and are dropped at
+	 * the end.
+	 */
+	public WebsocketServer stop(WsDrainConfig drain) {
+		long start = System.nanoTime();
+		long deadline = start + drain.getDeadlineNanos();
+		stopAccepting();
+		for (WsOauthHandlerBase handler : handlers)
+			handler.drain(drain);
+		try {
+			long flushDeadline = Math.min(deadline, start + drain.getFlushTimeoutNanos());
+			while (queuedMessages() > 0 && System.nanoTime() < flushDeadline)
+				Thread.sleep(10);
+
+			List<Session> sessions = new ArrayList<>();
+			for (WsOauthHandlerBase handler : handlers)
+				sessions.addAll(handler.getSessions());
+			Collections.shuffle(sessions);
+			int batches = (sessions.size() + drain.getBatchSize() - 1) / drain.getBatchSize();
+			long pause = batches <= 1 ? 0 : drain.getCloseWindowNanos() / (batches - 1);
+			log.info("({}) Draining [{}] sessions in [{}] batches.", name, sessions.size(), batches);
+			for (int i = 0; i < sessions.size(); i++) {
+				if (i > 0 && i % drain.getBatchSize() == 0) {
+					long wait = Math.min(pause, deadline - System.nanoTime());
+					if (wait <= 0)
+						break;
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				Session session = sessions.get(i);
+				if (session.isOpen())
+					session.close(1001, drain.closeReason(name));
+			}
+			// Stopping cuts off the close-frames still queued and the handshakes
+			// of the last batch; the handlers drop a session once it's closed.
+			while (trackedSessions() > 0 && System.nanoTime() < deadline)
+				Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("({}) Interrupted while draining. Stopping right away.", name);
+		}
+		return stopNow();
+	}
+
+	/**
+	 * Makes {@link #stop()} drain the server first.
+	 */
+	public WebsocketServer drainOnStop(WsDrainConfig drainConfig) {
+		this.drainConfig = drainConfig;
+		return this;
+	}
+
+	/**
+	 * Includes the handler in draining.
+	 */
+	void track(WsOauthHandlerBase handler) {
+		if (!handlers.contains(handler))
+			handlers.add(handler);
+	}
+
+	private int trackedSessions() {
+		int sum = 0;
+		for (WsOauthHandlerBase handler : handlers)
+			sum += handler.clients.size();
+		return sum;
+	}
+
+	private int queuedMessages() {
+		int sum = 0;
+		for (WsOauthHandlerBase handler : handlers)
+			sum += handler.getQueuedMessages();
+		return sum;
+	}
+
+	/**
+	 * Closes the listening sockets, keeping the established connections.
+	 */
+	private void stopAccepting() {
+		try {
+			Server server = wss.server() == null ? null : wss.server().server();
+			if (server == null || server.getConnectors() == null)
+				return;
+			for (Connector connector : server.getConnectors())
+				if (connector instanceof NetworkConnector)
+					((NetworkConnector) connector).close();
+		} catch (RuntimeException e) {
+			log.warn("({}) Error closing the connectors. Rejecting upgrades instead.", name, e);
+		}
+	}
+
+	private WebsocketServer stopNow() {
 		wss.stop();
+		if (cluster != null)
+			cluster.stop();
+		timer.stop();
+		flushTimer.stop();
+		if (authExecutor != null)
+			authExecutor.shutdown();
+		if (dispatcher != null)
+			dispatcher.shutdown();
 		log.debug("(" + name + ") Websocket server stopped.");
 		return this;
 	}
 
+	/**
+	 * Sets the interval all OAuth-handlers registered afterwards ping their
+	 * clients with. The pings of all handlers share one timer-thread.
+	 */
+	public WebsocketServer heartbeatInterval(long interval, TimeUnit unit) {
+		heartbeat = new WsHeartbeat(timer, interval, unit);
+		return this;
+	}
+
+	/**
+	 * Sets the cache of validated tokens shared by all OAuth-handlers registered
+	 * afterwards, e.g. {@code new WsTokenCache(10_000, 5, TimeUnit.MINUTES)}. A
+	 * cached token stays accepted until it expires or the time-to-live is up,
+	 * even if it was revoked meanwhile. Without a cache, which is the default,
+	 * every token is validated.
+	 */
+	public WebsocketServer tokenCache(WsTokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+		return this;
+	}
+
+	public WsTokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	/**
+	 * Validates tokens of all OAuth-handlers registered afterwards on the given
+	 * executor instead of the Jetty threads. The executor is shut down together
+	 * with this server.
+	 */
+	public WebsocketServer authExecutor(WsAuthExecutor authExecutor) {
+		this.authExecutor = authExecutor;
+		return this;
+	}
+
+	/**
+	 * Runs the callbacks of all OAuth-handlers registered afterwards on the given
+	 * dispatcher instead of the Jetty threads, e.g.
+	 * {@link WsDispatcher#virtualThreads()}. Callbacks of the same session stay
+	 * strictly ordered. The dispatcher is shut down together with this server.
+	 */
+	public WebsocketServer dispatcher(WsDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+		return this;
+	}
+
+	/**
+	 * Sets the registry all OAuth-handlers registered afterwards report to, e.g.
+	 * a {@link WsMetrics}. Without one, which is the default, nothing is
+	 * recorded.
+	 */
+	public WebsocketServer metrics(WsMetricsRegistry metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public WsMetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Serves the metrics in the Prometheus text-format on the given path of the
+	 * same Javalin instance. Requires {@link #metrics(WsMetricsRegistry)} to be
+	 * set to a {@link WsMetrics} first.
+	 */
+	public WebsocketServer metricsRoute(String path) {
+		if (!(metrics instanceof WsMetrics))
+			throw new IllegalStateException("(" + name + ") The metrics-route requires a WsMetrics registry.");
+		WsMetrics m = (WsMetrics) metrics;
+		wss.get(path, ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(m.scrape()));
+		return this;
+	}
+
+	/**
+	 * Joins the cluster formed by all servers using the same bus; see
+	 * {@link WsCluster}. Only affects OAuth-handlers registered afterwards.
+	 */
+	public WebsocketServer cluster(WsClusterBus bus) {
+		return cluster(bus, 256, 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Like {@link #cluster(WsClusterBus)}, publishing batches of at most maxBatch
+	 * messages, each waiting at most maxDelay.
+	 */
+	public WebsocketServer cluster(WsClusterBus bus, int maxBatch, long maxDelay, TimeUnit unit) {
+		if (cluster != null)
+			cluster.stop();
+		try {
+			cluster = new WsCluster(bus, flushTimer, maxBatch, maxDelay, unit).start();
+		} catch (Exception e) {
+			throw new IllegalStateException("(" + name + ") Error subscribing to the cluster-bus.", e);
+		}
+		log.debug("({}) Joined cluster as node [{}].", name, cluster.getNodeId());
+		return this;
+	}
+
+	public WsCluster getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Enforces the caps and connect-rates on all OAuth-handlers registered
+	 * afterwards; they share the global cap and rate.
+	 */
+	public WebsocketServer admission(WsAdmissionConfig admissionConfig) {
+		this.admission = admissionConfig == null ? null : new WsAdmission(admissionConfig);
+		return this;
+	}
+
+	public WsAdmission getAdmission() {
+		return admission;
+	}
+
+	/**
+	 * Limits what each client of the OAuth-handlers registered afterwards may
+	 * send per second.
+	 */
+	public WebsocketServer inboundLimits(WsInboundLimitConfig inboundLimitConfig) {
+		this.inboundLimitConfig = inboundLimitConfig;
+		return this;
+	}
+
+	/**
+	 * Sets the limits for clients connecting without a token of all
+	 * OAuth-handlers registered afterwards; the quarantine-deadline runs on the
+	 * timer shared with the heartbeats. Without limits, which is the default,
+	 * such clients stay until they send a token or disconnect.
+	 */
+	public WebsocketServer quarantine(WsQuarantineConfig quarantineConfig) {
+		this.quarantineConfig = quarantineConfig;
+		return this;
+	}
+
+	/**
+	 * Makes the sessions of all OAuth-handlers registered afterwards resumable,
+	 * see {@link WsResumeConfig}. Each handler keeps its own sessions.
+	 */
+	public WebsocketServer resumption(WsResumeConfig resumeConfig) {
+		this.resumeConfig = resumeConfig;
+		return this;
+	}
+
 	public WebsocketServer ws(String path, Consumer<WsHandler> ws) {
 		wss.ws(path, ws, new HashSet<>());
 		return this;
 	}
 
+	/**
+	 * Like {@link #ws(String, Consumer)}, but with its own permessage-deflate
+	 * settings.
+	 */
+	public WebsocketServer ws(String path, WsCompressionConfig compression, Consumer<WsHandler> ws) {
+		compression(path, compression);
+		return ws(path, ws);
+	}
+
+	/**
+	 * Like {@link #wsOauth(String, WsOauthHandlerBase)}, but with its own
+	 * permessage-deflate settings.
+	 */
+	public WebsocketServer wsOauth(String path, WsOauthHandlerBase handler, WsCompressionConfig compression) {
+		wsOauth(path, handler);
+		compression(path, compression);
+		return this;
+	}
+
+	/**
+	 * Like {@link #wsOauth(String, WsOauthHandlerBase)}, with the handler
+	 * decoding and encoding messages with the given codec, see
+	 * {@link WsOauthHandlerBase#decoded(io.javalin.websocket.WsContext)}.
+	 */
+	public WebsocketServer wsOauth(String path, WsOauthHandlerBase handler, WsCodec<?> codec) {
+		handler.setCodec(codec);
+		return wsOauth(path, handler);
+	}
+
+	/**
+	 * Applies the settings to every session of the endpoint when it connects.
+	 * Only works, if the {@link WsDeflateExtension} is installed, which is done
+	 * automatically unless you passed your own Javalin instance.
+	 */
+	private void compression(String path, WsCompressionConfig compression) {
+		wss.wsBefore(path, ws -> ws.onConnect(ctx -> {
+			if (!WsDeflateExtension.configure(ctx.session, compression) && log.isDebugEnabled())
+				log.debug("({}) No configurable permessage-deflate negotiated with [{}].", name,
+						ctx.session.getRemoteAddress());
+		}));
+	}
+
 	public WebsocketServer wsOauth(String path, WsOauthHandlerBase handler) {
 		if (!isOauthEnabled) {
 			throw new IllegalStateException(
@@ -153,12 +607,40 @@ public class WebsocketServer {
 		}
 
 		handler.setTokenHandler(tokenManager);
+		track(handler);
+		handler.setTokenCache(tokenCache);
+		handler.setHeartbeat(heartbeat);
+		handler.setAuthExecutor(authExecutor);
+		handler.setMetrics(metrics);
+		handler.setFlushTimer(flushTimer);
+		handler.setCluster(cluster);
+		handler.setTimer(timer);
+		if (resumeConfig != null)
+			handler.setResumeConfig(resumeConfig);
+		if (quarantineConfig != null)
+			handler.setQuarantineConfig(quarantineConfig);
+		if (admission != null)
+			handler.setAdmission(admission);
+		if (inboundLimitConfig != null)
+			handler.setInboundLimitConfig(inboundLimitConfig);
+		WsDispatcher d = dispatcher;
+		if (d == null) {
+			wss.ws(path, ws -> {
+				ws.onConnect(handler::onConnect);
+				ws.onMessage(handler::handleMessage);
+				ws.onBinaryMessage(handler::handleBinaryMessage);
+				ws.onClose(handler::onClose);
+				ws.onError(handler::onError);
+			});
+			return this;
+		}
+		WsDispatcher.ErrorHandler onError = exceptionHandler::handle;
 		wss.ws(path, ws -> {
-			ws.onConnect(handler::onConnect);
-			ws.onMessage(handler::onMsg);
-			ws.onBinaryMessage(handler::onBinaryMsg);
-			ws.onClose(handler::onClose);
-			ws.onError(handler::onError);
+			ws.onConnect(ctx -> d.dispatch(ctx, () -> handler.onConnect(ctx), onError, false));
+			ws.onMessage(ctx -> d.dispatch(ctx, () -> handler.handleMessage(ctx), onError, false));
+			ws.onBinaryMessage(ctx -> d.dispatch(ctx, () -> handler.handleBinaryMessage(ctx), onError, false));
+			ws.onClose(ctx -> d.dispatch(ctx, () -> handler.onClose(ctx), onError, true));
+			ws.onError(ctx -> d.dispatch(ctx, () -> handler.onError(ctx), onError, true));
 		});
 		return this;
 	}
@@ -0,0 +1,224 @@
+package info.unterrainer.websocketserver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Admission-control shared by the OAuth-handlers of a {@link WebsocketServer},
+ * see {@link WsAdmissionConfig}. Connection-caps and connect-rates are checked
+ * before the token is validated, so rejecting a session during a
+ * reconnect-storm costs a few atomic operations and a close-frame; tenant-caps
+ * right after.
+ * <p>
+ * An admitted session reserves its slots atomically, so concurrent upgrades
+ * can't overshoot the caps; the handler releases them when it removes the
+ * client. Sessions connected before the admission was set aren't counted.
+ */
+public class WsAdmission {
+
+	private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final WsAdmissionConfig config;
+	private final WsRateLimiter connectRate;
+	private final Map<InetAddress, WsRateLimiter> connectRateByIp = new ConcurrentHashMap<>();
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_INTERVAL_NANOS);
+	private final AtomicInteger connections = new AtomicInteger();
+	private final Map<WsOauthHandlerBase, AtomicInteger> connectionsByEndpoint = new ConcurrentHashMap<>();
+	private final Map<String, Integer> connectionsByTenant = new ConcurrentHashMap<>();
+	private final Map<Session, Reservation> reservations = new ConcurrentHashMap<>();
+
+	/**
+	 * The slots held by an admitted session.
+	 */
+	private static final class Reservation {
+		final AtomicInteger endpoint;
+		String tenantId;
+		boolean released;
+
+		Reservation(AtomicInteger endpoint) {
+			this.endpoint = endpoint;
+		}
+	}
+
+	public WsAdmission(WsAdmissionConfig config) {
+		this.config = config;
+		this.connectRate = config.getConnectRate() > 0
+				? new WsRateLimiter(config.getConnectRate(), config.getConnectBurst())
+				: null;
+	}
+
+	public WsAdmissionConfig getConfig() {
+		return config;
+	}
+
+	void register(WsOauthHandlerBase handler) {
+		connectionsByEndpoint.computeIfAbsent(handler, h -> new AtomicInteger());
+	}
+
+	/**
+	 * @return the admitted sessions of all registered handlers in any state
+	 */
+	public int connections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return the admitted sessions of the tenant on all registered handlers
+	 */
+	public int connectionsOf(String tenantId) {
+		Integer n = connectionsByTenant.get(tenantId);
+		return n == null ? 0 : n;
+	}
+
+	/**
+	 * Reserves a slot of the endpoint and the server and takes a token from the
+	 * connect-rates.
+	 *
+	 * @return null, if the session may connect, else why it may not
+	 */
+	String admit(WsOauthHandlerBase handler, Session session) {
+		AtomicInteger endpoint = connectionsByEndpoint.computeIfAbsent(handler, h -> new AtomicInteger());
+		if (!tryReserve(endpoint, config.getMaxConnectionsPerEndpoint()))
+			return "Endpoint full";
+		if (!tryReserve(connections, config.getMaxConnections())) {
+			endpoint.decrementAndGet();
+			return "Server full";
+		}
+		String rejected = acquireConnectRate(session);
+		if (rejected != null) {
+			connections.decrementAndGet();
+			endpoint.decrementAndGet();
+			return rejected;
+		}
+		Reservation previous = reservations.put(session, new Reservation(endpoint));
+		if (previous != null)
+			release(previous);
+		return null;
+	}
+
+	/**
+	 * Reserves a slot of the tenant for an admitted session.
+	 *
+	 * @return null, if the tenant may connect another session, else why not
+	 */
+	String admitTenant(Session session, String tenantId) {
+		Reservation r = reservations.get(session);
+		if (r == null)
+			// Released already or connected before the admission was set.
+			return null;
+		int max = config.getMaxConnectionsPerTenant();
+		synchronized (r) {
+			if (r.released || tenantId.equals(r.tenantId))
+				return null;
+			boolean[] reserved = new boolean[1];
+			connectionsByTenant.compute(tenantId, (t, n) -> {
+				int count = n == null ? 0 : n;
+				if (count >= max)
+					return n;
+				reserved[0] = true;
+				return count + 1;
+			});
+			if (!reserved[0])
+				return "Tenant connection limit reached";
+			if (r.tenantId != null)
+				releaseTenant(r.tenantId);
+			r.tenantId = tenantId;
+		}
+		return null;
+	}
+
+	/**
+	 * Gives the slots of the session back; does nothing if it holds none.
+	 */
+	void release(Session session) {
+		Reservation r = reservations.remove(session);
+		if (r != null)
+			release(r);
+	}
+
+	private void release(Reservation r) {
+		synchronized (r) {
+			if (r.released)
+				return;
+			r.released = true;
+			if (r.tenantId != null)
+				releaseTenant(r.tenantId);
+		}
+		r.endpoint.decrementAndGet();
+		connections.decrementAndGet();
+	}
+
+	private void releaseTenant(String tenantId) {
+		connectionsByTenant.computeIfPresent(tenantId, (t, n) -> n <= 1 ? null : n - 1);
+	}
+
+	private static boolean tryReserve(AtomicInteger counter, int max) {
+		if (counter.incrementAndGet() > max) {
+			counter.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return null, if the connect-rates had a token, else why not
+	 */
+	private String acquireConnectRate(Session session) {
+		long now = System.nanoTime();
+		// Per address first, so a single noisy client doesn't use up the global rate.
+		WsRateLimiter perIp = config.getConnectRatePerIp() > 0 ? limiterOf(session, now) : null;
+		if (perIp != null && !perIp.tryAcquire(1, now))
+			return "Connect rate exceeded";
+		if (connectRate != null && !connectRate.tryAcquire(1, now))
+			return "Server busy";
+		return null;
+	}
+
+	/**
+	 * @return the close-reason with a jittered retry-after hint in seconds
+	 */
+	String reason(String name, String why) {
+		long base = config.getRetryAfterSeconds();
+		return "(" + name + ") " + why + "; retry-after=" + (base + ThreadLocalRandom.current().nextLong(base + 1));
+	}
+
+	private WsRateLimiter limiterOf(Session session, long now) {
+		InetSocketAddress remote = session.getRemoteAddress();
+		InetAddress address = remote == null ? null : remote.getAddress();
+		if (address == null)
+			return null;
+		WsRateLimiter limiter = connectRateByIp.get(address);
+		if (limiter != null)
+			return limiter;
+		if (connectRateByIp.size() >= config.getMaxTrackedIps()) {
+			sweep(now);
+			if (connectRateByIp.size() >= config.getMaxTrackedIps())
+				return null;
+		}
+		return connectRateByIp.computeIfAbsent(address,
+				a -> new WsRateLimiter(config.getConnectRatePerIp(), config.getConnectBurstPerIp()));
+	}
+
+	/**
+	 * Forgets addresses whose bucket refilled completely, at most once per
+	 * second.
+	 */
+	private void sweep(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now))
+			return;
+		connectRateByIp.values().removeIf(limiter -> limiter.isIdle(now));
+	}
+
+	int trackedIps() {
+		return connectRateByIp.size();
+	}
+}
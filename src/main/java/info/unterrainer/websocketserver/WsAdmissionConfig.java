@@ -0,0 +1,150 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps and connect-rates enforced by {@link WsAdmission}. Everything is
+ * unlimited by default.
+ */
+public class WsAdmissionConfig {
+
+	private int maxConnections = Integer.MAX_VALUE;
+	private int maxConnectionsPerEndpoint = Integer.MAX_VALUE;
+	private int maxConnectionsPerTenant = Integer.MAX_VALUE;
+	private double connectRate;
+	private int connectBurst;
+	private double connectRatePerIp;
+	private int connectBurstPerIp;
+	private int maxTrackedIps = 100_000;
+	private int closeCode = 1013;
+	private long retryAfterSeconds = 5;
+
+	public static WsAdmissionConfig defaults() {
+		return new WsAdmissionConfig();
+	}
+
+	/**
+	 * Sessions of all endpoints of a server together, counting quarantined and
+	 * pending ones as well.
+	 */
+	public WsAdmissionConfig maxConnections(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be at least 1.");
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	public WsAdmissionConfig maxConnectionsPerEndpoint(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be at least 1.");
+		this.maxConnectionsPerEndpoint = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Sessions of a tenant on all endpoints of a server. Checked once the token
+	 * was validated.
+	 */
+	public WsAdmissionConfig maxConnectionsPerTenant(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections must be at least 1.");
+		this.maxConnectionsPerTenant = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Upgrades per second accepted from all clients together.
+	 */
+	public WsAdmissionConfig connectRate(double perSecond, int burst) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("perSecond must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1.");
+		this.connectRate = perSecond;
+		this.connectBurst = burst;
+		return this;
+	}
+
+	/**
+	 * Upgrades per second accepted from a single remote address.
+	 */
+	public WsAdmissionConfig connectRatePerIp(double perSecond, int burst) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("perSecond must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1.");
+		this.connectRatePerIp = perSecond;
+		this.connectBurstPerIp = burst;
+		return this;
+	}
+
+	/**
+	 * The number of remote addresses rate-limited individually. Beyond that, new
+	 * addresses are only subject to the global rate.
+	 */
+	public WsAdmissionConfig maxTrackedIps(int maxTrackedIps) {
+		if (maxTrackedIps < 1)
+			throw new IllegalArgumentException("maxTrackedIps must be at least 1.");
+		this.maxTrackedIps = maxTrackedIps;
+		return this;
+	}
+
+	/**
+	 * The close-code rejected sessions get and the base of the retry-after hint
+	 * in the reason. The hint is jittered up to twice that, so rejected clients
+	 * don't come back all at once.
+	 */
+	public WsAdmissionConfig rejectWith(int closeCode, long retryAfter, TimeUnit unit) {
+		if (retryAfter < 0)
+			throw new IllegalArgumentException("retryAfter must not be negative.");
+		this.closeCode = closeCode;
+		this.retryAfterSeconds = Math.max(1, unit.toSeconds(retryAfter));
+		return this;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMaxConnectionsPerEndpoint() {
+		return maxConnectionsPerEndpoint;
+	}
+
+	public int getMaxConnectionsPerTenant() {
+		return maxConnectionsPerTenant;
+	}
+
+	/**
+	 * @return 0, if unlimited
+	 */
+	public double getConnectRate() {
+		return connectRate;
+	}
+
+	public int getConnectBurst() {
+		return connectBurst;
+	}
+
+	/**
+	 * @return 0, if unlimited
+	 */
+	public double getConnectRatePerIp() {
+		return connectRatePerIp;
+	}
+
+	public int getConnectBurstPerIp() {
+		return connectBurstPerIp;
+	}
+
+	public int getMaxTrackedIps() {
+		return maxTrackedIps;
+	}
+
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
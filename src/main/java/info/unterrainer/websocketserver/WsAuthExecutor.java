@@ -0,0 +1,105 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs token-validation off the Jetty threads.
+ * <p>
+ * The number of outstanding validations (queued and running) is capped. Once
+ * the cap is reached, {@link #submit(Runnable)} refuses new work immediately,
+ * so a connect-storm gets shed instead of piling up.
+ */
+public class WsAuthExecutor {
+
+	private final ExecutorService executor;
+	private final int maxQueueDepth;
+	private final int maxEarlyFrames;
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * @param executor       runs the validations
+	 * @param maxQueueDepth  maximum number of queued and running validations
+	 * @param maxEarlyFrames maximum number of frames buffered per session while
+	 *                       its validation is running; further frames close the
+	 *                       session. 0 rejects every early frame.
+	 */
+	public WsAuthExecutor(ExecutorService executor, int maxQueueDepth, int maxEarlyFrames) {
+		if (maxQueueDepth < 1)
+			throw new IllegalArgumentException("maxQueueDepth must be at least 1.");
+		if (maxEarlyFrames < 0)
+			throw new IllegalArgumentException("maxEarlyFrames must not be negative.");
+		this.executor = executor;
+		this.maxQueueDepth = maxQueueDepth;
+		this.maxEarlyFrames = maxEarlyFrames;
+	}
+
+	/**
+	 * Validates on a fixed pool of platform threads.
+	 */
+	public static WsAuthExecutor threads(int threads, int maxQueueDepth, int maxEarlyFrames) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "ws-auth-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+		return new WsAuthExecutor(Executors.newFixedThreadPool(threads, factory), maxQueueDepth, maxEarlyFrames);
+	}
+
+	/**
+	 * Validates every token on its own virtual thread. Concurrency is limited by
+	 * the queue-depth only.
+	 */
+	public static WsAuthExecutor virtualThreads(int maxQueueDepth, int maxEarlyFrames) {
+		return new WsAuthExecutor(
+				Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ws-auth-", 0).factory()), maxQueueDepth,
+				maxEarlyFrames);
+	}
+
+	/**
+	 * @return false, if the task was refused because the queue is full or the
+	 *         executor was shut down
+	 */
+	public boolean submit(Runnable task) {
+		if (outstanding.incrementAndGet() > maxQueueDepth) {
+			outstanding.decrementAndGet();
+			return false;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					outstanding.decrementAndGet();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			outstanding.decrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of queued and running validations
+	 */
+	public int getQueueDepth() {
+		return outstanding.get();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public int getMaxEarlyFrames() {
+		return maxEarlyFrames;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,67 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescing of small outbound messages of a session, see
+ * {@link WsOauthHandlerBase#setBatchConfig(WsBatchConfig)}.
+ * <p>
+ * Messages arriving while a write is in flight are always sent together once
+ * it completes. With a delay, the first message on an idle session waits up to
+ * that long for company, unless the byte-budget is reached first. With an
+ * {@link WsBatchEnvelope} a batch becomes one frame and every message it accepts
+ * is wrapped, even when sent on its own; without one the frames of a batch are
+ * handed to Jetty together and leave in a single gathered write.
+ */
+public class WsBatchConfig {
+
+	private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+	private int maxBytes = 16 * 1024;
+	private WsBatchEnvelope envelope;
+
+	public static WsBatchConfig defaults() {
+		return new WsBatchConfig();
+	}
+
+	/**
+	 * How long the first message on an idle session may wait for others; 0 only
+	 * coalesces messages queued behind a write in flight.
+	 */
+	public WsBatchConfig maxDelay(long delay, TimeUnit unit) {
+		if (delay < 0)
+			throw new IllegalArgumentException("delay must not be negative.");
+		this.maxDelayNanos = unit.toNanos(delay);
+		return this;
+	}
+
+	/**
+	 * The payload-bytes of a batch. A single larger message is sent on its own.
+	 */
+	public WsBatchConfig maxBytes(int maxBytes) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes must be at least 1.");
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Combines a batch to one frame, e.g. {@link WsBatchEnvelope#JSON_ARRAY}.
+	 * Null sends the frames unchanged in one gathered write.
+	 */
+	public WsBatchConfig envelope(WsBatchEnvelope envelope) {
+		this.envelope = envelope;
+		return this;
+	}
+
+	public long getMaxDelayNanos() {
+		return maxDelayNanos;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public WsBatchEnvelope getEnvelope() {
+		return envelope;
+	}
+}
@@ -0,0 +1,57 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Combines a batch of outbound messages to a single one. The client has to
+ * know the envelope to take the batch apart again. Every message the envelope
+ * accepts is wrapped, a batch of one as well, so a frame either always is a
+ * batch or never is and the client counts the messages of a frame, e.g. for
+ * the sequence-numbers of a {@link WsResumeConfig}.
+ */
+@FunctionalInterface
+public interface WsBatchEnvelope {
+
+	/**
+	 * Joins text-messages, each being a JSON-value, to a JSON-array. Works on
+	 * the encoded payloads, so nothing is decoded or re-encoded.
+	 * <p>
+	 * Every text-frame is an array holding one or more messages, a message
+	 * being an array itself included: {@code [1]}, {@code [[1,2]]} or
+	 * {@code [{"a":1},2]}. Binary frames aren't touched and carry a single
+	 * message each.
+	 */
+	WsBatchEnvelope JSON_ARRAY = new WsBatchEnvelope() {
+		@Override
+		public WsPreparedMessage wrap(List<WsPreparedMessage> messages) {
+			int size = messages.size() + 1;
+			for (WsPreparedMessage m : messages)
+				size += m.size();
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			buffer.put((byte) '[');
+			for (int i = 0; i < messages.size(); i++) {
+				if (i > 0)
+					buffer.put((byte) ',');
+				buffer.put(messages.get(i).getPayload());
+			}
+			buffer.put((byte) ']');
+			buffer.flip();
+			return WsPreparedMessage.utf8(buffer);
+		}
+	};
+
+	/**
+	 * @param messages one or more messages, all accepted by
+	 *                 {@link #accepts(WsPreparedMessage)}
+	 */
+	WsPreparedMessage wrap(List<WsPreparedMessage> messages);
+
+	/**
+	 * Messages not accepted end the current batch and are sent on their own,
+	 * unwrapped.
+	 */
+	default boolean accepts(WsPreparedMessage message) {
+		return message.isText();
+	}
+}
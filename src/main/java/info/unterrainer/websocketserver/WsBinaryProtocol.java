@@ -0,0 +1,188 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact framing for endpoints sending many small, fixed-shape records, as
+ * an alternative to JSON text-frames. A binary frame carries one or more
+ * records, each being
+ *
+ * <pre>
+ * varint length | varint type | fields as laid out by the {@link WsBinarySchema} of the type
+ * </pre>
+ *
+ * where the length covers type and fields. Records of types the receiver
+ * doesn't know are skipped, so new types can be rolled out before all peers
+ * understand them.
+ * <p>
+ * Use it as the codec of a handler to get the records of a frame from
+ * {@link WsOauthHandlerBase#decoded}, or call
+ * {@link #read(ByteBuffer, RecordHandler)} from
+ * {@link WsHandlerBase#onBinaryMsg(io.javalin.websocket.WsBinaryMessageContext, ByteBuffer)}
+ * to skip the list as well. Register all types before the protocol is used.
+ */
+public class WsBinaryProtocol implements WsCodec<List<Object>> {
+
+	public static final int MAX_TYPE = 1023;
+
+	public interface RecordHandler {
+		void onRecord(int type, Object record) throws Exception;
+	}
+
+	private final WsBinarySchema<?>[] schemas = new WsBinarySchema<?>[MAX_TYPE + 1];
+	private final Map<Class<?>, Integer> types = new ConcurrentHashMap<>();
+	private int maxRecordSize = 64 * 1024;
+
+	public <T> WsBinaryProtocol register(int type, Class<T> recordClass, WsBinarySchema<T> schema) {
+		if (type < 0 || type > MAX_TYPE)
+			throw new IllegalArgumentException("type must be between 0 and " + MAX_TYPE + ".");
+		if (recordClass == null || schema == null)
+			throw new IllegalArgumentException("recordClass and schema must not be null.");
+		if (schemas[type] != null)
+			throw new IllegalArgumentException("type [" + type + "] is already registered.");
+		if (types.putIfAbsent(recordClass, type) != null)
+			throw new IllegalArgumentException("[" + recordClass.getName() + "] is already registered.");
+		schemas[type] = schema;
+		return this;
+	}
+
+	/**
+	 * Records longer than this are rejected when reading.
+	 */
+	public WsBinaryProtocol maxRecordSize(int bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("maxRecordSize must be positive.");
+		this.maxRecordSize = bytes;
+		return this;
+	}
+
+	public int getMaxRecordSize() {
+		return maxRecordSize;
+	}
+
+	/**
+	 * @return the type the class was registered with
+	 * @throws IllegalArgumentException if it wasn't
+	 */
+	public int typeOf(Class<?> recordClass) {
+		Integer type = types.get(recordClass);
+		if (type == null)
+			throw new IllegalArgumentException("[" + recordClass.getName() + "] isn't registered.");
+		return type;
+	}
+
+	/**
+	 * @return the bytes the record takes in a frame, including its prefixes
+	 */
+	public int size(Object record) {
+		int type = typeOf(record.getClass());
+		int body = WsVarint.size(type) + schema(type).size(record);
+		return WsVarint.size(body) + body;
+	}
+
+	/**
+	 * Appends the record with its prefixes to the buffer.
+	 */
+	public void write(Object record, ByteBuffer out) {
+		int type = typeOf(record.getClass());
+		WsBinarySchema<Object> schema = schema(type);
+		WsVarint.write(out, WsVarint.size(type) + schema.size(record));
+		WsVarint.write(out, type);
+		schema.write(record, out);
+	}
+
+	/**
+	 * @return a binary frame holding all records
+	 */
+	@Override
+	public WsPreparedMessage encode(List<Object> records) {
+		int size = 0;
+		for (Object record : records)
+			size += size(record);
+		ByteBuffer frame = ByteBuffer.allocate(size);
+		for (Object record : records)
+			write(record, frame);
+		frame.flip();
+		return WsPreparedMessage.binary(frame);
+	}
+
+	/**
+	 * @return a binary frame holding the record
+	 */
+	public WsPreparedMessage encodeRecord(Object record) {
+		ByteBuffer frame = ByteBuffer.allocate(size(record));
+		write(record, frame);
+		frame.flip();
+		return WsPreparedMessage.binary(frame);
+	}
+
+	/**
+	 * Reads the records from the position to the limit of the buffer, passing
+	 * each one to the handler as soon as it's read. Consumes the buffer.
+	 *
+	 * @return the number of records read, including skipped ones of unknown
+	 *         types
+	 * @throws IllegalArgumentException if the frame is malformed
+	 */
+	public int read(ByteBuffer frame, RecordHandler handler) throws Exception {
+		int count = 0;
+		int limit = frame.limit();
+		while (frame.position() < limit) {
+			int length;
+			try {
+				length = WsVarint.readInt(frame);
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Malformed record-length at record [" + count + "].", e);
+			}
+			if (length > maxRecordSize || length > frame.remaining())
+				throw new IllegalArgumentException("Record [" + count + "] of [" + length + "] bytes exceeds "
+						+ (length > maxRecordSize ? "the maximum record size." : "the frame."));
+			int end = frame.position() + length;
+			int type;
+			Object record = null;
+			frame.limit(end);
+			try {
+				type = WsVarint.readInt(frame);
+				WsBinarySchema<?> schema = type <= MAX_TYPE ? schemas[type] : null;
+				if (schema != null) {
+					record = schema.read(frame);
+					if (frame.position() != end)
+						throw new IllegalArgumentException("Record [" + count + "] of type [" + type + "] has ["
+								+ (end - frame.position()) + "] bytes left over.");
+				}
+			} catch (IllegalArgumentException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Malformed record [" + count + "].", e);
+			} finally {
+				frame.limit(limit);
+			}
+			frame.position(end);
+			count++;
+			if (record != null)
+				handler.onRecord(type, record);
+		}
+		return count;
+	}
+
+	@Override
+	public List<Object> decode(ByteBuffer data) throws Exception {
+		List<Object> records = new ArrayList<>();
+		read(data.duplicate(), (type, record) -> records.add(record));
+		return records;
+	}
+
+	@Override
+	public List<Object> decode(String text) {
+		throw new IllegalArgumentException("The binary protocol is carried over binary messages only.");
+	}
+
+	@SuppressWarnings("unchecked")
+	private WsBinarySchema<Object> schema(int type) {
+		return (WsBinarySchema<Object>) schemas[type];
+	}
+}
@@ -0,0 +1,355 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The fixed field-layout of a record type for the {@link WsBinaryProtocol}.
+ * Fields are written in declaration order straight from the getters into the
+ * buffer and read straight into the setters; there are no field-tags, no
+ * boxing of numbers and no intermediate tree.
+ *
+ * <pre>
+ * WsBinarySchema&lt;Sample&gt; schema = WsBinarySchema.of(Sample::new)
+ * 		.varLong(Sample::getTimestamp, Sample::setTimestamp)
+ * 		.varInt(Sample::getSensor, Sample::setSensor)
+ * 		.float64(Sample::getValue, Sample::setValue)
+ * 		.build();
+ * </pre>
+ *
+ * @param <T> the record type
+ */
+public final class WsBinarySchema<T> {
+
+	private interface Field<R> {
+		int size(R record);
+
+		void write(R record, ByteBuffer out);
+
+		void read(R record, ByteBuffer in);
+	}
+
+	private final Supplier<T> factory;
+	private final Field<T>[] fields;
+	private final int fixedSize;
+
+	private WsBinarySchema(Supplier<T> factory, Field<T>[] fields, int fixedSize) {
+		this.factory = factory;
+		this.fields = fields;
+		this.fixedSize = fixedSize;
+	}
+
+	/**
+	 * @param factory creates the records {@link #read(ByteBuffer)} fills
+	 */
+	public static <T> Builder<T> of(Supplier<T> factory) {
+		if (factory == null)
+			throw new IllegalArgumentException("factory must not be null.");
+		return new Builder<>(factory);
+	}
+
+	/**
+	 * @return the exact number of bytes {@link #write(Object, ByteBuffer)} takes
+	 */
+	public int size(T record) {
+		if (fixedSize >= 0)
+			return fixedSize;
+		int size = 0;
+		for (Field<T> field : fields)
+			size += field.size(record);
+		return size;
+	}
+
+	public void write(T record, ByteBuffer out) {
+		for (Field<T> field : fields)
+			field.write(record, out);
+	}
+
+	public T read(ByteBuffer in) {
+		T record = factory.get();
+		read(in, record);
+		return record;
+	}
+
+	/**
+	 * Reads into an existing record, e.g. one reused for every message.
+	 */
+	public void read(ByteBuffer in, T record) {
+		for (Field<T> field : fields)
+			field.read(record, in);
+	}
+
+	public static class Builder<T> {
+
+		private final Supplier<T> factory;
+		private final List<Field<T>> fields = new ArrayList<>();
+		private boolean fixed = true;
+		private int fixedSize;
+
+		private Builder(Supplier<T> factory) {
+			this.factory = factory;
+		}
+
+		/**
+		 * A zig-zag varint; 1 byte for values from -64 to 63.
+		 */
+		public Builder<T> varInt(ToIntFunction<T> getter, ObjIntConsumer<T> setter) {
+			return variable(new Field<T>() {
+				@Override
+				public int size(T record) {
+					return WsVarint.size(WsVarint.zigZag(getter.applyAsInt(record)));
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					WsVarint.writeSigned(out, getter.applyAsInt(record));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, (int) WsVarint.readSigned(in));
+				}
+			});
+		}
+
+		/**
+		 * A zig-zag varint, e.g. for timestamps or counters.
+		 */
+		public Builder<T> varLong(ToLongFunction<T> getter, ObjLongConsumer<T> setter) {
+			return variable(new Field<T>() {
+				@Override
+				public int size(T record) {
+					return WsVarint.size(WsVarint.zigZag(getter.applyAsLong(record)));
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					WsVarint.writeSigned(out, getter.applyAsLong(record));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, WsVarint.readSigned(in));
+				}
+			});
+		}
+
+		public Builder<T> int64(ToLongFunction<T> getter, ObjLongConsumer<T> setter) {
+			return fixed(8, new Field<T>() {
+				@Override
+				public int size(T record) {
+					return 8;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					out.putLong(getter.applyAsLong(record));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, in.getLong());
+				}
+			});
+		}
+
+		public Builder<T> float32(ToDoubleFunction<T> getter, ObjDoubleConsumer<T> setter) {
+			return fixed(4, new Field<T>() {
+				@Override
+				public int size(T record) {
+					return 4;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					out.putFloat((float) getter.applyAsDouble(record));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, in.getFloat());
+				}
+			});
+		}
+
+		public Builder<T> float64(ToDoubleFunction<T> getter, ObjDoubleConsumer<T> setter) {
+			return fixed(8, new Field<T>() {
+				@Override
+				public int size(T record) {
+					return 8;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					out.putDouble(getter.applyAsDouble(record));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, in.getDouble());
+				}
+			});
+		}
+
+		/**
+		 * One byte, 0 or 1.
+		 */
+		public Builder<T> bool(Predicate<T> getter, BiConsumer<T, Boolean> setter) {
+			return fixed(1, new Field<T>() {
+				@Override
+				public int size(T record) {
+					return 1;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					out.put((byte) (getter.test(record) ? 1 : 0));
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					setter.accept(record, in.get() != 0);
+				}
+			});
+		}
+
+		/**
+		 * UTF-8, prefixed with its length as a varint; null is written as "".
+		 */
+		public Builder<T> string(Function<T, String> getter, BiConsumer<T, String> setter) {
+			return variable(new Field<T>() {
+				@Override
+				public int size(T record) {
+					int length = utf8Length(getter.apply(record));
+					return WsVarint.size(length) + length;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					String s = getter.apply(record);
+					WsVarint.write(out, utf8Length(s));
+					if (s != null)
+						writeUtf8(s, out);
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					int length = WsVarint.readInt(in);
+					if (length > in.remaining())
+						throw new IllegalArgumentException("String exceeds the record.");
+					String s;
+					if (in.hasArray()) {
+						s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+						in.position(in.position() + length);
+					} else {
+						byte[] bytes = new byte[length];
+						in.get(bytes);
+						s = new String(bytes, StandardCharsets.UTF_8);
+					}
+					setter.accept(record, s);
+				}
+			});
+		}
+
+		/**
+		 * Raw bytes, prefixed with their length as a varint; null is written as
+		 * empty.
+		 */
+		public Builder<T> bytes(Function<T, byte[]> getter, BiConsumer<T, byte[]> setter) {
+			return variable(new Field<T>() {
+				@Override
+				public int size(T record) {
+					byte[] b = getter.apply(record);
+					int length = b == null ? 0 : b.length;
+					return WsVarint.size(length) + length;
+				}
+
+				@Override
+				public void write(T record, ByteBuffer out) {
+					byte[] b = getter.apply(record);
+					WsVarint.write(out, b == null ? 0 : b.length);
+					if (b != null)
+						out.put(b);
+				}
+
+				@Override
+				public void read(T record, ByteBuffer in) {
+					int length = WsVarint.readInt(in);
+					if (length > in.remaining())
+						throw new IllegalArgumentException("Bytes exceed the record.");
+					byte[] b = new byte[length];
+					in.get(b);
+					setter.accept(record, b);
+				}
+			});
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public WsBinarySchema<T> build() {
+			return new WsBinarySchema<>(factory, fields.toArray(new Field[0]), fixed ? fixedSize : -1);
+		}
+
+		private Builder<T> fixed(int size, Field<T> field) {
+			fixedSize += size;
+			fields.add(field);
+			return this;
+		}
+
+		private Builder<T> variable(Field<T> field) {
+			fixed = false;
+			fields.add(field);
+			return this;
+		}
+	}
+
+	static int utf8Length(String s) {
+		if (s == null)
+			return 0;
+		int length = s.length();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x800) {
+				length += 2;
+				if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+					i++;
+			} else if (c >= 0x80)
+				length++;
+		}
+		return length;
+	}
+
+	private static void writeUtf8(String s, ByteBuffer out) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				out.put((byte) c);
+			else if (c < 0x800) {
+				out.put((byte) (0xC0 | c >> 6));
+				out.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | cp >> 18));
+				out.put((byte) (0x80 | cp >> 12 & 0x3F));
+				out.put((byte) (0x80 | cp >> 6 & 0x3F));
+				out.put((byte) (0x80 | cp & 0x3F));
+			} else {
+				out.put((byte) (0xE0 | c >> 12));
+				out.put((byte) (0x80 | c >> 6 & 0x3F));
+				out.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+}
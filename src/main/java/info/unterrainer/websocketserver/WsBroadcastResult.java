@@ -0,0 +1,88 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Delivery counts of a single broadcast.
+ * <p>
+ * {@code attempted}, {@code skipped} and {@code failed} are final once the
+ * broadcast-call returns. Writes complete asynchronously, so {@code delivered}
+ * and {@code writeFailed} keep counting up afterwards.
+ * <p>
+ * The result doubles as the write-callback for all recipients, so a broadcast
+ * doesn't allocate per recipient.
+ */
+public class WsBroadcastResult implements WriteCallback {
+
+	private int attempted;
+	private int skipped;
+	private int failed;
+	private final AtomicInteger delivered = new AtomicInteger();
+	private final AtomicInteger writeFailed = new AtomicInteger();
+
+	void attempted() {
+		attempted++;
+	}
+
+	void skipped() {
+		skipped++;
+	}
+
+	void failed() {
+		failed++;
+	}
+
+	@Override
+	public void writeSuccess() {
+		delivered.incrementAndGet();
+	}
+
+	@Override
+	public void writeFailed(Throwable x) {
+		writeFailed.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of open sessions the message was enqueued for
+	 */
+	public int getAttempted() {
+		return attempted;
+	}
+
+	/**
+	 * @return the number of matching sessions that were already closed
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the number of sessions whose outbound queue rejected the message
+	 */
+	public int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of writes that completed successfully so far
+	 */
+	public int getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the number of messages that could not be written so far, including
+	 *         those dropped by an outbound queue
+	 */
+	public int getWriteFailed() {
+		return writeFailed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WsBroadcastResult[attempted=" + attempted + ", skipped=" + skipped + ", failed=" + failed
+				+ ", delivered=" + delivered.get() + ", writeFailed=" + writeFailed.get() + "]";
+	}
+}
@@ -0,0 +1,241 @@
+package info.unterrainer.websocketserver;
+
+import java.util.ArrayDeque;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+
+import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsContext;
+
+/**
+ * A single client-session as tracked by the {@link WsClientRegistry}.
+ */
+public class WsClient {
+
+	public enum State {
+		QUARANTINED,
+		/**
+		 * A token was received and is being validated asynchronously.
+		 */
+		PENDING,
+		CONNECTED
+	}
+
+	enum EarlyFrame {
+		NOT_PENDING,
+		BUFFERED,
+		REJECTED
+	}
+
+	final WsConnectContext ctx;
+	volatile State state;
+	private volatile WsOutboundQueue outbound;
+	private WsHeartbeat.Registration heartbeat;
+	private WsTimerWheel.Timeout deadline;
+	private int textLimit = -1;
+	private int binaryLimit = -1;
+	private boolean released;
+	private ArrayDeque<WsContext> earlyFrames;
+	/**
+	 * The resumable session this client is attached to, if resumption is on.
+	 */
+	volatile WsResumeSession resume;
+	private volatile WsInboundLimiter inbound;
+	private WsContext decodedFrame;
+	private Object decoded;
+	private Exception decodeError;
+
+	WsClient(WsConnectContext ctx, State state) {
+		this.ctx = ctx;
+		this.state = state;
+	}
+
+	public WsConnectContext getContext() {
+		return ctx;
+	}
+
+	public Session getSession() {
+		return ctx.session;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the outbound queue of this session, created on first use
+	 */
+	WsOutboundQueue outbound(WsOutboundQueueConfig config) {
+		return outbound(config, null, null);
+	}
+
+	/**
+	 * @param batch applied to the queue before it's published, if it's created
+	 *              by this call; may be null
+	 */
+	WsOutboundQueue outbound(WsOutboundQueueConfig config, WsBatchConfig batch, WsTimerWheel timer) {
+		WsOutboundQueue q = outbound;
+		if (q != null)
+			return q;
+		synchronized (this) {
+			if (outbound == null) {
+				q = new WsOutboundQueue(ctx.session, config);
+				if (batch != null)
+					q.batch(batch, timer);
+				if (released)
+					q.close();
+				outbound = q;
+			}
+			return outbound;
+		}
+	}
+
+	/**
+	 * @return the outbound queue of this session or null, if nothing was sent yet
+	 */
+	WsOutboundQueue outbound() {
+		return outbound;
+	}
+
+	/**
+	 * Keeps a frame that arrived while the client is still
+	 * {@link State#PENDING}.
+	 */
+	synchronized EarlyFrame bufferIfPending(WsContext frame, int maxFrames) {
+		if (state != State.PENDING)
+			return EarlyFrame.NOT_PENDING;
+		if (earlyFrames == null)
+			earlyFrames = new ArrayDeque<>();
+		if (earlyFrames.size() >= maxFrames)
+			return EarlyFrame.REJECTED;
+		earlyFrames.addLast(frame);
+		return EarlyFrame.BUFFERED;
+	}
+
+	/**
+	 * Returns the next buffered frame. Once there are none left, the client is
+	 * moved from {@link State#PENDING} to {@link State#CONNECTED} while still
+	 * holding the lock, so frames arriving meanwhile are buffered and handed out
+	 * here as well, keeping their order.
+	 *
+	 * @return the next frame or null, if the client is connected now
+	 */
+	synchronized WsContext nextEarlyFrame(WsClientRegistry registry) {
+		WsContext frame = earlyFrames == null ? null : earlyFrames.pollFirst();
+		if (frame == null) {
+			earlyFrames = null;
+			registry.transition(ctx.session, State.PENDING, State.CONNECTED);
+		}
+		return frame;
+	}
+
+	synchronized void heartbeat(WsHeartbeat.Registration registration) {
+		if (heartbeat != null)
+			heartbeat.cancel();
+		heartbeat = registration;
+		if (released)
+			registration.cancel();
+	}
+
+	/**
+	 * @return the inbound-limiter of this session, created on first use
+	 */
+	WsInboundLimiter inbound(WsInboundLimitConfig config) {
+		WsInboundLimiter l = inbound;
+		if (l == null)
+			inbound = l = new WsInboundLimiter(config);
+		return l;
+	}
+
+	/**
+	 * @return the frame decoded by the codec; only the first call per frame
+	 *         decodes, the following ones get the same result or exception
+	 */
+	synchronized Object decode(WsContext frame, WsCodec<?> codec) throws Exception {
+		if (decodedFrame != frame) {
+			decodedFrame = frame;
+			decoded = null;
+			decodeError = null;
+			try {
+				decoded = WsOauthHandlerBase.decode(codec, frame);
+			} catch (Exception e) {
+				decodeError = e;
+			}
+		}
+		if (decodeError != null)
+			throw decodeError;
+		return decoded;
+	}
+
+	synchronized void clearDecoded(WsContext frame) {
+		if (decodedFrame != frame)
+			return;
+		decodedFrame = null;
+		decoded = null;
+		decodeError = null;
+	}
+
+	synchronized void deadline(WsTimerWheel.Timeout timeout) {
+		if (deadline != null)
+			deadline.cancel();
+		deadline = timeout;
+		if (released)
+			timeout.cancel();
+	}
+
+	synchronized void cancelDeadline() {
+		if (deadline != null)
+			deadline.cancel();
+		deadline = null;
+	}
+
+	/**
+	 * Lowers the message-size limits of the session until
+	 * {@link #restoreLimits()} is called.
+	 */
+	synchronized void limitMessages(int maxSize) {
+		WebSocketPolicy policy = ctx.session.getPolicy();
+		if (policy == null || textLimit >= 0)
+			return;
+		textLimit = policy.getMaxTextMessageSize();
+		binaryLimit = policy.getMaxBinaryMessageSize();
+		policy.setMaxTextMessageSize(textLimit > 0 ? Math.min(maxSize, textLimit) : maxSize);
+		policy.setMaxBinaryMessageSize(binaryLimit > 0 ? Math.min(maxSize, binaryLimit) : maxSize);
+	}
+
+	synchronized void restoreLimits() {
+		WebSocketPolicy policy = ctx.session.getPolicy();
+		if (policy == null || textLimit < 0)
+			return;
+		if (textLimit > 0)
+			policy.setMaxTextMessageSize(textLimit);
+		if (binaryLimit > 0)
+			policy.setMaxBinaryMessageSize(binaryLimit);
+		textLimit = -1;
+		binaryLimit = -1;
+	}
+
+	/**
+	 * Frees everything attached to the session once it left the registry.
+	 */
+	void release() {
+		WsHeartbeat.Registration hb;
+		WsTimerWheel.Timeout d;
+		synchronized (this) {
+			released = true;
+			hb = heartbeat;
+			heartbeat = null;
+			d = deadline;
+			deadline = null;
+			earlyFrames = null;
+		}
+		if (hb != null)
+			hb.cancel();
+		if (d != null)
+			d.cancel();
+		WsOutboundQueue q = outbound;
+		if (q != null)
+			q.close();
+	}
+}
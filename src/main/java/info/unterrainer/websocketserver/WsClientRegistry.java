@@ -0,0 +1,255 @@
+package info.unterrainer.websocketserver;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import info.unterrainer.websocketserver.WsClient.State;
+import io.javalin.websocket.WsConnectContext;
+
+/**
+ * Keeps all clients of a handler keyed by their {@link Session}, so that
+ * lookups, state-changes and removal run in constant time regardless of the
+ * number of open sockets.
+ * <p>
+ * All state-changes of a single session go through
+ * {@link ConcurrentHashMap#compute} and are therefore atomic with respect to
+ * each other.
+ */
+public class WsClientRegistry {
+
+	private final ConcurrentHashMap<Session, WsClient> clients = new ConcurrentHashMap<>();
+	private final AtomicInteger[] counts = new AtomicInteger[State.values().length];
+
+	private final Set<WsConnectContext> connectedView = new StateView(State.CONNECTED);
+	private final Set<WsConnectContext> quarantinedView = new StateView(State.QUARANTINED);
+
+	public WsClientRegistry() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = new AtomicInteger();
+	}
+
+	/**
+	 * Adds the client in the given state. If the session is already registered,
+	 * its state is overwritten.
+	 *
+	 * @return true, if the session was not registered in that state before
+	 */
+	public boolean add(WsConnectContext ctx, State state) {
+		boolean[] changed = new boolean[1];
+		clients.compute(ctx.session, (s, existing) -> {
+			if (existing != null && existing.state == state && existing.ctx.equals(ctx))
+				return existing;
+			if (existing != null)
+				counter(existing.state).decrementAndGet();
+			counter(state).incrementAndGet();
+			changed[0] = true;
+			return new WsClient(ctx, state);
+		});
+		return changed[0];
+	}
+
+	/**
+	 * Adds the client in the given state, unless that state already holds
+	 * {@code max} clients. The slot is reserved on the state's counter before the
+	 * client is added, so concurrent calls never exceed the limit.
+	 *
+	 * @return false, if the state was full
+	 */
+	public boolean tryAdd(WsConnectContext ctx, State state, int max) {
+		AtomicInteger counter = counter(state);
+		if (counter.incrementAndGet() > max) {
+			counter.decrementAndGet();
+			return false;
+		}
+		clients.compute(ctx.session, (s, existing) -> {
+			// The slot was reserved already; give back the one held before.
+			if (existing != null)
+				counter(existing.state).decrementAndGet();
+			return new WsClient(ctx, state);
+		});
+		return true;
+	}
+
+	/**
+	 * Moves a quarantined client to the connected ones in a single atomic step.
+	 *
+	 * @return the promoted client or null, if the session wasn't quarantined
+	 */
+	public WsClient promote(Session session) {
+		return transition(session, State.QUARANTINED, State.CONNECTED);
+	}
+
+	/**
+	 * Changes the state of the session in a single atomic step, if it currently
+	 * is in the expected one.
+	 *
+	 * @return the client or null, if the session wasn't in the expected state
+	 */
+	public WsClient transition(Session session, State from, State to) {
+		WsClient[] changed = new WsClient[1];
+		clients.computeIfPresent(session, (s, client) -> {
+			if (client.state == from) {
+				client.state = to;
+				counter(from).decrementAndGet();
+				counter(to).incrementAndGet();
+				changed[0] = client;
+			}
+			return client;
+		});
+		return changed[0];
+	}
+
+	public WsClient remove(Session session) {
+		WsClient[] removed = new WsClient[1];
+		clients.computeIfPresent(session, (s, client) -> {
+			counter(client.state).decrementAndGet();
+			removed[0] = client;
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Removes the session only if it is currently in the given state.
+	 */
+	public WsClient remove(Session session, State state) {
+		WsClient[] removed = new WsClient[1];
+		clients.computeIfPresent(session, (s, client) -> {
+			if (client.state != state)
+				return client;
+			counter(state).decrementAndGet();
+			removed[0] = client;
+			return null;
+		});
+		return removed[0];
+	}
+
+	public WsClient get(Session session) {
+		return clients.get(session);
+	}
+
+	public WsConnectContext get(Session session, State state) {
+		WsClient client = clients.get(session);
+		if (client == null || client.state != state)
+			return null;
+		return client.ctx;
+	}
+
+	public boolean is(Session session, State state) {
+		WsClient client = clients.get(session);
+		return client != null && client.state == state;
+	}
+
+	public int size() {
+		return clients.size();
+	}
+
+	public int size(State state) {
+		return counter(state).get();
+	}
+
+	public Iterable<WsClient> all() {
+		return clients.values();
+	}
+
+	/**
+	 * A live, modifiable set-view of all contexts currently connected or
+	 * quarantined. {@code contains}, {@code add}, {@code remove} and {@code size}
+	 * run in constant time; iteration is weakly consistent.
+	 */
+	public Set<WsConnectContext> view(State state) {
+		switch (state) {
+		case CONNECTED:
+			return connectedView;
+		case QUARANTINED:
+			return quarantinedView;
+		default:
+			throw new IllegalArgumentException("There is no view for state " + state + ".");
+		}
+	}
+
+	private AtomicInteger counter(State state) {
+		return counts[state.ordinal()];
+	}
+
+	private class StateView extends AbstractSet<WsConnectContext> {
+
+		private final State state;
+
+		StateView(State state) {
+			this.state = state;
+		}
+
+		@Override
+		public Iterator<WsConnectContext> iterator() {
+			Iterator<WsClient> it = clients.values().iterator();
+			return new Iterator<>() {
+				private WsClient next = advance();
+				private WsClient last;
+
+				private WsClient advance() {
+					while (it.hasNext()) {
+						WsClient c = it.next();
+						if (c.state == state)
+							return c;
+					}
+					return null;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public WsConnectContext next() {
+					if (next == null)
+						throw new NoSuchElementException();
+					last = next;
+					next = advance();
+					return last.ctx;
+				}
+
+				@Override
+				public void remove() {
+					if (last == null)
+						throw new IllegalStateException();
+					WsClientRegistry.this.remove(last.ctx.session, state);
+					last = null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return counter(state).get();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof WsConnectContext))
+				return false;
+			WsConnectContext ctx = (WsConnectContext) o;
+			WsClient client = clients.get(ctx.session);
+			return client != null && client.state == state && client.ctx.equals(ctx);
+		}
+
+		@Override
+		public boolean add(WsConnectContext ctx) {
+			return WsClientRegistry.this.add(ctx, state);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!contains(o))
+				return false;
+			return WsClientRegistry.this.remove(((WsConnectContext) o).session, state) != null;
+		}
+	}
+}
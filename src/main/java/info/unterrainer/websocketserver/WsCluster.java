@@ -0,0 +1,136 @@
+package info.unterrainer.websocketserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.unterrainer.websocketserver.WsClusterMessage.Scope;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Forwards broadcasts, tenant-sends and topic-publishes of the handlers of one
+ * node to all other nodes using a {@link WsClusterBus}, and delivers the ones
+ * of the other nodes to the local sessions. Handlers deliver locally right
+ * away, so each node only ever writes to its own sessions.
+ * <p>
+ * Outgoing messages are batched: a batch is published once it holds the
+ * configured number of messages or the oldest one waited the configured delay.
+ */
+@Slf4j
+public class WsCluster {
+
+	private final String nodeId = UUID.randomUUID().toString();
+	private final WsClusterBus bus;
+	private final WsTimerWheel timer;
+	private final int maxBatch;
+	private final long maxDelayNanos;
+
+	private final Map<String, WsOauthHandlerBase> handlers = new ConcurrentHashMap<>();
+	private final Queue<WsClusterMessage> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private volatile AutoCloseable subscription;
+
+	public WsCluster(WsClusterBus bus, WsTimerWheel timer, int maxBatch, long maxDelay, TimeUnit unit) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1.");
+		this.bus = bus;
+		this.timer = timer;
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Subscribes to the bus.
+	 */
+	public synchronized WsCluster start() throws Exception {
+		if (subscription == null)
+			subscription = bus.subscribe(this::receive);
+		return this;
+	}
+
+	/**
+	 * Publishes what's pending and unsubscribes from the bus.
+	 */
+	public synchronized void stop() {
+		flush();
+		if (subscription == null)
+			return;
+		try {
+			subscription.close();
+		} catch (Exception e) {
+			log.warn("Error unsubscribing node [{}] from the cluster-bus.", nodeId, e);
+		}
+		subscription = null;
+	}
+
+	/**
+	 * Makes the handler receive the messages other nodes send to the endpoint
+	 * of the same name.
+	 */
+	void register(String endpoint, WsOauthHandlerBase handler) {
+		handlers.put(endpoint, handler);
+	}
+
+	void forward(String endpoint, Scope scope, String key, WsPreparedMessage message) {
+		pending.add(new WsClusterMessage(nodeId, endpoint, scope, key, message));
+		if (pendingCount.incrementAndGet() >= maxBatch || maxDelayNanos == 0)
+			flush();
+		else if (flushScheduled.compareAndSet(false, true))
+			timer.schedule(this::scheduledFlush, maxDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void scheduledFlush() {
+		flushScheduled.set(false);
+		flush();
+	}
+
+	private void flush() {
+		List<WsClusterMessage> batch = new ArrayList<>(Math.min(pendingCount.get(), maxBatch));
+		WsClusterMessage m;
+		while ((m = pending.poll()) != null) {
+			batch.add(m);
+			if (batch.size() == maxBatch) {
+				publish(batch);
+				batch = new ArrayList<>();
+			}
+		}
+		if (!batch.isEmpty())
+			publish(batch);
+	}
+
+	private void publish(List<WsClusterMessage> batch) {
+		pendingCount.addAndGet(-batch.size());
+		try {
+			bus.publish(batch);
+		} catch (Exception e) {
+			log.warn("Publishing [{}] messages to the cluster-bus failed.", batch.size(), e);
+		}
+	}
+
+	private void receive(List<WsClusterMessage> batch) {
+		for (WsClusterMessage m : batch) {
+			if (nodeId.equals(m.getOrigin()))
+				continue;
+			WsOauthHandlerBase handler = handlers.get(m.getEndpoint());
+			if (handler == null)
+				continue;
+			try {
+				handler.deliverFromCluster(m);
+			} catch (Exception e) {
+				log.warn("Delivering cluster-message to endpoint [{}] failed.", m.getEndpoint(), e);
+			}
+		}
+	}
+}
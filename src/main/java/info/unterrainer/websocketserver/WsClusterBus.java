@@ -0,0 +1,27 @@
+package info.unterrainer.websocketserver;
+
+import java.util.List;
+
+/**
+ * Transport between the nodes of a {@link WsCluster}, e.g. Redis pub/sub,
+ * NATS or Kafka. Every batch published has to reach the listeners of all
+ * nodes, including the publishing one; nodes drop their own messages.
+ */
+public interface WsClusterBus {
+
+	@FunctionalInterface
+	interface Listener {
+		void onBatch(List<WsClusterMessage> batch);
+	}
+
+	/**
+	 * Must not block for long; it's called from the threads sending messages or
+	 * the flush-timer.
+	 */
+	void publish(List<WsClusterMessage> batch) throws Exception;
+
+	/**
+	 * @return closing it stops delivery to the listener
+	 */
+	AutoCloseable subscribe(Listener listener) throws Exception;
+}
@@ -0,0 +1,147 @@
+package info.unterrainer.websocketserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A broadcast, tenant-send or topic-publish forwarded to the other nodes of a
+ * {@link WsCluster}. Endpoints are identified by the name of their handler,
+ * which therefore has to be the same on all nodes.
+ * <p>
+ * {@link #encode(List)} and {@link #decode(byte[])} provide a compact wire
+ * format for buses crossing process boundaries.
+ */
+public final class WsClusterMessage {
+
+	public enum Scope {
+		ALL,
+		TENANT,
+		TOPIC
+	}
+
+	/**
+	 * The largest payload {@link #decode(byte[])} accepts.
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+	private static final int VERSION = 1;
+	// Three empty strings, scope, text-flag and payload-length.
+	private static final int MIN_ENTRY_SIZE = 3 * 2 + 1 + 1 + 4;
+
+	private final String origin;
+	private final String endpoint;
+	private final Scope scope;
+	private final String key;
+	private final WsPreparedMessage message;
+
+	WsClusterMessage(String origin, String endpoint, Scope scope, String key, WsPreparedMessage message) {
+		this.origin = origin;
+		this.endpoint = endpoint;
+		this.scope = scope;
+		this.key = key;
+		this.message = message;
+	}
+
+	/**
+	 * @return the id of the node the message was sent from
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	/**
+	 * @return the tenant-id or topic; null for {@link Scope#ALL}
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public WsPreparedMessage getMessage() {
+		return message;
+	}
+
+	public static byte[] encode(List<WsClusterMessage> batch) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * batch.size());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeInt(batch.size());
+			for (WsClusterMessage m : batch) {
+				out.writeUTF(m.origin);
+				out.writeUTF(m.endpoint);
+				out.writeByte(m.scope.ordinal());
+				out.writeUTF(m.key == null ? "" : m.key);
+				out.writeBoolean(m.message.isText());
+				ByteBuffer payload = m.message.getPayload();
+				out.writeInt(payload.remaining());
+				if (payload.hasArray())
+					out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+				else {
+					byte[] copy = new byte[payload.remaining()];
+					payload.get(copy);
+					out.write(copy);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException("Encoding to a byte-array failed.", e);
+		}
+	}
+
+	public static List<WsClusterMessage> decode(byte[] data) throws IOException {
+		return decode(data, DEFAULT_MAX_PAYLOAD_SIZE);
+	}
+
+	/**
+	 * Checks every count and length against the bytes left before allocating, so
+	 * a corrupt or hostile batch can't make it allocate more than its own size.
+	 *
+	 * @param maxPayloadSize the largest payload of a single message accepted
+	 * @throws IOException if the batch is malformed or a payload is too large
+	 */
+	public static List<WsClusterMessage> decode(byte[] data, int maxPayloadSize) throws IOException {
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		int version = in.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported cluster-message version " + version + ".");
+		int count = in.readInt();
+		if (count < 0 || count > bytes.available() / MIN_ENTRY_SIZE)
+			throw new IOException("Invalid message-count " + count + " for a batch of " + data.length + " bytes.");
+		List<WsClusterMessage> batch = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String origin = in.readUTF();
+			String endpoint = in.readUTF();
+			int ordinal = in.readUnsignedByte();
+			if (ordinal >= Scope.values().length)
+				throw new IOException("Invalid scope " + ordinal + " of message " + i + ".");
+			Scope scope = Scope.values()[ordinal];
+			String key = in.readUTF();
+			boolean text = in.readBoolean();
+			int length = in.readInt();
+			if (length < 0 || length > bytes.available() || length > maxPayloadSize)
+				throw new IOException("Invalid payload-length " + length + " of message " + i + ".");
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			batch.add(new WsClusterMessage(origin, endpoint, scope, scope == Scope.ALL ? null : key,
+					text ? WsPreparedMessage.utf8(buffer) : WsPreparedMessage.binary(buffer)));
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,29 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns frames into typed messages and back. A handler with a codec decodes
+ * every frame at most once, see {@link WsOauthHandlerBase#decoded}, no matter
+ * how many consumers ask for it.
+ *
+ * @param <T> the type of the messages
+ */
+public interface WsCodec<T> {
+
+	T decode(String text) throws Exception;
+
+	/**
+	 * @param data a read-only view of a binary message, see
+	 *             {@link WsHandlerBase#onBinaryMsg(io.javalin.websocket.WsBinaryMessageContext, ByteBuffer)};
+	 *             only valid during this call
+	 */
+	default T decode(ByteBuffer data) throws Exception {
+		throw new IllegalArgumentException("This codec doesn't decode binary messages.");
+	}
+
+	/**
+	 * @return the encoded message, ready to be sent to any number of sessions
+	 */
+	WsPreparedMessage encode(T message);
+}
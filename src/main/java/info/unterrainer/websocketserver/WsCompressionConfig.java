@@ -0,0 +1,77 @@
+package info.unterrainer.websocketserver;
+
+import java.util.zip.Deflater;
+
+/**
+ * Per-endpoint settings of permessage-deflate; see {@link WsDeflateExtension}.
+ */
+public class WsCompressionConfig {
+
+	private boolean enabled = true;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int minSize;
+	private boolean contextTakeover = true;
+
+	public static WsCompressionConfig defaults() {
+		return new WsCompressionConfig();
+	}
+
+	/**
+	 * Sends everything uncompressed, even if the client negotiated compression.
+	 */
+	public static WsCompressionConfig disabled() {
+		return new WsCompressionConfig().enabled(false);
+	}
+
+	public WsCompressionConfig enabled(boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	/**
+	 * The deflate-level from 0 (none) to 9 (best); -1 is zlib's default.
+	 */
+	public WsCompressionConfig level(int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("level must be between -1 and 9.");
+		this.level = level;
+		return this;
+	}
+
+	/**
+	 * Messages with a smaller payload are sent uncompressed. 0 by default, which
+	 * compresses every message like Jetty's stock extension does.
+	 */
+	public WsCompressionConfig minSize(int minSize) {
+		if (minSize < 0)
+			throw new IllegalArgumentException("minSize must not be negative.");
+		this.minSize = minSize;
+		return this;
+	}
+
+	/**
+	 * Whether the compression-context is kept from one message to the next.
+	 * Turning it off costs compression-ratio but keeps the memory per session
+	 * from growing with the message history.
+	 */
+	public WsCompressionConfig contextTakeover(boolean contextTakeover) {
+		this.contextTakeover = contextTakeover;
+		return this;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public boolean isContextTakeover() {
+		return contextTakeover;
+	}
+}
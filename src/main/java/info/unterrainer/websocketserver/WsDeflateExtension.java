@@ -0,0 +1,114 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Extension;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.ExtensionStack;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+/**
+ * Jetty's permessage-deflate honoring a {@link WsCompressionConfig}.
+ * <p>
+ * Replaces the stock extension using {@link #install(WebSocketServletFactory)}.
+ * The negotiation with the client stays the same; the endpoint's settings are
+ * applied to the session's extension in its onConnect, see
+ * {@link #configure(Session, WsCompressionConfig)}. Since permessage-deflate
+ * flags compression per message, messages below the minimum size are simply
+ * sent without it. That's only done while no compressed frame is in flight, so
+ * the order of messages is kept.
+ */
+public class WsDeflateExtension extends PerMessageDeflateExtension {
+
+	private volatile WsCompressionConfig config = WsCompressionConfig.defaults();
+	private final AtomicInteger compressing = new AtomicInteger();
+	private boolean bypassingMessage;
+
+	/**
+	 * Registers this extension under the name of Jetty's permessage-deflate.
+	 */
+	public static void install(WebSocketServletFactory factory) {
+		factory.getExtensionFactory().register("permessage-deflate", WsDeflateExtension.class);
+	}
+
+	/**
+	 * Applies the settings to the session's extension.
+	 *
+	 * @return false, if the client didn't negotiate permessage-deflate or the
+	 *         extension isn't installed
+	 */
+	public static boolean configure(Session session, WsCompressionConfig config) {
+		if (!(session instanceof WebSocketSession))
+			return false;
+		OutgoingFrames outgoing = ((WebSocketSession) session).getOutgoingHandler();
+		if (!(outgoing instanceof ExtensionStack))
+			return false;
+		for (Extension extension : ((ExtensionStack) outgoing).getExtensions())
+			if (extension instanceof WsDeflateExtension) {
+				((WsDeflateExtension) extension).apply(config);
+				return true;
+			}
+		return false;
+	}
+
+	void apply(WsCompressionConfig config) {
+		this.config = config;
+		if (config.isEnabled())
+			getDeflater().setLevel(config.getLevel());
+	}
+
+	@Override
+	public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+		if (OpCode.isDataFrame(frame.getOpCode()) && bypass(frame)) {
+			nextOutgoingFrame(frame, callback, batchMode);
+			return;
+		}
+		compressing.incrementAndGet();
+		super.outgoingFrame(frame, new WriteCallback() {
+			@Override
+			public void writeSuccess() {
+				compressing.decrementAndGet();
+				if (callback != null)
+					callback.writeSuccess();
+			}
+
+			@Override
+			public void writeFailed(Throwable x) {
+				compressing.decrementAndGet();
+				if (callback != null)
+					callback.writeFailed(x);
+			}
+		}, batchMode);
+	}
+
+	/**
+	 * Continuation-frames follow the decision taken for the first frame of their
+	 * message.
+	 */
+	private boolean bypass(Frame frame) {
+		boolean bypass;
+		if (frame.getOpCode() == OpCode.CONTINUATION)
+			bypass = bypassingMessage;
+		else {
+			WsCompressionConfig c = config;
+			bypass = !c.isEnabled()
+					|| frame.isFin() && frame.getPayloadLength() < c.getMinSize() && compressing.get() == 0;
+		}
+		bypassingMessage = bypass && !frame.isFin();
+		return bypass;
+	}
+
+	@Override
+	protected void nextOutgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+		if (frame.isFin() && !config.isContextTakeover())
+			getDeflater().reset();
+		super.nextOutgoingFrame(frame, callback, batchMode);
+	}
+}
@@ -0,0 +1,194 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+
+import io.javalin.websocket.WsContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves handler-callbacks off the Jetty threads while keeping them strictly
+ * ordered per session.
+ * <p>
+ * Each session gets a lock-free serial queue. A queue that has work is drained
+ * by one task on the executor (a virtual thread by default), so blocking
+ * handler-code only ever parks that task and never a Jetty pool-thread.
+ * Callbacks of different sessions run concurrently.
+ * <p>
+ * The queue of a session is bounded. Once it holds {@code maxQueued} callbacks,
+ * reads from the session are suspended, pushing back on the client through
+ * TCP, and resumed when half of them ran. Frames Jetty had read already are
+ * still queued; a session exceeding twice the limit anyway is closed with 1008.
+ */
+@Slf4j
+public class WsDispatcher {
+
+	@FunctionalInterface
+	public interface Callback {
+		void run() throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface ErrorHandler {
+		void handle(Exception e, WsContext ctx);
+	}
+
+	public static final int DEFAULT_MAX_QUEUED = 1024;
+
+	private final Executor executor;
+	private final int maxQueued;
+	private final ConcurrentHashMap<Session, SerialQueue> queues = new ConcurrentHashMap<>();
+
+	public WsDispatcher(Executor executor) {
+		this(executor, DEFAULT_MAX_QUEUED);
+	}
+
+	/**
+	 * @param maxQueued the callbacks a session may have waiting before its reads
+	 *                  are suspended
+	 */
+	public WsDispatcher(Executor executor, int maxQueued) {
+		if (maxQueued < 1)
+			throw new IllegalArgumentException("maxQueued must be at least 1.");
+		this.executor = executor;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Runs every callback on its own virtual thread.
+	 */
+	public static WsDispatcher virtualThreads() {
+		return virtualThreads(DEFAULT_MAX_QUEUED);
+	}
+
+	public static WsDispatcher virtualThreads(int maxQueued) {
+		ExecutorService executor = Executors
+				.newThreadPerTaskExecutor(Thread.ofVirtual().name("ws-dispatch-", 0).factory());
+		return new WsDispatcher(executor, maxQueued);
+	}
+
+	/**
+	 * Queues the callback behind all earlier callbacks of the same session.
+	 *
+	 * @param last true for the final callback of a session (close or error);
+	 *             the session's queue is dropped once it ran. Final callbacks
+	 *             are never rejected.
+	 */
+	public void dispatch(WsContext ctx, Callback callback, ErrorHandler errorHandler, boolean last) {
+		SerialQueue queue = queues.computeIfAbsent(ctx.session, SerialQueue::new);
+		queue.add(last, () -> {
+			try {
+				callback.run();
+			} catch (Exception e) {
+				errorHandler.handle(e, ctx);
+			} finally {
+				if (last)
+					queues.remove(ctx.session, queue);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of sessions with a dispatch-queue
+	 */
+	public int size() {
+		return queues.size();
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void shutdown() {
+		if (executor instanceof ExecutorService)
+			((ExecutorService) executor).shutdown();
+	}
+
+	private final class SerialQueue implements Runnable {
+
+		private final Session session;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicReference<SuspendToken> suspended = new AtomicReference<>();
+
+		SerialQueue(Session session) {
+			this.session = session;
+		}
+
+		void add(boolean last, Runnable task) {
+			int size = queued.incrementAndGet();
+			if (!last && size > 2 * maxQueued) {
+				queued.decrementAndGet();
+				log.warn("Callback-queue of [{}] overflowed. Disconnecting.", session.getRemoteAddress());
+				session.close(1008, "Dispatch queue overflow");
+				return;
+			}
+			tasks.add(task);
+			schedule();
+			if (size == maxQueued)
+				suspend();
+		}
+
+		private void suspend() {
+			SuspendToken token;
+			try {
+				token = session.suspend();
+			} catch (RuntimeException e) {
+				log.debug("Suspending reads of [{}] failed.", session.getRemoteAddress(), e);
+				return;
+			}
+			if (token == null)
+				return;
+			suspended.set(token);
+			// The queue may have drained before the token was published.
+			if (queued.get() <= maxQueued / 2)
+				resume();
+		}
+
+		private void resume() {
+			SuspendToken token = suspended.getAndSet(null);
+			if (token != null)
+				token.resume();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (Exception e) {
+					scheduled.set(false);
+					log.error("Dispatching callbacks of [{}] failed.", session.getRemoteAddress(), e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					log.error("Unhandled error in callback of [{}].", session.getRemoteAddress(), t);
+				}
+				if (queued.decrementAndGet() <= maxQueued / 2 && suspended.get() != null)
+					resume();
+			}
+			scheduled.set(false);
+			// A task may have been added after the last poll but before the reset.
+			if (!tasks.isEmpty())
+				schedule();
+		}
+	}
+}
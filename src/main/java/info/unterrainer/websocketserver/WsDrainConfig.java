@@ -0,0 +1,100 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link WebsocketServer#stop(WsDrainConfig)} takes a node out of service:
+ * it stops accepting upgrades, waits for the outbound queues to empty, closes
+ * the sessions in shuffled batches spread over the close-window with 1001
+ * (going away) and a jittered reconnect-hint, and stops the server for good
+ * once the deadline passed.
+ */
+public class WsDrainConfig {
+
+	private long deadlineNanos = TimeUnit.SECONDS.toNanos(30);
+	private long flushTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+	private long closeWindowNanos = TimeUnit.SECONDS.toNanos(10);
+	private int batchSize = 50;
+	private long reconnectJitterMillis = 5_000;
+
+	public static WsDrainConfig defaults() {
+		return new WsDrainConfig();
+	}
+
+	/**
+	 * When sessions still open are dropped without a close-handshake.
+	 */
+	public WsDrainConfig deadline(long deadline, TimeUnit unit) {
+		if (deadline < 0)
+			throw new IllegalArgumentException("deadline must not be negative.");
+		this.deadlineNanos = unit.toNanos(deadline);
+		return this;
+	}
+
+	/**
+	 * How long to wait for the outbound queues to empty before closing.
+	 */
+	public WsDrainConfig flushTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout must not be negative.");
+		this.flushTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * The time the close-batches are spread over.
+	 */
+	public WsDrainConfig closeWindow(long window, TimeUnit unit) {
+		if (window < 0)
+			throw new IllegalArgumentException("window must not be negative.");
+		this.closeWindowNanos = unit.toNanos(window);
+		return this;
+	}
+
+	public WsDrainConfig batchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1.");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * The upper bound of the random delay clients are told to wait before
+	 * reconnecting, on top of being closed at different times.
+	 */
+	public WsDrainConfig reconnectJitter(long jitter, TimeUnit unit) {
+		if (jitter < 0)
+			throw new IllegalArgumentException("jitter must not be negative.");
+		this.reconnectJitterMillis = unit.toMillis(jitter);
+		return this;
+	}
+
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	public long getFlushTimeoutNanos() {
+		return flushTimeoutNanos;
+	}
+
+	public long getCloseWindowNanos() {
+		return closeWindowNanos;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getReconnectJitterMillis() {
+		return reconnectJitterMillis;
+	}
+
+	/**
+	 * @return the close-reason with a reconnect-hint in milliseconds
+	 */
+	String closeReason(String name) {
+		return "(" + name + ") Server shutting down; reconnect-after="
+				+ ThreadLocalRandom.current().nextLong(reconnectJitterMillis + 1);
+	}
+}
@@ -1,5 +1,10 @@
 package info.unterrainer.websocketserver;
 
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
 import io.javalin.websocket.WsBinaryMessageContext;
 import io.javalin.websocket.WsCloseContext;
 import io.javalin.websocket.WsConnectContext;
@@ -12,9 +17,47 @@ public abstract class WsHandlerBase {
 
 	public abstract void onMsg(WsMessageContext ctx) throws Exception;
 
-	public abstract void onBinaryMsg(WsBinaryMessageContext ctx) throws Exception;
+	/**
+	 * Passes a read-only view of the message to
+	 * {@link #onBinaryMsg(WsBinaryMessageContext, ByteBuffer)}. Override that one
+	 * instead of this to handle binary messages without copying them again.
+	 */
+	public void onBinaryMsg(WsBinaryMessageContext ctx) throws Exception {
+		onBinaryMsg(ctx, view(ctx));
+	}
+
+	/**
+	 * @param data a read-only view of {@link WsBinaryMessageContext#data()},
+	 *             positioned at its offset and limited to its length; only valid
+	 *             during this call. Javalin copies Jetty's frame into that array
+	 *             before the handler is called, so the view saves further copies
+	 *             of the message, not that one.
+	 */
+	public void onBinaryMsg(WsBinaryMessageContext ctx, ByteBuffer data) throws Exception {
+	}
 
 	public abstract void onClose(WsCloseContext ctx) throws Exception;
 
 	public abstract void onError(WsErrorContext ctx) throws Exception;
+
+	/**
+	 * Writes the data to the session asynchronously without copying it. The
+	 * buffer must not be changed until the callback was called.
+	 *
+	 * @return false, if the session is closed
+	 */
+	public boolean send(Session session, ByteBuffer data, WriteCallback callback) {
+		if (!session.isOpen())
+			return false;
+		WsPreparedMessage.binary(data).sendTo(session, callback);
+		return true;
+	}
+
+	/**
+	 * @return a read-only view of the array Javalin passes, without copying it
+	 *         again; Javalin has copied Jetty's frame into it already
+	 */
+	protected static ByteBuffer view(WsBinaryMessageContext ctx) {
+		return ByteBuffer.wrap(ctx.data(), ctx.offset(), ctx.length()).slice().asReadOnlyBuffer();
+	}
 }
@@ -0,0 +1,133 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.frames.PingFrame;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pings sessions periodically using a shared {@link WsTimerWheel}.
+ * <p>
+ * Every session gets a random phase within the interval, so pings are spread
+ * evenly over time instead of going out in one burst per interval. All pings
+ * share the same read-only payload.
+ * <p>
+ * Pings are written asynchronously, so a client that doesn't read never
+ * blocks the timer-thread; while its last ping is still being written, the
+ * next one is skipped.
+ */
+@Slf4j
+public class WsHeartbeat {
+
+	private static final ByteBuffer PING_PAYLOAD = ByteBuffer.allocate(1).asReadOnlyBuffer();
+
+	private final WsTimerWheel timer;
+	private final long intervalNanos;
+
+	public WsHeartbeat(WsTimerWheel timer, long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("Heartbeat interval must be greater than 0.");
+		this.timer = timer;
+		this.intervalNanos = unit.toNanos(interval);
+	}
+
+	public long getIntervalNanos() {
+		return intervalNanos;
+	}
+
+	/**
+	 * Starts pinging the session until the returned handle is cancelled or a
+	 * ping fails.
+	 *
+	 * @param name used as prefix of the close-reason
+	 */
+	public Registration register(Session session, String name) {
+		return register(session, name, null);
+	}
+
+	/**
+	 * @param onFailure run after a failed ping closed the session; may be null
+	 */
+	public Registration register(Session session, String name, Runnable onFailure) {
+		Registration r = new Registration(session, name, onFailure);
+		r.timeout = timer.schedule(r, ThreadLocalRandom.current().nextLong(intervalNanos), TimeUnit.NANOSECONDS);
+		return r;
+	}
+
+	public final class Registration implements Runnable, WriteCallback {
+
+		private final Session session;
+		private final String name;
+		private final Runnable onFailure;
+		private volatile boolean cancelled;
+		private volatile boolean inFlight;
+		private volatile WsTimerWheel.Timeout timeout;
+
+		private Registration(Session session, String name, Runnable onFailure) {
+			this.session = session;
+			this.name = name;
+			this.onFailure = onFailure;
+		}
+
+		public void cancel() {
+			cancelled = true;
+			WsTimerWheel.Timeout t = timeout;
+			if (t != null)
+				t.cancel();
+		}
+
+		@Override
+		public void run() {
+			if (cancelled || !session.isOpen())
+				return;
+			if (!inFlight) {
+				inFlight = true;
+				try {
+					RemoteEndpoint remote = session.getRemote();
+					if (remote instanceof WebSocketRemoteEndpoint) {
+						PingFrame ping = new PingFrame();
+						ping.setPayload(PING_PAYLOAD.duplicate());
+						((WebSocketRemoteEndpoint) remote).uncheckedSendFrame(ping, this);
+					} else {
+						// Not Jetty's own endpoint (e.g. a mock); there's only the blocking ping.
+						remote.sendPing(PING_PAYLOAD.duplicate());
+						inFlight = false;
+					}
+				} catch (Exception e) {
+					writeFailed(e);
+					return;
+				}
+			}
+			timeout = timer.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+			if (cancelled)
+				timeout.cancel();
+		}
+
+		@Override
+		public void writeSuccess() {
+			inFlight = false;
+		}
+
+		@Override
+		public void writeFailed(Throwable e) {
+			inFlight = false;
+			if (cancelled)
+				return;
+			cancel();
+			log.debug("(" + name + ") Heartbeat to [{}] failed.", session.getRemoteAddress(), e);
+			try {
+				session.close(1000, "(" + name + ") heartbeat failed");
+			} catch (Exception ignore) {
+			}
+			if (onFailure != null)
+				onFailure.run();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package info.unterrainer.websocketserver;
+
+/**
+ * Per-session token-bucket limits on the messages a client sends, see
+ * {@link WsOauthHandlerBase#setInboundLimitConfig(WsInboundLimitConfig)}.
+ */
+public class WsInboundLimitConfig {
+
+	public enum Action {
+		/**
+		 * Discards the message without handing it to the application.
+		 */
+		DROP,
+		/**
+		 * Handles the message, but stops reading from the session until the
+		 * buckets refilled, pushing back on the client through TCP. Messages
+		 * Jetty read before the suspension took effect are handled as well and
+		 * charged to the buckets, which prolongs the suspension. Requires the
+		 * timer of the handler; without one, messages are dropped instead.
+		 */
+		SUSPEND,
+		/**
+		 * Closes the session with the configured close-code.
+		 */
+		CLOSE
+	}
+
+	private double messagesPerSecond;
+	private int messageBurst;
+	private double bytesPerSecond;
+	private int byteBurst;
+	private Action action = Action.DROP;
+	private int closeCode = 1008;
+	private String closeReason = "Rate limit exceeded";
+
+	public static WsInboundLimitConfig defaults() {
+		return new WsInboundLimitConfig();
+	}
+
+	public WsInboundLimitConfig messageRate(double perSecond, int burst) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("perSecond must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1.");
+		this.messagesPerSecond = perSecond;
+		this.messageBurst = burst;
+		return this;
+	}
+
+	/**
+	 * Bytes of binary and characters of text messages. A message larger than the
+	 * burst takes the whole bucket.
+	 */
+	public WsInboundLimitConfig byteRate(double perSecond, int burst) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("perSecond must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1.");
+		this.bytesPerSecond = perSecond;
+		this.byteBurst = burst;
+		return this;
+	}
+
+	public WsInboundLimitConfig action(Action action) {
+		if (action == null)
+			throw new IllegalArgumentException("action must not be null.");
+		this.action = action;
+		return this;
+	}
+
+	/**
+	 * Close-code and reason used with {@link Action#CLOSE}.
+	 */
+	public WsInboundLimitConfig closeWith(int closeCode, String closeReason) {
+		this.closeCode = closeCode;
+		this.closeReason = closeReason;
+		return this;
+	}
+
+	/**
+	 * @return 0, if unlimited
+	 */
+	public double getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+
+	public int getMessageBurst() {
+		return messageBurst;
+	}
+
+	/**
+	 * @return 0, if unlimited
+	 */
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public int getByteBurst() {
+		return byteBurst;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	public String getCloseReason() {
+		return closeReason;
+	}
+}
@@ -0,0 +1,76 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The buckets of a single session. Checking a message takes no locks and
+ * allocates nothing.
+ */
+final class WsInboundLimiter {
+
+	private final WsRateLimiter messages;
+	private final WsRateLimiter bytes;
+	private final int byteBurst;
+	private final AtomicBoolean suspended = new AtomicBoolean();
+
+	WsInboundLimiter(WsInboundLimitConfig config) {
+		messages = config.getMessagesPerSecond() > 0
+				? new WsRateLimiter(config.getMessagesPerSecond(), config.getMessageBurst())
+				: null;
+		bytes = config.getBytesPerSecond() > 0 ? new WsRateLimiter(config.getBytesPerSecond(), config.getByteBurst())
+				: null;
+		byteBurst = config.getByteBurst();
+	}
+
+	/**
+	 * @return false, if the message exceeds one of the limits; it's taken from
+	 *         neither bucket then
+	 */
+	boolean tryAcquire(int size, long now) {
+		if (messages != null && !messages.tryAcquire(1, now))
+			return false;
+		if (bytes == null || bytes.tryAcquire(Math.max(1, Math.min(size, byteBurst)), now))
+			return true;
+		// The message isn't handled, so it mustn't count against the message-rate.
+		if (messages != null)
+			messages.release(1);
+		return false;
+	}
+
+	/**
+	 * Takes the message from both buckets even beyond their limits, for messages
+	 * that are handled anyway. The debt delays the following ones.
+	 *
+	 * @return false, if the message exceeded one of the limits
+	 */
+	boolean charge(int size, long now) {
+		boolean within = messages == null || messages.acquire(1, now);
+		if (bytes != null && !bytes.acquire(Math.max(1, Math.min(size, byteBurst)), now))
+			within = false;
+		return within;
+	}
+
+	/**
+	 * @return how long until both buckets have room for another message
+	 */
+	long nanosUntilAvailable(long now) {
+		long m = messages == null ? 0 : messages.nanosUntilAvailable(now);
+		long b = bytes == null ? 0 : bytes.nanosUntilAvailable(now);
+		return Math.max(m, b);
+	}
+
+	/**
+	 * @return true, if the session wasn't suspended already
+	 */
+	boolean suspend() {
+		return suspended.compareAndSet(false, true);
+	}
+
+	void resumed() {
+		suspended.set(false);
+	}
+
+	boolean isSuspended() {
+		return suspended.get();
+	}
+}
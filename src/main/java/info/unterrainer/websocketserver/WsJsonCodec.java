@@ -0,0 +1,90 @@
+package info.unterrainer.websocketserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * Decodes and encodes JSON with Jackson, binding straight to the message type
+ * in a single streaming pass. Binary frames are parsed from their bytes without
+ * decoding them to a String first, outbound messages are written straight to
+ * UTF-8.
+ *
+ * @param <T> the type the JSON is bound to
+ */
+public class WsJsonCodec<T> implements WsCodec<T> {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final ObjectReader reader;
+	private final ObjectWriter writer;
+
+	private WsJsonCodec(ObjectReader reader, ObjectWriter writer) {
+		this.reader = reader;
+		this.writer = writer;
+	}
+
+	/**
+	 * Decodes to maps, lists, strings, numbers, booleans and null.
+	 */
+	public static WsJsonCodec<Object> tree() {
+		return of(Object.class);
+	}
+
+	public static <T> WsJsonCodec<T> of(Class<T> type) {
+		return of(MAPPER, type);
+	}
+
+	/**
+	 * @param mapper configures binding, e.g. modules or unknown properties; the
+	 *               codec takes its reader and writer from it once
+	 */
+	public static <T> WsJsonCodec<T> of(ObjectMapper mapper, Class<T> type) {
+		if (mapper == null || type == null)
+			throw new IllegalArgumentException("mapper and type must not be null.");
+		return new WsJsonCodec<>(mapper.readerFor(type).with(DeserializationFeature.FAIL_ON_TRAILING_TOKENS),
+				mapper.writerFor(type));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the text isn't JSON of the type
+	 */
+	@Override
+	public T decode(String text) {
+		try {
+			return reader.readValue(text);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Malformed JSON: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the frame isn't JSON of the type
+	 */
+	@Override
+	public T decode(ByteBuffer data) {
+		try {
+			if (data.hasArray())
+				return reader.readValue(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			// Read-only and direct buffers have no accessible array; stream them.
+			return reader.readValue(new ByteBufferBackedInputStream(data.duplicate()));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Malformed JSON: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public WsPreparedMessage encode(T message) {
+		try {
+			return WsPreparedMessage.utf8(ByteBuffer.wrap(writer.writeValueAsBytes(message)));
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Can't write [" + message.getClass().getName() + "] as JSON.", e);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package info.unterrainer.websocketserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link WsClusterBus}: several {@link WebsocketServer}s in one JVM
+ * sharing an instance form a cluster. Batches are delivered synchronously on
+ * the publishing thread, which makes it handy for tests.
+ */
+public class WsLoopbackBus implements WsClusterBus {
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+
+	@Override
+	public void publish(List<WsClusterMessage> batch) {
+		batches.incrementAndGet();
+		messages.addAndGet(batch.size());
+		for (Listener listener : listeners)
+			listener.onBatch(batch);
+	}
+
+	@Override
+	public AutoCloseable subscribe(Listener listener) {
+		listeners.add(listener);
+		return () -> listeners.remove(listener);
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getMessages() {
+		return messages.get();
+	}
+}
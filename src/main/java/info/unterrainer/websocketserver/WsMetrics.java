@@ -0,0 +1,178 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the metrics of all endpoints in memory. Counters are
+ * {@link LongAdder}s and histograms have fixed buckets, so recording never
+ * locks or allocates.
+ * <p>
+ * {@link #scrape()} renders everything in the Prometheus text-format; see
+ * {@link WebsocketServer#metricsRoute(String)}.
+ */
+public class WsMetrics implements WsMetricsRegistry {
+
+	/**
+	 * Upper bounds of the histogram-buckets in seconds.
+	 */
+	static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25,
+			0.5, 1, 2.5, 5, 10 };
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++)
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private final String prefix;
+	private final Map<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+	public WsMetrics() {
+		this("websocket");
+	}
+
+	/**
+	 * @param prefix of all metric names
+	 */
+	public WsMetrics(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public EndpointMetrics endpoint(String endpoint) {
+		return endpoints.computeIfAbsent(endpoint == null ? "" : endpoint, e -> new EndpointMetrics());
+	}
+
+	public long get(String endpoint, Counter counter) {
+		EndpointMetrics m = endpoints.get(endpoint);
+		return m == null ? 0 : m.counters[counter.ordinal()].sum();
+	}
+
+	public long get(String endpoint, Gauge gauge) {
+		EndpointMetrics m = endpoints.get(endpoint);
+		LongSupplier s = m == null ? null : m.gauges[gauge.ordinal()];
+		return s == null ? 0 : s.getAsLong();
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long count(String endpoint, Timer timer) {
+		EndpointMetrics m = endpoints.get(endpoint);
+		return m == null ? 0 : m.histograms[timer.ordinal()].count.sum();
+	}
+
+	/**
+	 * Renders all metrics in the Prometheus text-format (version 0.0.4).
+	 */
+	public String scrape() {
+		Map<String, EndpointMetrics> sorted = new TreeMap<>(endpoints);
+		StringBuilder sb = new StringBuilder(4096);
+		for (Counter c : Counter.values()) {
+			String metric = prefix + "_" + c.name().toLowerCase(Locale.ROOT) + "_total";
+			sb.append("# TYPE ").append(metric).append(" counter\n");
+			for (Map.Entry<String, EndpointMetrics> e : sorted.entrySet())
+				sample(sb, metric, e.getKey(), null, e.getValue().counters[c.ordinal()].sum());
+		}
+		for (Gauge g : Gauge.values()) {
+			String metric = prefix + "_" + g.name().toLowerCase(Locale.ROOT);
+			sb.append("# TYPE ").append(metric).append(" gauge\n");
+			for (Map.Entry<String, EndpointMetrics> e : sorted.entrySet()) {
+				LongSupplier s = e.getValue().gauges[g.ordinal()];
+				if (s != null)
+					sample(sb, metric, e.getKey(), null, s.getAsLong());
+			}
+		}
+		for (Timer t : Timer.values()) {
+			String metric = prefix + "_" + t.name().toLowerCase(Locale.ROOT) + "_seconds";
+			sb.append("# TYPE ").append(metric).append(" histogram\n");
+			for (Map.Entry<String, EndpointMetrics> e : sorted.entrySet())
+				e.getValue().histograms[t.ordinal()].render(sb, metric, e.getKey());
+		}
+		return sb.toString();
+	}
+
+	private static void sample(StringBuilder sb, String metric, String endpoint, String le, Object value) {
+		sb.append(metric).append("{endpoint=\"");
+		escape(sb, endpoint);
+		sb.append('"');
+		if (le != null)
+			sb.append(",le=\"").append(le).append('"');
+		sb.append("} ").append(value).append('\n');
+	}
+
+	private static void escape(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				sb.append('\\').append(c);
+			else if (c == '\n')
+				sb.append("\\n");
+			else
+				sb.append(c);
+		}
+	}
+
+	public static final class EndpointMetrics implements Endpoint {
+
+		private final LongAdder[] counters = new LongAdder[Counter.values().length];
+		private final LongSupplier[] gauges = new LongSupplier[Gauge.values().length];
+		private final Histogram[] histograms = new Histogram[Timer.values().length];
+
+		private EndpointMetrics() {
+			for (int i = 0; i < counters.length; i++)
+				counters[i] = new LongAdder();
+			for (int i = 0; i < histograms.length; i++)
+				histograms[i] = new Histogram();
+		}
+
+		@Override
+		public void increment(Counter counter, long delta) {
+			counters[counter.ordinal()].add(delta);
+		}
+
+		@Override
+		public void recordNanos(Timer timer, long nanos) {
+			histograms[timer.ordinal()].record(nanos);
+		}
+
+		@Override
+		public void gauge(Gauge gauge, LongSupplier value) {
+			gauges[gauge.ordinal()] = value;
+		}
+	}
+
+	private static final class Histogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+
+		void record(long nanos) {
+			int i = 0;
+			while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i])
+				i++;
+			buckets.incrementAndGet(i);
+			count.increment();
+			sumNanos.add(nanos);
+		}
+
+		void render(StringBuilder sb, String metric, String endpoint) {
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += buckets.get(i);
+				sample(sb, metric + "_bucket", endpoint, Double.toString(BUCKETS[i]), cumulative);
+			}
+			cumulative += buckets.get(BUCKETS.length);
+			sample(sb, metric + "_bucket", endpoint, "+Inf", cumulative);
+			sample(sb, metric + "_sum", endpoint, null, sumNanos.sum() / 1e9);
+			sample(sb, metric + "_count", endpoint, null, cumulative);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package info.unterrainer.websocketserver;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Where the handlers of a {@link WebsocketServer} report to. Implement this to
+ * bridge to the metrics-library of your choice; {@link WsMetrics} keeps
+ * everything in memory and renders it in the Prometheus text-format.
+ * <p>
+ * Recording happens on the message path, so implementations must not block or
+ * lock.
+ */
+public interface WsMetricsRegistry {
+
+	enum Counter {
+		CONNECTS,
+		AUTH_FAILURES,
+		QUARANTINE_EVICTIONS,
+		MESSAGES_IN,
+		BYTES_IN,
+		MESSAGES_OUT,
+		BYTES_OUT,
+		HEARTBEAT_FAILURES,
+		RESUMES,
+		ADMISSION_REJECTS,
+		INBOUND_LIMITED
+	}
+
+	enum Gauge {
+		ACTIVE_SESSIONS,
+		QUARANTINED_SESSIONS
+	}
+
+	enum Timer {
+		AUTH,
+		HANDLER
+	}
+
+	/**
+	 * Called once per handler when it's registered.
+	 *
+	 * @param endpoint the name of the handler
+	 */
+	Endpoint endpoint(String endpoint);
+
+	interface Endpoint {
+
+		Endpoint NOOP = new Endpoint() {
+			@Override
+			public void increment(Counter counter, long delta) {
+			}
+
+			@Override
+			public void recordNanos(Timer timer, long nanos) {
+			}
+
+			@Override
+			public void gauge(Gauge gauge, LongSupplier value) {
+			}
+		};
+
+		void increment(Counter counter, long delta);
+
+		void recordNanos(Timer timer, long nanos);
+
+		/**
+		 * Registers the supplier read whenever the gauge is collected.
+		 */
+		void gauge(Gauge gauge, LongSupplier value);
+	}
+}
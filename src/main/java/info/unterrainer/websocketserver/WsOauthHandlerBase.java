@@ -3,20 +3,29 @@ package info.unterrainer.websocketserver;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 
-import info.unterrainer.commons.jreutils.ShutdownHook;
 import info.unterrainer.oauthtokenmanager.OauthTokenManager;
+import info.unterrainer.websocketserver.WsClient.State;
+import info.unterrainer.websocketserver.WsClusterMessage.Scope;
+import info.unterrainer.websocketserver.WsMetricsRegistry.Counter;
+import info.unterrainer.websocketserver.WsMetricsRegistry.Gauge;
+import info.unterrainer.websocketserver.WsMetricsRegistry.Timer;
 import io.javalin.websocket.WsBinaryMessageContext;
 import io.javalin.websocket.WsCloseContext;
 import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsContext;
 import io.javalin.websocket.WsErrorContext;
 import io.javalin.websocket.WsMessageContext;
 import lombok.extern.slf4j.Slf4j;
@@ -26,70 +35,599 @@ public class WsOauthHandlerBase extends WsHandlerBase {
 
 	protected String name;
 	protected OauthTokenManager tokenHandler;
-	protected Set<WsConnectContext> clientsConnected = ConcurrentHashMap.newKeySet();
-	protected Set<WsConnectContext> clientsQuarantined = ConcurrentHashMap.newKeySet();
-	protected HashMap<Session, String> tenantIdsBySession = new HashMap<>();
+	protected WsTokenCache tokenCache;
+	protected final WsClientRegistry clients = new WsClientRegistry();
+	protected final Set<WsConnectContext> clientsConnected = clients.view(State.CONNECTED);
+	protected final Set<WsConnectContext> clientsQuarantined = clients.view(State.QUARANTINED);
+	protected final WsTenantIndex tenants = new WsTenantIndex();
+	protected final Map<Session, String> tenantIdsBySession = tenants.asMap();
+	protected final WsTopicIndex topics = new WsTopicIndex();
 
-	protected ScheduledExecutorService hb = Executors.newSingleThreadScheduledExecutor(r -> {
-		Thread t = new Thread(r, "ws-heartbeat");
-		t.setDaemon(true);
-		return t;
-	});
+	protected WsOutboundQueueConfig outboundQueueConfig = WsOutboundQueueConfig.defaults();
+
+	protected WsHeartbeat heartbeat;
+	protected WsBatchConfig batchConfig;
+	protected WsTimerWheel flushTimer;
+	protected WsAuthExecutor authExecutor;
+	protected WsMetricsRegistry.Endpoint metrics = WsMetricsRegistry.Endpoint.NOOP;
+	protected WsCluster cluster;
+	protected WsTimerWheel timer;
+	protected WsResumeStore resumes;
+	protected WsQuarantineConfig quarantineConfig;
+	protected WsAdmission admission;
+	protected WsInboundLimitConfig inboundLimitConfig;
+	protected volatile WsDrainConfig draining;
+	protected volatile int messageLogSampling;
+	protected WsCodec<?> codec;
+	private final AtomicLong sampledMessages = new AtomicLong();
 
 	public WsOauthHandlerBase(String name) {
 		super();
 		this.name = name;
-		ShutdownHook.register(() -> {
-			hb.close();
-			hb = null;
-		});
-
-		hb.scheduleAtFixedRate(() -> {
-			for (WsConnectContext c : clientsConnected) {
-				Session s = c.session;
-				if (s.isOpen()) {
-					try {
-						s.getRemote().sendPing(ByteBuffer.allocate(1));
-					} catch (Exception e) {
-						try {
-							s.close(1000, "(" + name + ") heartbeat failed");
-						} catch (Exception ignore) {
-						}
-					}
-				}
-			}
-		}, 30, 30, TimeUnit.SECONDS);
 	}
 
 	public void setTokenHandler(OauthTokenManager tokenHandler) {
 		this.tokenHandler = tokenHandler;
 	}
 
+	/**
+	 * Sets the cache validated tokens are kept in. Without one, every token is
+	 * validated by the token-handler.
+	 */
+	public void setTokenCache(WsTokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+	}
+
+	/**
+	 * Moves token-validation off the Jetty threads. While a token is validated,
+	 * the client is {@link State#PENDING} and its frames are buffered up to the
+	 * executor's limit. Without an executor, tokens are validated synchronously.
+	 */
+	public void setAuthExecutor(WsAuthExecutor authExecutor) {
+		this.authExecutor = authExecutor;
+	}
+
+	/**
+	 * Replaces the per-message debug-log, which includes the whole message, by an
+	 * info-log of session-id and size of every n-th message. 0 turns sampling
+	 * off.
+	 */
+	public void setMessageLogSampling(int everyNthMessage) {
+		if (everyNthMessage < 0)
+			throw new IllegalArgumentException("everyNthMessage must not be negative.");
+		this.messageLogSampling = everyNthMessage;
+	}
+
+	/**
+	 * Sets the heartbeat connected clients are pinged with. Usually the one shared
+	 * by all handlers of a {@link WebsocketServer}; without one, no pings are
+	 * sent.
+	 */
+	public void setHeartbeat(WsHeartbeat heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * Sets the limits of the per-session outbound queues. Only affects queues
+	 * created afterwards.
+	 */
+	public void setOutboundQueueConfig(WsOutboundQueueConfig outboundQueueConfig) {
+		this.outboundQueueConfig = outboundQueueConfig;
+	}
+
+	/**
+	 * Coalesces small outbound messages of every session, see
+	 * {@link WsBatchConfig}. Only affects queues created afterwards; null turns
+	 * batching off.
+	 */
+	public void setBatchConfig(WsBatchConfig batchConfig) {
+		this.batchConfig = batchConfig;
+	}
+
+	/**
+	 * Sets the timer batches wait on for their delay. Usually the fine-grained
+	 * one shared by all handlers of a {@link WebsocketServer}.
+	 */
+	public void setFlushTimer(WsTimerWheel flushTimer) {
+		this.flushTimer = flushTimer;
+	}
+
+	/**
+	 * Turns batching on or, with null, off for a single connected session.
+	 *
+	 * @return false, if the session isn't connected
+	 */
+	public boolean setBatching(Session session, WsBatchConfig batch) {
+		WsClient client = clients.get(session);
+		if (client == null || client.state != State.CONNECTED)
+			return false;
+		outbound(client).batch(batch, flushTimer);
+		return true;
+	}
+
+	private WsOutboundQueue outbound(WsClient client) {
+		return client.outbound(outboundQueueConfig, batchConfig, flushTimer);
+	}
+
+	/**
+	 * Reports this handler's counters, gauges and timings to the registry under
+	 * the handler's name.
+	 */
+	public void setMetrics(WsMetricsRegistry registry) {
+		WsMetricsRegistry.Endpoint m = registry == null ? WsMetricsRegistry.Endpoint.NOOP : registry.endpoint(name);
+		m.gauge(Gauge.ACTIVE_SESSIONS, () -> clients.size(State.CONNECTED));
+		m.gauge(Gauge.QUARANTINED_SESSIONS, () -> clients.size(State.QUARANTINED));
+		this.metrics = m;
+	}
+
+	/**
+	 * Forwards unfiltered broadcasts, tenant-sends and topic-publishes to the
+	 * other nodes of the cluster and delivers theirs to the local clients. The
+	 * handler has to have the same name on all nodes.
+	 */
+	public void setCluster(WsCluster cluster) {
+		this.cluster = cluster;
+		if (cluster != null)
+			cluster.register(name, this);
+	}
+
+	/**
+	 * Sets the coarse timer used for deadlines like the retention of resumable
+	 * sessions. Usually the one shared by all handlers of a
+	 * {@link WebsocketServer}.
+	 */
+	public void setTimer(WsTimerWheel timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Enforces the connection-caps and connect-rates on this handler's sessions;
+	 * pass the same instance to all handlers sharing the caps.
+	 */
+	public void setAdmission(WsAdmission admission) {
+		this.admission = admission;
+		if (admission != null)
+			admission.register(this);
+	}
+
+	/**
+	 * Limits the messages and bytes each client may send per second and what
+	 * happens to messages beyond; null turns it off.
+	 */
+	public void setInboundLimitConfig(WsInboundLimitConfig inboundLimitConfig) {
+		this.inboundLimitConfig = inboundLimitConfig;
+	}
+
+	/**
+	 * Sets the codec {@link #decoded(WsContext)} and {@link #encode(Object)} use.
+	 */
+	public void setCodec(WsCodec<?> codec) {
+		this.codec = codec;
+	}
+
+	public WsCodec<?> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * The text- or binary-message decoded by the codec. It's decoded on the first
+	 * call and cached for the rest of the handling of this frame, so every
+	 * consumer shares a single parse.
+	 *
+	 * @throws Exception the one the codec threw, on every call for this frame
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T decoded(WsContext ctx) throws Exception {
+		WsCodec<?> c = codec;
+		if (c == null)
+			throw new IllegalStateException("(" + name + ") No codec set.");
+		WsClient client = clients.get(ctx.session);
+		return (T) (client == null ? decode(c, ctx) : client.decode(ctx, c));
+	}
+
+	static Object decode(WsCodec<?> codec, WsContext frame) throws Exception {
+		if (frame instanceof WsMessageContext)
+			return codec.decode(((WsMessageContext) frame).message());
+		if (frame instanceof WsBinaryMessageContext)
+			return codec.decode(view((WsBinaryMessageContext) frame));
+		throw new IllegalArgumentException("Only messages can be decoded.");
+	}
+
+	/**
+	 * Encodes a message with the codec, ready to be sent, broadcast or published.
+	 */
+	@SuppressWarnings("unchecked")
+	public WsPreparedMessage encode(Object message) {
+		WsCodec<Object> c = (WsCodec<Object>) codec;
+		if (c == null)
+			throw new IllegalStateException("(" + name + ") No codec set.");
+		return c.encode(message);
+	}
+
+	/**
+	 * Closes every session connecting from now on with 1001 (going away) and a
+	 * reconnect-hint, see {@link WebsocketServer#stop(WsDrainConfig)}.
+	 */
+	public void drain(WsDrainConfig drain) {
+		this.draining = drain;
+	}
+
+	public boolean isDraining() {
+		return draining != null;
+	}
+
+	/**
+	 * @return the open sessions in any state
+	 */
+	public List<Session> getSessions() {
+		List<Session> result = new ArrayList<>(clients.size());
+		for (WsClient client : clients.all())
+			if (client.ctx.session.isOpen())
+				result.add(client.ctx.session);
+		return result;
+	}
+
+	/**
+	 * @return the number of messages waiting in the outbound queues of all
+	 *         sessions
+	 */
+	public int getQueuedMessages() {
+		int sum = 0;
+		for (WsClient client : clients.all()) {
+			WsOutboundQueue q = client.outbound();
+			if (q != null)
+				sum += q.depth();
+		}
+		return sum;
+	}
+
+	/**
+	 * Sets the deadline, cap and message-size limit for clients connecting
+	 * without a token. Only affects clients connecting afterwards. Without one,
+	 * which is the default, such clients stay quarantined until they send a
+	 * token or disconnect.
+	 */
+	public void setQuarantineConfig(WsQuarantineConfig quarantineConfig) {
+		this.quarantineConfig = quarantineConfig;
+	}
+
+	/**
+	 * Makes sessions resumable after a reconnect, see {@link WsResumeConfig}.
+	 * Only affects clients connecting afterwards; null turns it off.
+	 */
+	public void setResumeConfig(WsResumeConfig resumeConfig) {
+		this.resumes = resumeConfig == null ? null : new WsResumeStore(resumeConfig);
+	}
+
+	/**
+	 * Called once a client of a handler with resumption turned on is connected.
+	 *
+	 * @param resumed false, if the client starts a new session and needs the full
+	 *                state; true, if missed messages were replayed
+	 */
+	protected void onResumption(WsConnectContext ctx, boolean resumed) throws Exception {
+	}
+
 	public void removeClient(Session session) {
-		log.debug("(" + name + ") Removing client: [{}]", session.getRemoteAddress());
-		clientsConnected.removeIf(client -> client.session.equals(session));
-		clientsQuarantined.removeIf(client -> client.session.equals(session));
-		tenantIdsBySession.remove(session);
+		log.debug("({}) Removing client: [{}]", name, session.getRemoteAddress());
+		WsClient client = clients.remove(session);
+		if (client != null)
+			client.release();
+		WsAdmission a = admission;
+		if (a != null)
+			a.release(session);
+		tenants.remove(session);
+		WsResumeStore store = resumes;
+		WsResumeSession resume = client == null ? null : client.resume;
+		if (store != null && resume != null)
+			store.detach(resume, client, topics.subscriptionsOf(session), timer);
+		topics.remove(session);
+	}
+
+	public String getTenantId(Session session) {
+		return tenants.tenantOf(session);
+	}
+
+	/**
+	 * Returns the connected clients of the given tenant. Runs in time
+	 * proportional to the number of sessions of that tenant.
+	 */
+	public List<WsConnectContext> getClientsOfTenant(String tenantId) {
+		Set<Session> sessions = tenants.sessionsOf(tenantId);
+		List<WsConnectContext> result = new ArrayList<>(sessions.size());
+		for (Session session : sessions) {
+			WsConnectContext client = clients.get(session, State.CONNECTED);
+			if (client != null)
+				result.add(client);
+		}
+		return result;
+	}
+
+	public boolean send(Session session, String message) {
+		return send(session, WsPreparedMessage.text(message), null);
+	}
+
+	public boolean send(Session session, WsPreparedMessage message) {
+		return send(session, message, null);
+	}
+
+	public boolean send(Session session, ByteBuffer data) {
+		return send(session, WsPreparedMessage.binary(data), null);
+	}
+
+	/**
+	 * Enqueues the data without copying it. The buffer must not be changed until
+	 * the callback was called.
+	 */
+	@Override
+	public boolean send(Session session, ByteBuffer data, WriteCallback callback) {
+		return send(session, WsPreparedMessage.binary(data), callback);
+	}
+
+	/**
+	 * Enqueues the message on the outbound queue of a connected client. Never
+	 * blocks; what happens if the queue is full is defined by the
+	 * {@link WsOutboundQueueConfig}.
+	 *
+	 * @return true, if the message was enqueued
+	 */
+	public boolean send(Session session, WsPreparedMessage message, WriteCallback callback) {
+		WsClient client = clients.get(session);
+		if (client == null || client.state != State.CONNECTED || !session.isOpen())
+			return false;
+		WsResumeSession resume = client.resume;
+		WsOutboundQueue.Result r = resume == null ? outbound(client).offer(message, callback)
+				: resume.offer(message, 0, callback);
+		if (r != WsOutboundQueue.Result.ENQUEUED)
+			return false;
+		metrics.increment(Counter.MESSAGES_OUT, 1);
+		metrics.increment(Counter.BYTES_OUT, message.size());
+		return true;
+	}
+
+	/**
+	 * @return the number of messages waiting to be written to the session
+	 */
+	public int getQueueDepth(Session session) {
+		WsClient client = clients.get(session);
+		if (client == null || client.outbound() == null)
+			return 0;
+		return client.outbound().depth();
+	}
+
+	/**
+	 * @return the number of payload bytes waiting to be written to the session
+	 */
+	public long getQueuedBytes(Session session) {
+		WsClient client = clients.get(session);
+		if (client == null || client.outbound() == null)
+			return 0;
+		return client.outbound().bytes();
+	}
+
+	public WsBroadcastResult broadcast(String message) {
+		return broadcast(WsPreparedMessage.text(message), null);
+	}
+
+	public WsBroadcastResult broadcast(String message, Predicate<WsConnectContext> filter) {
+		return broadcast(WsPreparedMessage.text(message), filter);
+	}
+
+	public WsBroadcastResult broadcast(WsPreparedMessage message) {
+		return broadcast(message, null);
+	}
+
+	/**
+	 * Sends the message to all connected clients matching the filter (all of them,
+	 * if the filter is null). The payload is encoded only once, closed sessions
+	 * are skipped.
+	 * <p>
+	 * Filters can't cross nodes, so only unfiltered broadcasts are forwarded to
+	 * the cluster; the result covers the local clients.
+	 */
+	public WsBroadcastResult broadcast(WsPreparedMessage message, Predicate<WsConnectContext> filter) {
+		WsBroadcastResult result = broadcastLocally(message, filter);
+		if (filter == null && cluster != null)
+			cluster.forward(name, Scope.ALL, null, message);
+		return result;
+	}
+
+	private WsBroadcastResult broadcastLocally(WsPreparedMessage message, Predicate<WsConnectContext> filter) {
+		WsResumeStore store = resumes;
+		long broadcast = store == null ? 0 : store.nextBroadcast();
+		WsBroadcastResult result = new WsBroadcastResult();
+		for (WsClient client : clients.all()) {
+			if (client.state != State.CONNECTED || filter != null && !filter.test(client.ctx))
+				continue;
+			deliver(client, message, result, broadcast);
+		}
+		if (store != null)
+			for (WsResumeSession resume : store.unconnected())
+				if (!resume.isConnected() && (filter == null || filter.test(resume.context())))
+					resume.offer(message, broadcast, null);
+		countSent(message, result);
+		return result;
+	}
+
+	public WsBroadcastResult broadcastToTenant(String tenantId, String message) {
+		return broadcastToTenant(tenantId, WsPreparedMessage.text(message));
+	}
+
+	/**
+	 * Sends the message to all connected clients of the given tenant. Runs in time
+	 * proportional to the number of sessions of that tenant.
+	 */
+	public WsBroadcastResult broadcastToTenant(String tenantId, WsPreparedMessage message) {
+		WsBroadcastResult result = broadcastToTenantLocally(tenantId, message);
+		if (cluster != null)
+			cluster.forward(name, Scope.TENANT, tenantId, message);
+		return result;
+	}
+
+	private WsBroadcastResult broadcastToTenantLocally(String tenantId, WsPreparedMessage message) {
+		WsResumeStore store = resumes;
+		long broadcast = store == null ? 0 : store.nextBroadcast();
+		WsBroadcastResult result = new WsBroadcastResult();
+		for (Session session : tenants.sessionsOf(tenantId)) {
+			WsClient client = clients.get(session);
+			if (client != null && client.state == State.CONNECTED)
+				deliver(client, message, result, broadcast);
+		}
+		if (store != null)
+			for (WsResumeSession resume : store.unconnected())
+				if (!resume.isConnected() && resume.tenantId.equals(tenantId))
+					resume.offer(message, broadcast, null);
+		countSent(message, result);
+		return result;
+	}
+
+	/**
+	 * Subscribes a connected client to a topic or, if the pattern ends with
+	 * {@link WsTopicIndex#WILDCARD}, to all topics starting with that prefix.
+	 * Subscriptions are dropped when the client is removed.
+	 *
+	 * @return false, if the client isn't connected or was subscribed already
+	 */
+	public boolean subscribe(Session session, String pattern) {
+		if (!clients.is(session, State.CONNECTED))
+			return false;
+		boolean added = topics.subscribe(session, pattern);
+		// The client may have been removed in the meantime; don't leave a stale entry.
+		if (added && !clients.is(session, State.CONNECTED))
+			topics.remove(session);
+		return added;
+	}
+
+	public boolean unsubscribe(Session session, String pattern) {
+		return topics.unsubscribe(session, pattern);
+	}
+
+	public Set<String> getSubscriptions(Session session) {
+		return topics.subscriptionsOf(session);
+	}
+
+	public WsBroadcastResult publish(String topic, String message) {
+		return publish(topic, WsPreparedMessage.text(message));
+	}
+
+	/**
+	 * Sends the message to all connected clients subscribed to the topic. Runs
+	 * in time proportional to the number of subscribers.
+	 */
+	public WsBroadcastResult publish(String topic, WsPreparedMessage message) {
+		WsBroadcastResult result = publishLocally(topic, message);
+		if (cluster != null)
+			cluster.forward(name, Scope.TOPIC, topic, message);
+		return result;
+	}
+
+	private WsBroadcastResult publishLocally(String topic, WsPreparedMessage message) {
+		WsResumeStore store = resumes;
+		long broadcast = store == null ? 0 : store.nextBroadcast();
+		WsBroadcastResult result = new WsBroadcastResult();
+		for (Session session : topics.subscribersOf(topic)) {
+			WsClient client = clients.get(session);
+			if (client != null && client.state == State.CONNECTED)
+				deliver(client, message, result, broadcast);
+		}
+		if (store != null)
+			for (WsResumeSession resume : store.unconnected())
+				if (!resume.isConnected() && resume.isSubscribed(topic))
+					resume.offer(message, broadcast, null);
+		countSent(message, result);
+		return result;
+	}
+
+	/**
+	 * Delivers a message another node of the cluster sent to its local clients.
+	 */
+	void deliverFromCluster(WsClusterMessage m) {
+		switch (m.getScope()) {
+		case ALL:
+			broadcastLocally(m.getMessage(), null);
+			break;
+		case TENANT:
+			broadcastToTenantLocally(m.getKey(), m.getMessage());
+			break;
+		case TOPIC:
+			publishLocally(m.getKey(), m.getMessage());
+			break;
+		}
+	}
+
+	private void countSent(WsPreparedMessage message, WsBroadcastResult result) {
+		int sent = result.getAttempted();
+		if (sent == 0)
+			return;
+		metrics.increment(Counter.MESSAGES_OUT, sent);
+		metrics.increment(Counter.BYTES_OUT, (long) sent * message.size());
+	}
+
+	/**
+	 * @param broadcast see {@link WsResumeSession#offer(WsPreparedMessage, long, WriteCallback)}
+	 */
+	private void deliver(WsClient client, WsPreparedMessage message, WsBroadcastResult result, long broadcast) {
+		if (!client.ctx.session.isOpen()) {
+			result.skipped();
+			return;
+		}
+		WsResumeSession resume = client.resume;
+		WsOutboundQueue.Result r = resume == null ? outbound(client).offer(message, result)
+				: resume.offer(message, broadcast, result);
+		if (r == null)
+			return;
+		if (r == WsOutboundQueue.Result.ENQUEUED)
+			result.attempted();
+		else
+			result.failed();
+	}
+
+	private void startHeartbeat(Session session) {
+		if (heartbeat == null)
+			return;
+		WsClient client = clients.get(session);
+		if (client != null)
+			client.heartbeat(
+					heartbeat.register(session, name, () -> metrics.increment(Counter.HEARTBEAT_FAILURES, 1)));
 	}
 
 	public WsConnectContext getClient(Session session) {
-		log.debug("(" + name + ") Getting client: [{}]", session.getRemoteAddress());
-		return clientsConnected.stream().filter(client -> client.session.equals(session)).findFirst().orElse(null);
+		log.debug("({}) Getting client: [{}]", name, session.getRemoteAddress());
+		return clients.get(session, State.CONNECTED);
 	}
 
 	public WsConnectContext getQuarantinedClient(Session session) {
-		log.debug("(" + name + ") Getting quarantined client: [{}]", session.getRemoteAddress());
-		return clientsQuarantined.stream().filter(client -> client.session.equals(session)).findFirst().orElse(null);
+		log.debug("({}) Getting quarantined client: [{}]", name, session.getRemoteAddress());
+		return clients.get(session, State.QUARANTINED);
 	}
 
 	public boolean isQuarantined(Session session) {
-		log.debug("(" + name + ") Checking if client is quarantined: [{}]", session.getRemoteAddress());
-		return clientsQuarantined.stream().anyMatch(client -> client.session.equals(session));
+		log.debug("({}) Checking if client is quarantined: [{}]", name, session.getRemoteAddress());
+		return clients.is(session, State.QUARANTINED);
 	}
 
 	public boolean isConnected(Session session) {
-		log.debug("(" + name + ") Checking if client is connected: [{}]", session.getRemoteAddress());
-		return clientsConnected.stream().anyMatch(client -> client.session.equals(session));
+		log.debug("({}) Checking if client is connected: [{}]", name, session.getRemoteAddress());
+		return clients.is(session, State.CONNECTED);
+	}
+
+	/**
+	 * Validates the token, consulting the token-cache first, if there is one.
+	 *
+	 * @return the tenant-id of the token
+	 */
+	protected String checkAccess(String token) throws Exception {
+		long start = System.nanoTime();
+		try {
+			if (tokenCache == null)
+				return tokenHandler.checkAccess(token);
+			return tokenCache.checkAccess(token, tokenHandler::checkAccess);
+		} catch (Exception e) {
+			metrics.increment(Counter.AUTH_FAILURES, 1);
+			throw e;
+		} finally {
+			metrics.recordNanos(Timer.AUTH, System.nanoTime() - start);
+		}
 	}
 
 	@Override
@@ -98,81 +636,457 @@ public class WsOauthHandlerBase extends WsHandlerBase {
 	}
 
 	protected void handleConnect(WsConnectContext ctx) throws Exception {
-		log.debug("(" + name + ") New client tries to connect: [{}]", ctx.session.getRemoteAddress());
+		log.debug("({}) New client tries to connect: [{}]", name, ctx.session.getRemoteAddress());
+		metrics.increment(Counter.CONNECTS, 1);
+		WsDrainConfig drain = draining;
+		if (drain != null) {
+			ctx.session.close(1001, drain.closeReason(name));
+			return;
+		}
+		WsAdmission a = admission;
+		if (a != null) {
+			String rejected = a.admit(this, ctx.session);
+			if (rejected != null) {
+				reject(a, ctx.session, rejected);
+				return;
+			}
+		}
 		String token = ctx.header("Authorization");
 		if (token == null || token.isEmpty()) {
-			log.warn("(" + name + ") No token provided for client: [{}]\nSending connection into quarantine.",
+			quarantine(ctx);
+			return;
+		}
+		log.debug("({}) New client token: [{}]", name, token);
+		if (authExecutor != null) {
+			clients.add(ctx, State.PENDING);
+			authenticateAsync(ctx, token);
+			return;
+		}
+		String tenantId;
+		try {
+			tenantId = checkAccess(token);
+		} catch (Exception e) {
+			log.debug("({}) Token validation failed for client [{}]. Disconnecting.",
+					name, ctx.session.getRemoteAddress(), e);
+			ctx.session.close(1000, "(" + name + ") Unauthorized access with invalid token");
+			return;
+		}
+		if (!admitTenant(ctx.session, tenantId))
+			return;
+		tenants.put(ctx.session, tenantId);
+		WsResumeStore store = resumes;
+		if (store == null) {
+			clients.add(ctx, State.CONNECTED);
+			startHeartbeat(ctx.session);
+			return;
+		}
+		clients.add(ctx, State.PENDING);
+		startHeartbeat(ctx.session);
+		WsClient client = clients.get(ctx.session);
+		boolean resumed = resume(store, client, tenantId);
+		if (clients.transition(ctx.session, State.PENDING, State.CONNECTED) != null)
+			resumed(store, client, resumed);
+	}
+
+	/**
+	 * Closes the session, if the tenant reached its connection-cap.
+	 */
+	private boolean admitTenant(Session session, String tenantId) {
+		WsAdmission a = admission;
+		String rejected = a == null ? null : a.admitTenant(session, tenantId);
+		if (rejected == null)
+			return true;
+		removeClient(session);
+		reject(a, session, rejected);
+		return false;
+	}
+
+	private void reject(WsAdmission a, Session session, String why) {
+		log.debug("({}) Rejecting client [{}]: {}", name, session.getRemoteAddress(), why);
+		metrics.increment(Counter.ADMISSION_REJECTS, 1);
+		session.close(a.getConfig().getCloseCode(), a.reason(name, why));
+	}
+
+	private void quarantine(WsConnectContext ctx) {
+		WsQuarantineConfig config = quarantineConfig;
+		if (!clients.tryAdd(ctx, State.QUARANTINED, config == null ? Integer.MAX_VALUE : config.getMaxSessions())) {
+			log.warn("({}) Quarantine full. Rejecting client [{}] without token.", name,
 					ctx.session.getRemoteAddress());
-			clientsQuarantined.add(ctx);
+			metrics.increment(Counter.QUARANTINE_EVICTIONS, 1);
+			ctx.session.close(1013, "(" + name + ") Server busy, try again later");
+			return;
+		}
+		log.warn("({}) No token provided for client: [{}]\nSending connection into quarantine.",
+				name, ctx.session.getRemoteAddress());
+		WsClient client = config == null ? null : clients.get(ctx.session);
+		if (client == null)
+			return;
+		client.limitMessages(config.getMaxMessageSize());
+		WsTimerWheel t = timer;
+		if (t != null)
+			client.deadline(t.schedule(() -> expireQuarantine(client), config.getDeadlineNanos(),
+					TimeUnit.NANOSECONDS));
+	}
+
+	private void expireQuarantine(WsClient client) {
+		Session session = client.ctx.session;
+		if (clients.remove(session, State.QUARANTINED) == null)
 			return;
+		client.release();
+		log.debug("({}) Client [{}] sent no token within the quarantine-deadline. Disconnecting.", name,
+				session.getRemoteAddress());
+		metrics.increment(Counter.QUARANTINE_EVICTIONS, 1);
+		session.close(1008, "(" + name + ") No token within the quarantine-deadline");
+	}
+
+	/**
+	 * Lifts the restrictions of the quarantine once the client left it.
+	 */
+	private static void leaveQuarantine(WsClient client) {
+		client.cancelDeadline();
+		client.restoreLimits();
+	}
+
+	/**
+	 * Attaches the client, which must not be connected yet, to the session named
+	 * by its resume-token or, if there's none to resume, to a new one.
+	 *
+	 * @return true, if an existing session was resumed
+	 */
+	private boolean resume(WsResumeStore store, WsClient client, String tenantId) {
+		WsConnectContext ctx = client.ctx;
+		String control = store.config().getControlMessage();
+		String token = ctx.header(WsResumeConfig.TOKEN_HEADER);
+		if (token == null)
+			token = ctx.queryParam(WsResumeConfig.TOKEN_PARAM);
+		long lastSeq = parseSeq(ctx);
+		WsResumeSession resume = token == null || lastSeq < 0 ? null : store.find(token, tenantId);
+		if (resume != null) {
+			WsClient previous;
+			int replayed;
+			synchronized (resume) {
+				previous = resume.client();
+				replayed = resume.attach(client, outbound(client), lastSeq, true, control);
+			}
+			if (replayed >= 0) {
+				client.resume = resume;
+				Set<String> subscriptions = resume.subscriptions();
+				if (previous != null && previous != client) {
+					// The old connection is dead, we just didn't notice yet.
+					previous.resume = null;
+					subscriptions = new HashSet<>(topics.subscriptionsOf(previous.ctx.session));
+					previous.ctx.session.close(1000, "(" + name + ") Session resumed on another connection");
+				}
+				for (String pattern : subscriptions)
+					topics.subscribe(ctx.session, pattern);
+				if (clients.get(ctx.session) == null)
+					topics.remove(ctx.session);
+				metrics.increment(Counter.RESUMES, 1);
+				log.debug("({}) Client [{}] resumed its session, replaying [{}] messages.", name,
+						ctx.session.getRemoteAddress(), replayed);
+				return true;
+			}
+			log.debug("({}) Client [{}] can't resume its session from [{}]. Starting a new one.", name,
+					ctx.session.getRemoteAddress(), lastSeq);
+		}
+		resume = store.create(tenantId);
+		resume.attach(client, outbound(client), 0, false, control);
+		client.resume = resume;
+		return false;
+	}
+
+	private static long parseSeq(WsConnectContext ctx) {
+		String seq = ctx.header(WsResumeConfig.SEQ_HEADER);
+		if (seq == null)
+			seq = ctx.queryParam(WsResumeConfig.SEQ_PARAM);
+		if (seq == null)
+			return -1;
+		try {
+			return Long.parseLong(seq.trim());
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-		log.debug("(" + name + ") New client token: [{}]", token);
+	}
+
+	private void resumed(WsResumeStore store, WsClient client, boolean resumed) {
+		WsResumeSession resume = client.resume;
+		if (resume != null)
+			store.connected(resume);
+		try {
+			onResumption(client.ctx, resumed);
+		} catch (Exception e) {
+			log.error("({}) Error in onResumption of [{}].", name, client.ctx.session.getRemoteAddress(), e);
+		}
+	}
+
+	private void authenticateAsync(WsConnectContext ctx, String token) {
+		if (authExecutor.submit(() -> completeAuthentication(ctx, token)))
+			return;
+		log.warn("({}) Authentication queue full. Shedding client [{}].", name, ctx.session.getRemoteAddress());
+		removeClient(ctx.session);
+		ctx.session.close(1013, "(" + name + ") Server busy, try again later");
+	}
+
+	private void completeAuthentication(WsConnectContext ctx, String token) {
+		String tenantId;
 		try {
-			String tenantId = tokenHandler.checkAccess(token);
-			tenantIdsBySession.put(ctx.session, tenantId);
-			clientsConnected.add(ctx);
+			tenantId = checkAccess(token);
 		} catch (Exception e) {
-			log.debug("(" + name + ") Token validation failed for client [{}]. Disconnecting.",
-					ctx.session.getRemoteAddress(), e);
+			log.debug("({}) Token validation failed for client [{}]. Disconnecting.",
+					name, ctx.session.getRemoteAddress(), e);
+			removeClient(ctx.session);
 			ctx.session.close(1000, "(" + name + ") Unauthorized access with invalid token");
 			return;
 		}
+		if (!admitTenant(ctx.session, tenantId))
+			return;
+		tenants.put(ctx.session, tenantId);
+		WsClient client = clients.get(ctx.session);
+		if (client == null || client.state != State.PENDING) {
+			// Closed while validating; removeClient may have run before the put above.
+			tenants.remove(ctx.session);
+			return;
+		}
+		startHeartbeat(ctx.session);
+		WsResumeStore store = resumes;
+		boolean resumed = store != null && resume(store, client, tenantId);
+		WsContext frame;
+		while ((frame = client.nextEarlyFrame(clients)) != null) {
+			try {
+				dispatch(frame);
+			} catch (Exception e) {
+				log.error("({}) Error handling buffered message of [{}].", name, ctx.session.getRemoteAddress(),
+						e);
+			}
+		}
+		if (store != null && client.state == State.CONNECTED)
+			resumed(store, client, resumed);
+		log.debug("({}) Client [{}] passed token validation.", name, ctx.session.getRemoteAddress());
+	}
+
+	/**
+	 * @return true, if the frame should be handled right away
+	 */
+	private boolean admitWhilePending(WsClient client, WsContext frame) {
+		switch (client.bufferIfPending(frame, authExecutor == null ? 0 : authExecutor.getMaxEarlyFrames())) {
+		case BUFFERED:
+			return false;
+		case REJECTED:
+			log.warn("({}) Client [{}] sent too many messages before authentication finished. Disconnecting.",
+					name, frame.session.getRemoteAddress());
+			removeClient(frame.session);
+			frame.session.close(1008, "(" + name + ") Message before authentication finished");
+			return false;
+		default:
+			return true;
+		}
 	}
 
+	private void dispatch(WsContext frame) throws Exception {
+		if (frame instanceof WsMessageContext)
+			handle((WsMessageContext) frame);
+		else if (frame instanceof WsBinaryMessageContext)
+			handle((WsBinaryMessageContext) frame);
+	}
+
+	private void handle(WsMessageContext ctx) throws Exception {
+		long start = System.nanoTime();
+		try {
+			onMsg(ctx);
+		} finally {
+			metrics.recordNanos(Timer.HANDLER, System.nanoTime() - start);
+			clearDecoded(ctx);
+		}
+	}
+
+	private void handle(WsBinaryMessageContext ctx) throws Exception {
+		long start = System.nanoTime();
+		try {
+			onBinaryMsg(ctx);
+		} finally {
+			metrics.recordNanos(Timer.HANDLER, System.nanoTime() - start);
+			clearDecoded(ctx);
+		}
+	}
+
+	private void clearDecoded(WsContext ctx) {
+		if (codec == null)
+			return;
+		WsClient client = clients.get(ctx.session);
+		if (client != null)
+			client.clearDecoded(ctx);
+	}
+
+	/**
+	 * Called with every text message that passed authentication and the inbound
+	 * checks of {@link #handleMessage(WsMessageContext)}. Does nothing by
+	 * default; override it to handle text messages.
+	 */
 	@Override
 	public void onMsg(WsMessageContext ctx) throws Exception {
-		handleMessage(ctx);
 	}
 
 	protected void handleMessage(WsMessageContext ctx) throws Exception {
-		log.debug("(" + name + ") Received from [{}]: [{}]", ctx.session.getRemoteAddress(), ctx.message());
-		if (isQuarantined(ctx.session)) {
-			log.warn(
-					"(" + name
-							+ ") Client [{}] is quarantined, checking message for standard authorization-bearer-token.",
-					ctx.session.getRemoteAddress());
-			if (ctx.message() == null || !ctx.message().startsWith("Bearer ")) {
-				log.warn("(" + name + ") Invalid message from quarantined client [{}]. Disconnecting.",
-						ctx.session.getRemoteAddress());
+		metrics.increment(Counter.MESSAGES_IN, 1);
+		// UTF-8 bytes, like binary messages; only counted if anything's recorded.
+		if (metrics != WsMetricsRegistry.Endpoint.NOOP && ctx.message() != null)
+			metrics.increment(Counter.BYTES_IN, WsBinarySchema.utf8Length(ctx.message()));
+		if (messageLogSampling > 0)
+			logSampled(ctx, ctx.message() == null ? 0 : ctx.message().length());
+		else if (log.isDebugEnabled())
+			log.debug("({}) Received from [{}]: [{}]", name, ctx.session.getRemoteAddress(), ctx.message());
+		WsClient client = clients.get(ctx.session);
+		State state = client == null ? null : client.state;
+		if (state == State.PENDING && !admitWhilePending(client, ctx))
+			return;
+		if (state == State.QUARANTINED) {
+			log.warn("({}) Client [{}] is quarantined, checking message for standard authorization-bearer-token.",
+					name, ctx.session.getRemoteAddress());
+			if (ctx.message() == null || ctx.message().length() > quarantineConfig.getMaxMessageSize()
+					|| !ctx.message().startsWith("Bearer ")) {
+				log.warn("({}) Invalid message from quarantined client [{}]. Disconnecting.",
+						name, ctx.session.getRemoteAddress());
+				metrics.increment(Counter.QUARANTINE_EVICTIONS, 1);
 				removeClient(ctx.session);
 				ctx.session.close(1000, "(" + name + ") Unauthorized access from quarantined client");
 				return;
 			}
+			if (authExecutor != null) {
+				if (clients.transition(ctx.session, State.QUARANTINED, State.PENDING) != null) {
+					leaveQuarantine(client);
+					authenticateAsync(client.ctx, ctx.message());
+				}
+				return;
+			}
 			try {
-				String tenantId = tokenHandler.checkAccess(ctx.message());
-				tenantIdsBySession.put(ctx.session, tenantId);
-				WsConnectContext client = getQuarantinedClient(ctx.session);
-				clientsQuarantined.removeIf(c -> c.session.equals(ctx.session));
-				clientsConnected.add(client);
-				log.debug("(" + name + ") Client [{}] passed token validation. Moving from quarantine to connected.",
-						ctx.session.getRemoteAddress());
+				String tenantId = checkAccess(ctx.message());
+				if (!admitTenant(ctx.session, tenantId))
+					return;
+				tenants.put(ctx.session, tenantId);
+				WsResumeStore store = resumes;
+				if (clients.transition(ctx.session, State.QUARANTINED,
+						store == null ? State.CONNECTED : State.PENDING) == null) {
+					log.debug("({}) Client [{}] left quarantine before token validation finished.",
+							name, ctx.session.getRemoteAddress());
+					tenants.remove(ctx.session);
+					return;
+				}
+				leaveQuarantine(client);
+				startHeartbeat(ctx.session);
+				if (store != null) {
+					boolean resumed = resume(store, client, tenantId);
+					if (clients.transition(ctx.session, State.PENDING, State.CONNECTED) != null)
+						resumed(store, client, resumed);
+				}
+				log.debug("({}) Client [{}] passed token validation. Moving from quarantine to connected.",
+						name, ctx.session.getRemoteAddress());
 				return;
 			} catch (Throwable e) {
-				log.warn("(" + name + ") Token validation failed for client [{}]. Disconnecting.",
-						ctx.session.getRemoteAddress(), e);
+				log.warn("({}) Token validation failed for client [{}]. Disconnecting.",
+						name, ctx.session.getRemoteAddress(), e);
 				ctx.session.close(1000, "(" + name + ") Unauthorized access with invalid token");
 				return;
 			}
 		}
-		onMsg(ctx);
+		if (client != null && !admitInbound(client, ctx, ctx.message() == null ? 0 : ctx.message().length()))
+			return;
+		handle(ctx);
 	}
 
-	@Override
-	public void onBinaryMsg(WsBinaryMessageContext ctx) throws Exception {
-		handleBinaryMessage(ctx);
+	protected void handleBinaryMessage(WsBinaryMessageContext ctx) throws Exception {
+		metrics.increment(Counter.MESSAGES_IN, 1);
+		metrics.increment(Counter.BYTES_IN, ctx.length());
+		if (messageLogSampling > 0)
+			logSampled(ctx, ctx.length());
+		else if (log.isDebugEnabled())
+			log.debug("({}) Received binary message from [{}]: [{}] bytes", name, ctx.session.getRemoteAddress(),
+					ctx.length());
+		WsClient client = clients.get(ctx.session);
+		State state = client == null ? null : client.state;
+		if (state == State.PENDING && !admitWhilePending(client, ctx))
+			return;
+		if (state == State.QUARANTINED) {
+			log.warn("({}) Invalid Message from quarantined client [{}]. Disconnecting.",
+					name, ctx.session.getRemoteAddress());
+			metrics.increment(Counter.QUARANTINE_EVICTIONS, 1);
+			removeClient(ctx.session);
+			ctx.session.close(1000, "(" + name + ") Unauthorized access from quarantined client");
+			return;
+		}
+		if (client != null && !admitInbound(client, ctx, ctx.length()))
+			return;
+		handle(ctx);
 	}
 
-	protected void handleBinaryMessage(WsBinaryMessageContext ctx) throws Exception {
-		log.debug("(" + name + ") Received binary message from [{}]: [{}] bytes", ctx.session.getRemoteAddress(),
-				ctx.data().length);
-		if (isQuarantined(ctx.session)) {
-			log.warn("(" + name + ") Invalid Message from quarantined client [{}]. Disconnecting.",
+	/**
+	 * Applies the inbound-limits of the session to a message.
+	 *
+	 * @return false, if the message must not be handled
+	 */
+	private boolean admitInbound(WsClient client, WsContext ctx, int size) {
+		WsInboundLimitConfig config = inboundLimitConfig;
+		if (config == null)
+			return true;
+		WsInboundLimiter limiter = client.inbound(config);
+		long now = System.nanoTime();
+		WsTimerWheel t = timer;
+		if (config.getAction() == WsInboundLimitConfig.Action.SUSPEND && t != null) {
+			// Every message is handled, including the one exceeding the limits and
+			// those read before the suspension took effect, so every one is charged.
+			// The debt keeps the session suspended until it's paid off.
+			if (!limiter.charge(size, now) && limiter.suspend())
+				suspend(ctx.session, limiter, t, limiter.nanosUntilAvailable(now));
+			return true;
+		}
+		if (limiter.tryAcquire(size, now))
+			return true;
+		switch (config.getAction()) {
+		case CLOSE:
+			metrics.increment(Counter.INBOUND_LIMITED, 1);
+			log.debug("({}) Client [{}] exceeded its inbound-limits. Disconnecting.", name,
 					ctx.session.getRemoteAddress());
 			removeClient(ctx.session);
-			ctx.session.close(1000, "(" + name + ") Unauthorized access from quarantined client");
+			ctx.session.close(config.getCloseCode(), "(" + name + ") " + config.getCloseReason());
+			return false;
+		default:
+			break;
+		}
+		metrics.increment(Counter.INBOUND_LIMITED, 1);
+		return false;
+	}
+
+	private void suspend(Session session, WsInboundLimiter limiter, WsTimerWheel t, long nanos) {
+		metrics.increment(Counter.INBOUND_LIMITED, 1);
+		SuspendToken token;
+		try {
+			token = session.suspend();
+		} catch (RuntimeException e) {
+			limiter.resumed();
+			log.debug("({}) Suspending reads of [{}] failed.", name, session.getRemoteAddress(), e);
 			return;
 		}
-		onBinaryMsg(ctx);
+		t.schedule(() -> resumeWhenAvailable(limiter, token, t), nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Resumes reading once the buckets have room again; messages charged while
+	 * suspended may have pushed that further out.
+	 */
+	private void resumeWhenAvailable(WsInboundLimiter limiter, SuspendToken token, WsTimerWheel t) {
+		long nanos = limiter.nanosUntilAvailable(System.nanoTime());
+		if (nanos > 0) {
+			t.schedule(() -> resumeWhenAvailable(limiter, token, t), nanos, TimeUnit.NANOSECONDS);
+			return;
+		}
+		limiter.resumed();
+		if (token != null)
+			token.resume();
+	}
+
+	private void logSampled(WsContext ctx, int size) {
+		long n = sampledMessages.incrementAndGet();
+		if (n % messageLogSampling == 0 && log.isInfoEnabled())
+			log.info("({}) Sampled message #{} from session [{}], size [{}]", name, n, ctx.getSessionId(), size);
 	}
 
 	@Override
@@ -181,7 +1095,7 @@ public class WsOauthHandlerBase extends WsHandlerBase {
 	}
 
 	protected void handleClose(WsCloseContext ctx) throws Exception {
-		log.debug("(" + name + ") Disconnected client: [{}]", ctx.session.getRemoteAddress());
+		log.debug("({}) Disconnected client: [{}]", name, ctx.session.getRemoteAddress());
 		removeClient(ctx.session);
 	}
 
@@ -193,9 +1107,9 @@ public class WsOauthHandlerBase extends WsHandlerBase {
 	protected void handleError(WsErrorContext ctx) throws Exception {
 		Throwable t = ctx.error();
 		if (t instanceof EOFException || t instanceof IOException) {
-			log.debug("(" + name + ") Client disconnected [{}].", ctx.session.getRemoteAddress());
+			log.debug("({}) Client disconnected [{}].", name, ctx.session.getRemoteAddress());
 		} else {
-			log.error("(" + name + ") Unexpected error on [{}].", ctx.session.getRemoteAddress(), t);
+			log.error("({}) Unexpected error on [{}].", name, ctx.session.getRemoteAddress(), t);
 		}
 		removeClient(ctx.session);
 	}
@@ -0,0 +1,360 @@
+package info.unterrainer.websocketserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import info.unterrainer.websocketserver.WsOutboundQueueConfig.Overflow;
+
+/**
+ * Bounded outbound queue of a single session.
+ * <p>
+ * At most one write per session is handed to Jetty at a time, the rest waits
+ * here. Enqueuing never blocks the caller, so a stalled client only ever fills
+ * its own queue and runs into the configured {@link Overflow} action.
+ * <p>
+ * With a {@link WsBatchConfig} everything queued behind a write in flight goes
+ * out together with the next one, see {@link #batch(WsBatchConfig, WsTimerWheel)}.
+ */
+public class WsOutboundQueue {
+
+	public enum Result {
+		ENQUEUED,
+		DROPPED,
+		DISCONNECTED
+	}
+
+	/**
+	 * Handed to Jetty as the callback of its own frame, so a completion always
+	 * settles the entry it belongs to.
+	 */
+	private final class Entry implements WriteCallback {
+		final WsPreparedMessage message;
+		final WriteCallback callback;
+
+		Entry(WsPreparedMessage message, WriteCallback callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+
+		@Override
+		public void writeSuccess() {
+			completed(Collections.singletonList(this), null);
+		}
+
+		@Override
+		public void writeFailed(Throwable x) {
+			completed(Collections.singletonList(this), x);
+		}
+	}
+
+	private final Session session;
+	private final WsOutboundQueueConfig config;
+
+	private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+	private long bytes;
+	private int inFlight;
+	private boolean closed;
+
+	private WsBatchConfig batch;
+	private WsTimerWheel timer;
+	private WsTimerWheel.Timeout flushTimeout;
+
+	public WsOutboundQueue(Session session, WsOutboundQueueConfig config) {
+		this.session = session;
+		this.config = config;
+	}
+
+	/**
+	 * Turns coalescing on or, with null, off again.
+	 *
+	 * @param timer used to wait for the configured delay; without one, only
+	 *              messages queued behind a write in flight are coalesced
+	 */
+	public synchronized void batch(WsBatchConfig batch, WsTimerWheel timer) {
+		this.batch = batch;
+		this.timer = timer;
+	}
+
+	/**
+	 * Enqueues the message and starts writing it, if the session is idle.
+	 *
+	 * @param callback notified when the message was written, failed or got
+	 *                 dropped; may be null
+	 */
+	public Result offer(WsPreparedMessage message, WriteCallback callback) {
+		Entry entry = new Entry(message, callback);
+		List<Entry> dropped = null;
+		boolean accepted = true;
+		boolean disconnect = false;
+		boolean wait = false;
+		synchronized (this) {
+			if (closed)
+				accepted = false;
+			else if (isFull(message.size())) {
+				switch (config.getOverflow()) {
+				case DROP_NEWEST:
+					accepted = false;
+					break;
+				case DROP_OLDEST:
+					dropped = new ArrayList<>(1);
+					Entry oldest;
+					while (isFull(message.size()) && (oldest = dropOldest()) != null)
+						dropped.add(oldest);
+					// Nothing left to drop but the messages currently written.
+					accepted = !isFull(message.size());
+					break;
+				case DISCONNECT:
+					accepted = false;
+					disconnect = true;
+					break;
+				}
+			}
+			if (accepted) {
+				queue.addLast(entry);
+				bytes += message.size();
+				wait = awaitBatch();
+			}
+		}
+		if (dropped != null)
+			for (Entry e : dropped)
+				fail(e, "Outbound queue full, message dropped");
+		if (disconnect) {
+			fail(entry, "Outbound queue full, disconnecting slow consumer");
+			disconnect();
+			return Result.DISCONNECTED;
+		}
+		if (!accepted) {
+			fail(entry, "Outbound queue full, message dropped");
+			return Result.DROPPED;
+		}
+		if (!wait)
+			pump();
+		return Result.ENQUEUED;
+	}
+
+	/**
+	 * @return the number of messages waiting or being written
+	 */
+	public synchronized int depth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of payload bytes waiting or being written
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Discards all pending messages and rejects further ones. The messages in
+	 * flight stay until Jetty reports whether they were written.
+	 */
+	public void close() {
+		List<Entry> pending = new ArrayList<>();
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			cancelFlush();
+			Entry e;
+			while ((e = dropOldest()) != null)
+				pending.add(e);
+		}
+		for (Entry e : pending)
+			fail(e, "Session closed");
+	}
+
+	/**
+	 * Completes the entries handed to Jetty and starts the next write once
+	 * nothing is in flight any more.
+	 */
+	private void completed(List<Entry> entries, Throwable failure) {
+		for (Entry done : complete(entries))
+			if (done.callback != null) {
+				if (failure == null)
+					done.callback.writeSuccess();
+				else
+					done.callback.writeFailed(failure);
+			}
+		pump();
+	}
+
+	/**
+	 * Decides whether a message on an idle session waits for others to batch
+	 * with and arms the flush, if so.
+	 */
+	private boolean awaitBatch() {
+		if (batch == null || timer == null || batch.getMaxDelayNanos() == 0 || inFlight > 0)
+			return false;
+		if (bytes >= batch.getMaxBytes()) {
+			cancelFlush();
+			return false;
+		}
+		if (flushTimeout == null)
+			flushTimeout = timer.schedule(this::flush, batch.getMaxDelayNanos(), TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	private void flush() {
+		synchronized (this) {
+			flushTimeout = null;
+		}
+		pump();
+	}
+
+	private void cancelFlush() {
+		if (flushTimeout != null) {
+			flushTimeout.cancel();
+			flushTimeout = null;
+		}
+	}
+
+	private boolean isFull(int additionalBytes) {
+		return queue.size() >= config.getMaxMessages()
+				|| !queue.isEmpty() && bytes + additionalBytes > config.getMaxBytes();
+	}
+
+	private Entry dropOldest() {
+		// The entries at the head are already handed to Jetty while in flight.
+		if (queue.size() <= inFlight)
+			return null;
+		Iterator<Entry> it = queue.iterator();
+		for (int i = 0; i < inFlight; i++)
+			it.next();
+		Entry oldest = it.next();
+		it.remove();
+		bytes -= oldest.message.size();
+		return oldest;
+	}
+
+	/**
+	 * @return the entries still queued; one completed twice is skipped
+	 */
+	private synchronized List<Entry> complete(List<Entry> entries) {
+		List<Entry> done = new ArrayList<>(entries.size());
+		for (Entry e : entries)
+			// In flight, so near the head; the entries have no equals().
+			if (queue.removeFirstOccurrence(e)) {
+				inFlight--;
+				bytes -= e.message.size();
+				done.add(e);
+			}
+		return done;
+	}
+
+	private void pump() {
+		List<Entry> next = new ArrayList<>(1);
+		WsBatchEnvelope envelope;
+		synchronized (this) {
+			if (inFlight > 0 || closed || queue.isEmpty() || flushTimeout != null && !budgetReached())
+				return;
+			cancelFlush();
+			envelope = batch == null ? null : batch.getEnvelope();
+			long size = 0;
+			for (Entry e : queue) {
+				if (!next.isEmpty() && (batch == null || size + e.message.size() > batch.getMaxBytes()
+						|| envelope != null && !(envelope.accepts(e.message) && envelope.accepts(next.get(0).message))))
+					break;
+				next.add(e);
+				size += e.message.size();
+			}
+			inFlight = next.size();
+		}
+		// An envelope wraps every message it accepts, even on its own, so each of
+		// its frames is a batch to the client.
+		if (envelope != null && envelope.accepts(next.get(0).message))
+			writeEnveloped(envelope, next);
+		else if (next.size() == 1)
+			write(next.get(0));
+		else
+			writeGathered(next);
+	}
+
+	private boolean budgetReached() {
+		return batch != null && bytes >= batch.getMaxBytes();
+	}
+
+	private void write(Entry entry) {
+		try {
+			entry.message.sendTo(session, entry);
+		} catch (Exception e) {
+			entry.writeFailed(e);
+		}
+	}
+
+	private void writeEnveloped(WsBatchEnvelope envelope, List<Entry> entries) {
+		List<WsPreparedMessage> messages = new ArrayList<>(entries.size());
+		for (Entry e : entries)
+			messages.add(e.message);
+		try {
+			envelope.wrap(messages).sendTo(session, new WriteCallback() {
+				@Override
+				public void writeSuccess() {
+					completed(entries, null);
+				}
+
+				@Override
+				public void writeFailed(Throwable x) {
+					completed(entries, x);
+				}
+			});
+		} catch (Exception e) {
+			completed(entries, e);
+		}
+	}
+
+	/**
+	 * Hands all frames to Jetty, which keeps them until the last one arrives and
+	 * writes them at once.
+	 */
+	private void writeGathered(List<Entry> entries) {
+		int last = entries.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			Entry entry = entries.get(i);
+			try {
+				entry.message.sendTo(session, entry, i < last ? BatchMode.ON : BatchMode.OFF);
+			} catch (Exception e) {
+				// The frames before are Jetty's and complete through their own
+				// callbacks; only the rest was never sent.
+				completed(entries.subList(i, last + 1), e);
+				if (i > 0)
+					flushHeld();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the frames Jetty keeps for the frame that failed to follow them.
+	 */
+	private void flushHeld() {
+		try {
+			session.getRemote().flush();
+		} catch (Exception ignore) {
+			// Jetty fails the frames it still holds when the session closes.
+		}
+	}
+
+	private void disconnect() {
+		close();
+		try {
+			session.close(config.getCloseCode(), config.getCloseReason());
+		} catch (Exception ignore) {
+		}
+	}
+
+	private static void fail(Entry entry, String reason) {
+		if (entry.callback != null)
+			entry.callback.writeFailed(new IOException(reason));
+	}
+}
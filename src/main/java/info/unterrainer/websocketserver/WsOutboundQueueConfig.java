@@ -0,0 +1,83 @@
+package info.unterrainer.websocketserver;
+
+/**
+ * Limits and overflow-behavior of the per-session outbound queues of a
+ * {@link WsOauthHandlerBase}.
+ */
+public class WsOutboundQueueConfig {
+
+	public enum Overflow {
+		/**
+		 * Discards the oldest message that isn't being written yet.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Discards the message that should be enqueued.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Closes the session with the configured close-code.
+		 */
+		DISCONNECT
+	}
+
+	private int maxMessages = 1024;
+	private long maxBytes = 16L * 1024 * 1024;
+	private Overflow overflow = Overflow.DISCONNECT;
+	private int closeCode = 1008;
+	private String closeReason = "Slow consumer";
+
+	public static WsOutboundQueueConfig defaults() {
+		return new WsOutboundQueueConfig();
+	}
+
+	public WsOutboundQueueConfig maxMessages(int maxMessages) {
+		if (maxMessages < 1)
+			throw new IllegalArgumentException("maxMessages must be at least 1.");
+		this.maxMessages = maxMessages;
+		return this;
+	}
+
+	public WsOutboundQueueConfig maxBytes(long maxBytes) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes must be at least 1.");
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	public WsOutboundQueueConfig overflow(Overflow overflow) {
+		if (overflow == null)
+			throw new IllegalArgumentException("overflow must not be null.");
+		this.overflow = overflow;
+		return this;
+	}
+
+	/**
+	 * Close-code and reason used with {@link Overflow#DISCONNECT}.
+	 */
+	public WsOutboundQueueConfig disconnectWith(int closeCode, String closeReason) {
+		this.closeCode = closeCode;
+		this.closeReason = closeReason;
+		return this;
+	}
+
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	public String getCloseReason() {
+		return closeReason;
+	}
+}
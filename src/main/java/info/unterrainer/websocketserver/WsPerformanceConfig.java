@@ -0,0 +1,148 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Jetty settings of a {@link WebsocketServer} creating its own Javalin
+ * instance. The defaults are the ones of Jetty; -1 for acceptors and selectors
+ * lets Jetty derive them from the number of cores.
+ */
+public class WsPerformanceConfig {
+
+	private int minThreads = 8;
+	private int maxThreads = 200;
+	private int threadIdleTimeoutMillis = 60_000;
+	private boolean virtualThreads;
+	private int acceptors = -1;
+	private int selectors = -1;
+	private long idleTimeoutMillis = 300_000;
+	private int maxTextMessageSize = 65_536;
+	private int maxBinaryMessageSize = 65_536;
+	private int inputBufferSize = 4_096;
+
+	public static WsPerformanceConfig defaults() {
+		return new WsPerformanceConfig();
+	}
+
+	/**
+	 * The size of the pool running the acceptors, selectors and handlers.
+	 */
+	public WsPerformanceConfig threads(int minThreads, int maxThreads) {
+		if (minThreads < 1)
+			throw new IllegalArgumentException("minThreads must be at least 1.");
+		if (maxThreads < minThreads)
+			throw new IllegalArgumentException("maxThreads must not be less than minThreads.");
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		return this;
+	}
+
+	/**
+	 * How long threads above minThreads may idle before they're stopped.
+	 */
+	public WsPerformanceConfig threadIdleTimeout(long timeout, TimeUnit unit) {
+		long millis = unit.toMillis(timeout);
+		if (millis < 1 || millis > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("timeout must be between 1ms and Integer.MAX_VALUE ms.");
+		this.threadIdleTimeoutMillis = (int) millis;
+		return this;
+	}
+
+	/**
+	 * Runs every task on its own virtual thread instead of a bounded pool, see
+	 * {@link WsVirtualThreadPool}. The thread-settings are ignored then.
+	 */
+	public WsPerformanceConfig virtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+
+	public WsPerformanceConfig acceptors(int acceptors) {
+		if (acceptors < -1)
+			throw new IllegalArgumentException("acceptors must be -1 (auto) or more.");
+		this.acceptors = acceptors;
+		return this;
+	}
+
+	public WsPerformanceConfig selectors(int selectors) {
+		if (selectors < -1 || selectors == 0)
+			throw new IllegalArgumentException("selectors must be -1 (auto) or at least 1.");
+		this.selectors = selectors;
+		return this;
+	}
+
+	/**
+	 * How long connections and websocket-sessions may idle before they're
+	 * closed.
+	 */
+	public WsPerformanceConfig idleTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("timeout must be positive.");
+		this.idleTimeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	public WsPerformanceConfig maxTextMessageSize(int bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("maxTextMessageSize must be positive.");
+		this.maxTextMessageSize = bytes;
+		return this;
+	}
+
+	public WsPerformanceConfig maxBinaryMessageSize(int bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("maxBinaryMessageSize must be positive.");
+		this.maxBinaryMessageSize = bytes;
+		return this;
+	}
+
+	/**
+	 * The size of the buffer frames are read into.
+	 */
+	public WsPerformanceConfig inputBufferSize(int bytes) {
+		if (bytes < 1)
+			throw new IllegalArgumentException("inputBufferSize must be positive.");
+		this.inputBufferSize = bytes;
+		return this;
+	}
+
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public int getThreadIdleTimeoutMillis() {
+		return threadIdleTimeoutMillis;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public int getSelectors() {
+		return selectors;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public int getMaxTextMessageSize() {
+		return maxTextMessageSize;
+	}
+
+	public int getMaxBinaryMessageSize() {
+		return maxBinaryMessageSize;
+	}
+
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+}
@@ -0,0 +1,146 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.common.WebSocketFrame;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.frames.BinaryFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+
+/**
+ * A message that is encoded exactly once and may then be written to any number
+ * of sessions.
+ * <p>
+ * Text is converted to UTF-8 on creation. Every recipient gets a new frame
+ * pointing to a read-only view of the same payload, so fan-out neither
+ * re-encodes nor copies the data.
+ * <p>
+ * The frames are handed to Jetty's internal frame-API. If a Jetty-version
+ * doesn't have it, messages are sent through the public {@link RemoteEndpoint}
+ * instead.
+ */
+public final class WsPreparedMessage {
+
+	private static final boolean FRAMES = framesAvailable();
+
+	private final boolean isText;
+	private volatile String text;
+	private final ByteBuffer payload;
+
+	private WsPreparedMessage(boolean isText, String text, ByteBuffer payload) {
+		this.isText = isText;
+		this.text = text;
+		this.payload = payload.asReadOnlyBuffer();
+	}
+
+	public static WsPreparedMessage text(String text) {
+		if (text == null)
+			throw new IllegalArgumentException("Text must not be null.");
+		return new WsPreparedMessage(true, text, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * A text-message from its UTF-8 encoded payload. The buffer is not copied;
+	 * its content must not be changed as long as the message may still be sent.
+	 */
+	public static WsPreparedMessage utf8(ByteBuffer encoded) {
+		if (encoded == null)
+			throw new IllegalArgumentException("Data must not be null.");
+		return new WsPreparedMessage(true, null, encoded);
+	}
+
+	/**
+	 * The buffer is not copied. Its content must not be changed as long as the
+	 * message may still be sent.
+	 */
+	public static WsPreparedMessage binary(ByteBuffer data) {
+		if (data == null)
+			throw new IllegalArgumentException("Data must not be null.");
+		return new WsPreparedMessage(false, null, data);
+	}
+
+	public boolean isText() {
+		return isText;
+	}
+
+	/**
+	 * @return the text of a text-message, null for binary messages
+	 */
+	public String getText() {
+		if (!isText)
+			return null;
+		String t = text;
+		if (t == null)
+			text = t = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+		return t;
+	}
+
+	/**
+	 * @return a fresh read-only view of the encoded payload
+	 */
+	public ByteBuffer getPayload() {
+		return payload.duplicate();
+	}
+
+	/**
+	 * @return the size of the encoded payload in bytes
+	 */
+	public int size() {
+		return payload.remaining();
+	}
+
+	/**
+	 * Writes the message to the session asynchronously.
+	 */
+	public void sendTo(Session session, WriteCallback callback) {
+		RemoteEndpoint remote = session.getRemote();
+		if (FRAMES && remote instanceof WebSocketRemoteEndpoint) {
+			((WebSocketRemoteEndpoint) remote).uncheckedSendFrame(frame(), callback);
+			return;
+		}
+		if (isText())
+			remote.sendString(getText(), callback);
+		else
+			remote.sendBytes(payload.duplicate(), callback);
+	}
+
+	/**
+	 * Like {@link #sendTo(Session, WriteCallback)}, but with
+	 * {@link BatchMode#ON} Jetty keeps the frame until one with
+	 * {@link BatchMode#OFF} follows and writes them all at once.
+	 */
+	void sendTo(Session session, WriteCallback callback, BatchMode batchMode) {
+		if (FRAMES && session instanceof WebSocketSession) {
+			((WebSocketSession) session).getOutgoingHandler().outgoingFrame(frame(), callback, batchMode);
+			return;
+		}
+		sendTo(session, callback);
+	}
+
+	/**
+	 * Checked once, so a missing or changed class falls back to the public API
+	 * instead of failing every send.
+	 */
+	private static boolean framesAvailable() {
+		try {
+			WebSocketRemoteEndpoint.class.getMethod("uncheckedSendFrame", WebSocketFrame.class, WriteCallback.class);
+			WebSocketSession.class.getMethod("getOutgoingHandler");
+			new TextFrame().setPayload(ByteBuffer.allocate(0));
+			return true;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return false;
+		}
+	}
+
+	private WebSocketFrame frame() {
+		WebSocketFrame frame = isText() ? new TextFrame() : new BinaryFrame();
+		frame.setPayload(payload.duplicate());
+		return frame;
+	}
+}
@@ -0,0 +1,65 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits for clients connecting without a token, which are quarantined until
+ * they send one as their first message, see
+ * {@link WsOauthHandlerBase#setQuarantineConfig(WsQuarantineConfig)}.
+ */
+public class WsQuarantineConfig {
+
+	private long deadlineNanos = TimeUnit.SECONDS.toNanos(10);
+	private int maxSessions = 10_000;
+	private int maxMessageSize = 16 * 1024;
+
+	public static WsQuarantineConfig defaults() {
+		return new WsQuarantineConfig();
+	}
+
+	/**
+	 * How long a client may stay quarantined before it's closed. Enforced by the
+	 * timer of the handler; without one, clients stay until they send something.
+	 */
+	public WsQuarantineConfig deadline(long deadline, TimeUnit unit) {
+		if (deadline < 1)
+			throw new IllegalArgumentException("deadline must be positive.");
+		this.deadlineNanos = unit.toNanos(deadline);
+		return this;
+	}
+
+	/**
+	 * The number of clients quarantined at once; more are closed right away with
+	 * 1013 (try again later).
+	 */
+	public WsQuarantineConfig maxSessions(int maxSessions) {
+		if (maxSessions < 0)
+			throw new IllegalArgumentException("maxSessions must not be negative.");
+		this.maxSessions = maxSessions;
+		return this;
+	}
+
+	/**
+	 * The size of a message a quarantined client may send. Also lowers the
+	 * limits of the session itself, so Jetty refuses larger ones with 1009
+	 * before buffering them.
+	 */
+	public WsQuarantineConfig maxMessageSize(int maxMessageSize) {
+		if (maxMessageSize < 1)
+			throw new IllegalArgumentException("maxMessageSize must be at least 1.");
+		this.maxMessageSize = maxMessageSize;
+		return this;
+	}
+
+	public long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+}
@@ -0,0 +1,86 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token-bucket, implemented as generic cell rate algorithm: a single
+ * {@link AtomicLong} holds the time the bucket will be full again, so
+ * acquiring is lock-free and allocation-free.
+ */
+public class WsRateLimiter {
+
+	private final long intervalNanos;
+	private final long toleranceNanos;
+	private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * @param perSecond the rate tokens are refilled with
+	 * @param burst     the capacity of the bucket
+	 */
+	public WsRateLimiter(double perSecond, int burst) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("perSecond must be positive.");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst must be at least 1.");
+		this.intervalNanos = Math.max(1, (long) (1_000_000_000d / perSecond));
+		this.toleranceNanos = intervalNanos * burst;
+	}
+
+	public boolean tryAcquire() {
+		return tryAcquire(1, System.nanoTime());
+	}
+
+	/**
+	 * @return false, if there aren't enough tokens; none are taken then
+	 */
+	public boolean tryAcquire(int permits, long now) {
+		long cost = intervalNanos * permits;
+		while (true) {
+			long current = fullAt.get();
+			long next = Math.max(current, now) + cost;
+			if (next - now > toleranceNanos)
+				return false;
+			if (fullAt.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Takes the tokens even if there aren't enough, for work that is done
+	 * anyway. The bucket runs into debt, which delays later acquisitions until
+	 * it is paid off.
+	 *
+	 * @return false, if there weren't enough tokens
+	 */
+	public boolean acquire(int permits, long now) {
+		long cost = intervalNanos * permits;
+		while (true) {
+			long current = fullAt.get();
+			long next = Math.max(current, now) + cost;
+			if (fullAt.compareAndSet(current, next))
+				return next - now <= toleranceNanos;
+		}
+	}
+
+	/**
+	 * Gives back tokens taken by an acquisition whose work isn't done after all.
+	 * A bucket that refilled meanwhile stays full.
+	 */
+	public void release(int permits) {
+		fullAt.addAndGet(-intervalNanos * permits);
+	}
+
+	/**
+	 * @return true, if the bucket is full, so dropping it loses nothing
+	 */
+	public boolean isIdle(long now) {
+		return fullAt.get() <= now;
+	}
+
+	/**
+	 * @return how long until a single token is available, 0 if there is one
+	 */
+	public long nanosUntilAvailable(long now) {
+		return Math.max(0, Math.max(fullAt.get(), now) + intervalNanos - toleranceNanos - now);
+	}
+}
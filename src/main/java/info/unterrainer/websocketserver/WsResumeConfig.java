@@ -0,0 +1,93 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session-resumption of an OAuth-handler, see
+ * {@link WsOauthHandlerBase#setResumeConfig(WsResumeConfig)}.
+ * <p>
+ * Once connected, a client first receives a control-message carrying its
+ * resume-token and the sequence-number its counter starts at; every message
+ * after that is numbered consecutively. Reconnecting with the token and the
+ * number of the last message it received (headers {@value #TOKEN_HEADER} and
+ * {@value #SEQ_HEADER} or query-parameters {@value #TOKEN_PARAM} and
+ * {@value #SEQ_PARAM}), it gets the messages it missed replayed, as long as
+ * they are still buffered and it's within the retention.
+ * <p>
+ * Messages an outbound-queue drops are buffered anyway, so clients should
+ * reconnect if they see a gap.
+ */
+public class WsResumeConfig {
+
+	public static final String TOKEN_HEADER = "Resume-Token";
+	public static final String SEQ_HEADER = "Resume-Seq";
+	public static final String TOKEN_PARAM = "resumeToken";
+	public static final String SEQ_PARAM = "resumeSeq";
+
+	private int maxMessages = 256;
+	private long maxBytes = 256 * 1024;
+	private long retentionNanos = TimeUnit.MINUTES.toNanos(2);
+	private String controlMessage = "{\"resume\":{\"token\":\"%s\",\"seq\":%d,\"resumed\":%b}}";
+
+	public static WsResumeConfig defaults() {
+		return new WsResumeConfig();
+	}
+
+	/**
+	 * The number of recent messages kept per session.
+	 */
+	public WsResumeConfig maxMessages(int maxMessages) {
+		if (maxMessages < 1)
+			throw new IllegalArgumentException("maxMessages must be at least 1.");
+		this.maxMessages = maxMessages;
+		return this;
+	}
+
+	/**
+	 * The payload-bytes kept per session. The latest message is always kept.
+	 */
+	public WsResumeConfig maxBytes(long maxBytes) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes must be at least 1.");
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * How long a session can be resumed after its connection was closed.
+	 */
+	public WsResumeConfig retention(long retention, TimeUnit unit) {
+		if (retention < 1)
+			throw new IllegalArgumentException("retention must be positive.");
+		this.retentionNanos = unit.toNanos(retention);
+		return this;
+	}
+
+	/**
+	 * A {@link String#format(String, Object...)}-pattern getting the token, the
+	 * sequence-number of the last message before the next one and whether the
+	 * session was resumed (if not, the client needs the full state).
+	 */
+	public WsResumeConfig controlMessage(String pattern) {
+		if (pattern == null)
+			throw new IllegalArgumentException("pattern must not be null.");
+		this.controlMessage = pattern;
+		return this;
+	}
+
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getRetentionNanos() {
+		return retentionNanos;
+	}
+
+	public String getControlMessage() {
+		return controlMessage;
+	}
+}
@@ -0,0 +1,142 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import info.unterrainer.websocketserver.WsClient.State;
+import io.javalin.websocket.WsConnectContext;
+
+/**
+ * A session that survives reconnects: its resume-token, a ring-buffer of its
+ * latest numbered messages and the client currently attached, if any. While
+ * detached, messages are only buffered.
+ */
+final class WsResumeSession {
+
+	final String token;
+	final String tenantId;
+	private final WsPreparedMessage[] ring;
+	private final long maxBytes;
+
+	private long seq;
+	private int count;
+	private long bytes;
+	private long lastBroadcast;
+	private WsClient client;
+	private WsOutboundQueue queue;
+	private WsConnectContext ctx;
+	private Set<String> subscriptions = Collections.emptySet();
+	private long detachedAt;
+
+	WsResumeSession(String token, String tenantId, WsResumeConfig config) {
+		this.token = token;
+		this.tenantId = tenantId;
+		this.ring = new WsPreparedMessage[config.getMaxMessages()];
+		this.maxBytes = config.getMaxBytes();
+		this.detachedAt = System.nanoTime();
+	}
+
+	/**
+	 * Numbers and buffers the message and enqueues it, if a client is attached.
+	 *
+	 * @param broadcast the id of the broadcast the message is part of, so it's
+	 *                  taken only once, or 0
+	 * @return the result of the outbound-queue or null, if the message was only
+	 *         buffered or taken already
+	 */
+	synchronized WsOutboundQueue.Result offer(WsPreparedMessage message, long broadcast, WriteCallback callback) {
+		if (broadcast != 0) {
+			if (broadcast == lastBroadcast)
+				return null;
+			lastBroadcast = broadcast;
+		}
+		append(message);
+		return queue == null ? null : queue.offer(message, callback);
+	}
+
+	private void append(WsPreparedMessage message) {
+		while (count > 0 && (count == ring.length || bytes + message.size() > maxBytes)) {
+			int oldest = (int) ((seq - count) % ring.length);
+			bytes -= ring[oldest].size();
+			ring[oldest] = null;
+			count--;
+		}
+		ring[(int) (seq % ring.length)] = message;
+		seq++;
+		count++;
+		bytes += message.size();
+	}
+
+	/**
+	 * Attaches the client, sends it the control-message and replays what came
+	 * after lastSeq.
+	 *
+	 * @return the number of messages replayed or -1, if lastSeq isn't buffered
+	 *         (anymore)
+	 */
+	synchronized int attach(WsClient client, WsOutboundQueue queue, long lastSeq, boolean resumed,
+			String controlMessage) {
+		if (lastSeq < seq - count || lastSeq > seq)
+			return -1;
+		this.client = client;
+		this.queue = queue;
+		this.ctx = client.ctx;
+		queue.offer(WsPreparedMessage.text(String.format(controlMessage, token, lastSeq, resumed)), null);
+		for (long s = lastSeq; s < seq; s++)
+			queue.offer(ring[(int) (s % ring.length)], null);
+		return (int) (seq - lastSeq);
+	}
+
+	/**
+	 * @return false, if another client was attached meanwhile
+	 */
+	synchronized boolean detach(WsClient client, Set<String> subscriptions) {
+		if (this.client != client)
+			return false;
+		this.client = null;
+		this.queue = null;
+		this.subscriptions = subscriptions;
+		detachedAt = System.nanoTime();
+		return true;
+	}
+
+	synchronized WsClient client() {
+		return client;
+	}
+
+	synchronized long seq() {
+		return seq;
+	}
+
+	synchronized Set<String> subscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * @return the context of the client attached last, for broadcast-filters
+	 */
+	synchronized WsConnectContext context() {
+		return ctx;
+	}
+
+	boolean isConnected() {
+		WsClient c = client();
+		return c != null && c.state == State.CONNECTED;
+	}
+
+	synchronized boolean isSubscribed(String topic) {
+		for (String pattern : subscriptions)
+			if (WsTopicIndex.matches(pattern, topic))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return how long no client was attached or -1, if one is
+	 */
+	synchronized long detachedFor(long now) {
+		return client == null ? now - detachedAt : -1;
+	}
+}
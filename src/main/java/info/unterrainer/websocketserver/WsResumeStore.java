@@ -0,0 +1,125 @@
+package info.unterrainer.websocketserver;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resumable sessions of one handler by their token. Keeps the ones not
+ * connected at the moment apart, so broadcasts can buffer for them in time
+ * proportional to their number.
+ */
+final class WsResumeStore {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final WsResumeConfig config;
+	private final Map<String, WsResumeSession> byToken = new ConcurrentHashMap<>();
+	private final Set<WsResumeSession> unconnected = ConcurrentHashMap.newKeySet();
+	private final AtomicLong broadcasts = new AtomicLong();
+
+	WsResumeStore(WsResumeConfig config) {
+		this.config = config;
+	}
+
+	WsResumeConfig config() {
+		return config;
+	}
+
+	WsResumeSession create(String tenantId) {
+		byte[] bytes = new byte[18];
+		RANDOM.nextBytes(bytes);
+		WsResumeSession session = new WsResumeSession(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+				tenantId, config);
+		byToken.put(session.token, session);
+		unconnected.add(session);
+		return session;
+	}
+
+	/**
+	 * @return the session, if it exists, belongs to the tenant and didn't expire
+	 */
+	WsResumeSession find(String token, String tenantId) {
+		WsResumeSession session = byToken.get(token);
+		if (session == null || !session.tenantId.equals(tenantId))
+			return null;
+		if (session.detachedFor(System.nanoTime()) >= config.getRetentionNanos()) {
+			expire(session);
+			return null;
+		}
+		synchronized (session) {
+			unconnected.add(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Stops buffering broadcasts separately for the session once its client is
+	 * connected and reached by them directly.
+	 */
+	void connected(WsResumeSession session) {
+		synchronized (session) {
+			if (session.isConnected())
+				unconnected.remove(session);
+		}
+	}
+
+	/**
+	 * Detaches the client and starts the retention, using the timer if there is
+	 * one. Without, expired sessions are swept here.
+	 */
+	void detach(WsResumeSession session, WsClient client, Set<String> subscriptions, WsTimerWheel timer) {
+		synchronized (session) {
+			if (!session.detach(client, subscriptions))
+				return;
+			unconnected.add(session);
+		}
+		if (timer != null) {
+			expireIfDue(session, timer);
+			return;
+		}
+		long now = System.nanoTime();
+		for (WsResumeSession s : unconnected)
+			if (s.detachedFor(now) >= config.getRetentionNanos())
+				expire(s);
+	}
+
+	private void expireIfDue(WsResumeSession session, WsTimerWheel timer) {
+		long detached = session.detachedFor(System.nanoTime());
+		if (detached < 0)
+			return;
+		if (detached >= config.getRetentionNanos())
+			expire(session);
+		else
+			timer.schedule(() -> expireIfDue(session, timer), config.getRetentionNanos() - detached,
+					TimeUnit.NANOSECONDS);
+	}
+
+	private void expire(WsResumeSession session) {
+		synchronized (session) {
+			if (session.client() != null)
+				return;
+			byToken.remove(session.token, session);
+			unconnected.remove(session);
+		}
+	}
+
+	/**
+	 * @return the sessions without a connected client
+	 */
+	Iterable<WsResumeSession> unconnected() {
+		return unconnected;
+	}
+
+	long nextBroadcast() {
+		return broadcasts.incrementAndGet();
+	}
+
+	int size() {
+		return byToken.size();
+	}
+}
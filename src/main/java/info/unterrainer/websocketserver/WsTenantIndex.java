@@ -0,0 +1,104 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Thread-safe, bidirectional mapping between sessions and tenants.
+ * <p>
+ * Both directions are answered in constant time. Writes for a single session
+ * are serialized by {@link ConcurrentHashMap#compute}, so the two maps never
+ * disagree about a session for longer than that call.
+ */
+public class WsTenantIndex {
+
+	private final ConcurrentHashMap<Session, String> tenantBySession = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Set<Session>> sessionsByTenant = new ConcurrentHashMap<>();
+
+	private final Map<Session, String> tenantBySessionView = Collections.unmodifiableMap(tenantBySession);
+
+	/**
+	 * Assigns the session to the given tenant, moving it away from the tenant it
+	 * was assigned to before, if any.
+	 */
+	public void put(Session session, String tenantId) {
+		if (tenantId == null) {
+			remove(session);
+			return;
+		}
+		tenantBySession.compute(session, (s, previous) -> {
+			if (previous != null && !previous.equals(tenantId))
+				detach(previous, s);
+			attach(tenantId, s);
+			return tenantId;
+		});
+	}
+
+	/**
+	 * @return the tenant the session was assigned to or null
+	 */
+	public String remove(Session session) {
+		String[] removed = new String[1];
+		tenantBySession.computeIfPresent(session, (s, tenantId) -> {
+			detach(tenantId, s);
+			removed[0] = tenantId;
+			return null;
+		});
+		return removed[0];
+	}
+
+	public String tenantOf(Session session) {
+		return tenantBySession.get(session);
+	}
+
+	/**
+	 * A live, read-only view of all sessions of the given tenant. Empty if the
+	 * tenant has no sessions.
+	 */
+	public Set<Session> sessionsOf(String tenantId) {
+		if (tenantId == null)
+			return Collections.emptySet();
+		Set<Session> sessions = sessionsByTenant.get(tenantId);
+		if (sessions == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(sessions);
+	}
+
+	public Set<String> tenants() {
+		return Collections.unmodifiableSet(sessionsByTenant.keySet());
+	}
+
+	public int size() {
+		return tenantBySession.size();
+	}
+
+	/**
+	 * A live, read-only view of the session to tenant direction.
+	 */
+	public Map<Session, String> asMap() {
+		return tenantBySessionView;
+	}
+
+	/**
+	 * Adds within compute, so a concurrent detach can't drop the set in between.
+	 */
+	private void attach(String tenantId, Session session) {
+		sessionsByTenant.compute(tenantId, (t, sessions) -> {
+			if (sessions == null)
+				sessions = ConcurrentHashMap.newKeySet();
+			sessions.add(session);
+			return sessions;
+		});
+	}
+
+	private void detach(String tenantId, Session session) {
+		sessionsByTenant.computeIfPresent(tenantId, (t, sessions) -> {
+			sessions.remove(session);
+			return sessions.isEmpty() ? null : sessions;
+		});
+	}
+}
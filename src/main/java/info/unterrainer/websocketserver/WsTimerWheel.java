@@ -0,0 +1,267 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A hashed timer wheel driven by a single daemon thread.
+ * <p>
+ * Scheduling and cancelling are O(1) and never block. Every tick only the
+ * timeouts in one bucket are looked at, so tens of thousands of pending
+ * timeouts cost next to nothing while they wait. Deadlines are accurate to one
+ * tick.
+ * <p>
+ * Tasks run on the wheel's thread and therefore have to be short and must not
+ * block.
+ */
+@Slf4j
+public class WsTimerWheel {
+
+	private final String name;
+	private final long tickNanos;
+	private final Bucket[] buckets;
+	private final int mask;
+
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	private final Object lifecycle = new Object();
+	private volatile Thread worker;
+	private volatile boolean stopped;
+	private volatile long startTime;
+
+	public WsTimerWheel(String name) {
+		this(name, 100, TimeUnit.MILLISECONDS, 512);
+	}
+
+	/**
+	 * @param wheelSize the number of buckets; rounded up to the next power of two
+	 */
+	public WsTimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be greater than 0.");
+		if (wheelSize <= 0 || wheelSize > 1 << 20)
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^20.");
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize)
+			size <<= 1;
+		buckets = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			buckets[i] = new Bucket();
+		mask = size - 1;
+	}
+
+	/**
+	 * Schedules the task to run once after the given delay. The worker-thread is
+	 * started on first use.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new IllegalArgumentException("Task must not be null.");
+		start();
+		long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+		Timeout timeout = new Timeout(this, task, deadline);
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the duration of one tick in nanoseconds
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * Stops the worker-thread. Pending timeouts are dropped without being run.
+	 * Scheduling afterwards fails.
+	 */
+	public void stop() {
+		Thread w;
+		synchronized (lifecycle) {
+			stopped = true;
+			w = worker;
+		}
+		if (w == null || w == Thread.currentThread())
+			return;
+		w.interrupt();
+		try {
+			w.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void start() {
+		if (worker != null && !stopped)
+			return;
+		synchronized (lifecycle) {
+			if (stopped)
+				throw new IllegalStateException("(" + name + ") Timer wheel was stopped.");
+			if (worker != null)
+				return;
+			startTime = System.nanoTime();
+			Thread t = new Thread(this::run, name);
+			t.setDaemon(true);
+			worker = t;
+			t.start();
+		}
+	}
+
+	private void run() {
+		long tick = 0;
+		while (!stopped) {
+			long deadline = waitForTick(tick);
+			if (deadline < 0)
+				break;
+			removeCancelled();
+			transferPending(tick);
+			expire(buckets[(int) (tick & mask)], deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * @return the tick's deadline relative to the start-time or -1, if stopped
+	 */
+	private long waitForTick(long tick) {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long now = System.nanoTime() - startTime;
+			long sleep = deadline - now;
+			if (sleep <= 0)
+				return now;
+			LockSupport.parkNanos(this, sleep);
+			if (stopped)
+				return -1;
+		}
+	}
+
+	private void transferPending(long tick) {
+		Timeout t;
+		while ((t = pending.poll()) != null) {
+			if (t.state != Timeout.INIT)
+				continue;
+			long calculated = t.deadline / tickNanos;
+			t.remainingRounds = (calculated - tick) / buckets.length;
+			// Deadlines that are already due go to the current bucket.
+			long ticks = Math.max(calculated, tick);
+			buckets[(int) (ticks & mask)].add(t);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null)
+				t.bucket.remove(t);
+		}
+	}
+
+	private void expire(Bucket bucket, long deadline) {
+		Timeout t = bucket.head;
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.remainingRounds <= 0 && t.deadline <= deadline) {
+				bucket.remove(t);
+				t.expire();
+			} else if (t.state == Timeout.CANCELLED)
+				bucket.remove(t);
+			else if (t.remainingRounds > 0)
+				t.remainingRounds--;
+			t = next;
+		}
+	}
+
+	public static final class Timeout {
+
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final WsTimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state = INIT;
+
+		// Only touched by the wheel's thread.
+		private long remainingRounds;
+		private Timeout next;
+		private Timeout prev;
+		private Bucket bucket;
+
+		private Timeout(WsTimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true, if the task was cancelled before it ran
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED))
+				return false;
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, INIT, EXPIRED))
+				return;
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.warn("(" + wheel.name + ") Timer task threw an exception.", e);
+			}
+		}
+	}
+
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null)
+				head = tail = t;
+			else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		void remove(Timeout t) {
+			if (t.bucket != this)
+				return;
+			if (t.prev != null)
+				t.prev.next = t.next;
+			else
+				head = t.next;
+			if (t.next != null)
+				t.next.prev = t.prev;
+			else
+				tail = t.prev;
+			t.next = t.prev = null;
+			t.bucket = null;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package info.unterrainer.websocketserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Bounded cache of successfully validated tokens.
+ * <p>
+ * Entries are keyed by the SHA-256 digest of the token, so the cache never
+ * holds the tokens themselves. An entry lives until the token's {@code exp}
+ * claim or the configured maximum time-to-live, whichever comes first. Tokens
+ * without a readable {@code exp} claim and failed validations are never cached.
+ * <p>
+ * A full cache drops its expired entries at most once per second and otherwise
+ * evicts a few arbitrary ones; if that isn't enough, the token isn't cached.
+ */
+public class WsTokenCache {
+
+	@FunctionalInterface
+	public interface Validator {
+		/**
+		 * @return the tenant-id of the token
+		 */
+		String validate(String token) throws Exception;
+	}
+
+	private static final class Key {
+		private final byte[] digest;
+		private final int hash;
+
+		Key(byte[] digest) {
+			this.digest = digest;
+			this.hash = Arrays.hashCode(digest);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+		}
+	}
+
+	private static final class Entry {
+		final String tenantId;
+		final long expiresAtMillis;
+
+		Entry(String tenantId, long expiresAtMillis) {
+			this.tenantId = tenantId;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+	private static final int MAX_EVICTIONS = 8;
+
+	private final int maxEntries;
+	private final long maxTtlMillis;
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong lastSweep = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public WsTokenCache(int maxEntries, long maxTtl, TimeUnit unit) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be at least 1.");
+		this.maxEntries = maxEntries;
+		this.maxTtlMillis = unit.toMillis(maxTtl);
+	}
+
+	/**
+	 * Returns the tenant-id of a cached token or validates it using the given
+	 * validator and caches the result.
+	 */
+	public String checkAccess(String token, Validator validator) throws Exception {
+		long now = System.currentTimeMillis();
+		Key key = new Key(digest(token));
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			if (entry.expiresAtMillis > now) {
+				hits.increment();
+				return entry.tenantId;
+			}
+			entries.remove(key, entry);
+		}
+		misses.increment();
+
+		String tenantId = validator.validate(token);
+		long exp = expiresAtMillis(token);
+		if (exp > 0 && tenantId != null) {
+			long expiresAt = Math.min(exp, now + maxTtlMillis);
+			if (expiresAt > now && makeRoom(now))
+				entries.put(key, new Entry(tenantId, expiresAt));
+		}
+		return tenantId;
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Runs on every miss of a full cache, so it never scans the entries more
+	 * than once per sweep-interval.
+	 *
+	 * @return false, if there's still no room for another entry
+	 */
+	private boolean makeRoom(long now) {
+		if (entries.size() < maxEntries)
+			return true;
+		sweep(now);
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		for (int i = 0; i < MAX_EVICTIONS && entries.size() >= maxEntries && it.hasNext(); i++) {
+			it.next();
+			it.remove();
+			evictions.increment();
+		}
+		return entries.size() < maxEntries;
+	}
+
+	private void sweep(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now))
+			return;
+		entries.values().removeIf(e -> e.expiresAtMillis <= now);
+	}
+
+	private static byte[] digest(String token) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE has to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads the top-level {@code exp} claim of a JWT without verifying it. Only
+	 * called after the token passed validation.
+	 *
+	 * @return the expiry in epoch-milliseconds or -1, if there is none or it
+	 *         isn't a positive number
+	 */
+	static long expiresAtMillis(String token) {
+		String jwt = token.startsWith("Bearer ") ? token.substring(7).trim() : token.trim();
+		int first = jwt.indexOf('.');
+		int second = first < 0 ? -1 : jwt.indexOf('.', first + 1);
+		if (second < 0)
+			return -1;
+		JsonNode claims;
+		try {
+			claims = MAPPER.readTree(Base64.getUrlDecoder().decode(jwt.substring(first + 1, second)));
+		} catch (IllegalArgumentException | IOException e) {
+			return -1;
+		}
+		if (claims == null || !claims.isObject())
+			return -1;
+		JsonNode exp = claims.get("exp");
+		if (exp == null || !exp.isNumber())
+			return -1;
+		// A NumericDate may carry fractions of a second.
+		double seconds = exp.asDouble();
+		if (!(seconds > 0) || seconds >= Long.MAX_VALUE / 1000)
+			return -1;
+		return (long) (seconds * 1000);
+	}
+}
@@ -0,0 +1,179 @@
+package info.unterrainer.websocketserver;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Thread-safe index of topic-subscriptions.
+ * <p>
+ * A subscription is either an exact topic or a prefix ending in {@code *}, e.g.
+ * {@code sensors/*} or {@code *} for all topics. Looking up the subscribers of
+ * a topic costs one map-lookup for the exact topic plus one per distinct
+ * prefix-length in use, never a scan over all sessions. Writes for a single
+ * session are serialized by {@link ConcurrentHashMap#compute}, like in the
+ * {@link WsTenantIndex}.
+ */
+public class WsTopicIndex {
+
+	public static final String WILDCARD = "*";
+
+	private final ConcurrentHashMap<String, Set<Session>> byTopic = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Set<Session>> byPrefix = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, AtomicInteger> prefixLengths = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Session, Set<String>> bySession = new ConcurrentHashMap<>();
+
+	/**
+	 * @param pattern a topic or a prefix followed by {@link #WILDCARD}
+	 * @return false, if the session was subscribed already
+	 */
+	public boolean subscribe(Session session, String pattern) {
+		if (pattern == null || pattern.isEmpty())
+			throw new IllegalArgumentException("pattern must not be null or empty.");
+		boolean[] added = new boolean[1];
+		bySession.compute(session, (s, patterns) -> {
+			if (patterns == null)
+				patterns = ConcurrentHashMap.newKeySet();
+			if (patterns.add(pattern)) {
+				attach(pattern, s);
+				added[0] = true;
+			}
+			return patterns;
+		});
+		return added[0];
+	}
+
+	/**
+	 * @return false, if the session wasn't subscribed
+	 */
+	public boolean unsubscribe(Session session, String pattern) {
+		boolean[] removed = new boolean[1];
+		bySession.computeIfPresent(session, (s, patterns) -> {
+			if (patterns.remove(pattern)) {
+				detach(pattern, s);
+				removed[0] = true;
+			}
+			return patterns.isEmpty() ? null : patterns;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Drops all subscriptions of the session.
+	 *
+	 * @return the number of subscriptions dropped
+	 */
+	public int remove(Session session) {
+		int[] removed = new int[1];
+		bySession.computeIfPresent(session, (s, patterns) -> {
+			for (String pattern : patterns)
+				detach(pattern, s);
+			removed[0] = patterns.size();
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * All sessions subscribed to the topic, directly or by prefix, each once.
+	 * The result is a live view, if there are no prefix-subscriptions, and a
+	 * snapshot otherwise.
+	 */
+	public Set<Session> subscribersOf(String topic) {
+		Set<Session> exact = byTopic.get(topic);
+		Set<Session> result = null;
+		for (Integer length : prefixLengths.keySet()) {
+			if (length > topic.length())
+				continue;
+			Set<Session> matching = byPrefix.get(topic.substring(0, length));
+			if (matching == null || matching.isEmpty())
+				continue;
+			if (result == null) {
+				result = new HashSet<>(matching);
+				if (exact != null)
+					result.addAll(exact);
+			} else
+				result.addAll(matching);
+		}
+		if (result != null)
+			return result;
+		return exact == null ? Collections.emptySet() : Collections.unmodifiableSet(exact);
+	}
+
+	/**
+	 * @return the patterns the session is subscribed to
+	 */
+	public Set<String> subscriptionsOf(Session session) {
+		Set<String> patterns = bySession.get(session);
+		return patterns == null ? Collections.emptySet() : Collections.unmodifiableSet(patterns);
+	}
+
+	/**
+	 * @return the number of sessions with at least one subscription
+	 */
+	public int size() {
+		return bySession.size();
+	}
+
+	/**
+	 * @return true, if a subscription to the pattern receives the topic
+	 */
+	static boolean matches(String pattern, String topic) {
+		return isPrefix(pattern) ? topic.startsWith(prefixOf(pattern)) : pattern.equals(topic);
+	}
+
+	private static boolean isPrefix(String pattern) {
+		return pattern.endsWith(WILDCARD);
+	}
+
+	private static String prefixOf(String pattern) {
+		return pattern.substring(0, pattern.length() - WILDCARD.length());
+	}
+
+	private void attach(String pattern, Session session) {
+		if (!isPrefix(pattern)) {
+			byTopic.compute(pattern, (t, sessions) -> {
+				if (sessions == null)
+					sessions = ConcurrentHashMap.newKeySet();
+				sessions.add(session);
+				return sessions;
+			});
+			return;
+		}
+		String prefix = prefixOf(pattern);
+		byPrefix.compute(prefix, (p, sessions) -> {
+			if (sessions == null) {
+				sessions = ConcurrentHashMap.newKeySet();
+				prefixLengths.compute(p.length(), (l, count) -> {
+					if (count == null)
+						count = new AtomicInteger();
+					count.incrementAndGet();
+					return count;
+				});
+			}
+			sessions.add(session);
+			return sessions;
+		});
+	}
+
+	private void detach(String pattern, Session session) {
+		if (!isPrefix(pattern)) {
+			byTopic.computeIfPresent(pattern, (t, sessions) -> {
+				sessions.remove(session);
+				return sessions.isEmpty() ? null : sessions;
+			});
+			return;
+		}
+		byPrefix.computeIfPresent(prefixOf(pattern), (p, sessions) -> {
+			sessions.remove(session);
+			if (!sessions.isEmpty())
+				return sessions;
+			prefixLengths.computeIfPresent(p.length(), (l, count) -> count.decrementAndGet() == 0 ? null : count);
+			return null;
+		});
+	}
+}
@@ -0,0 +1,71 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 varints as used by protobuf: seven bits per byte, low bits
+ * first, the high bit set on all but the last byte. Signed values are
+ * zig-zag-encoded first, so small negative numbers stay small too.
+ */
+public final class WsVarint {
+
+	public static final int MAX_SIZE = 10;
+
+	private WsVarint() {
+	}
+
+	public static void write(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the varint is longer than 10 bytes
+	 * @throws BufferUnderflowException  if the buffer ends within the varint
+	 */
+	public static long read(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint.");
+	}
+
+	/**
+	 * @return the value, if it fits into an int
+	 * @throws IllegalArgumentException otherwise
+	 */
+	public static int readInt(ByteBuffer in) {
+		long value = read(in);
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Varint [" + value + "] out of range.");
+		return (int) value;
+	}
+
+	public static void writeSigned(ByteBuffer out, long value) {
+		write(out, zigZag(value));
+	}
+
+	public static long readSigned(ByteBuffer in) {
+		long value = read(in);
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	public static long zigZag(long value) {
+		return value << 1 ^ value >> 63;
+	}
+
+	/**
+	 * @return the number of bytes the value takes
+	 */
+	public static int size(long value) {
+		return value == 0 ? 1 : (70 - Long.numberOfLeadingZeros(value)) / 7;
+	}
+}
@@ -0,0 +1,69 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread-pool starting a virtual thread per task. It's never low on
+ * threads, so blocking handlers don't starve the selectors; bound the work with
+ * the admission- and inbound-limits instead.
+ */
+public class WsVirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+	private final ExecutorService executor;
+	private final AtomicInteger threads = new AtomicInteger();
+
+	public WsVirtualThreadPool(String name) {
+		executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		threads.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					threads.decrementAndGet();
+				}
+			});
+		} catch (RuntimeException e) {
+			threads.decrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		executor.shutdown();
+		if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+			executor.shutdownNow();
+	}
+
+	@Override
+	public void join() throws InterruptedException {
+		while (!executor.awaitTermination(1, TimeUnit.HOURS))
+			;
+	}
+
+	@Override
+	public int getThreads() {
+		return threads.get();
+	}
+
+	@Override
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	@Override
+	public boolean isLowOnThreads() {
+		return false;
+	}
+}
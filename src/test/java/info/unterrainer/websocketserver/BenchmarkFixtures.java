@@ -0,0 +1,227 @@
+package info.unterrainer.websocketserver;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.CloseStatus;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsMessageContext;
+
+/**
+ * Hand-written stand-ins for the benchmarks. Unlike mocks they don't intercept,
+ * match or record calls, so what's measured is the handler and not the stubs.
+ */
+final class BenchmarkFixtures {
+
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * An open session whose writes complete immediately.
+	 */
+	static Session openSession() {
+		return new OpenSession(ids.incrementAndGet());
+	}
+
+	/**
+	 * A stub-only mock; Javalin's context is final and reads its headers from
+	 * the servlet upgrade-request, so it's only used to set the benchmarks up.
+	 */
+	static WsConnectContext connectContext(Session session, String authorization) {
+		WsConnectContext ctx = mock(WsConnectContext.class, withSettings().stubOnly());
+		WsOauthHandlerBaseTest.setCtxSession(ctx, session);
+		when(ctx.header("Authorization")).thenReturn(authorization);
+		return ctx;
+	}
+
+	static WsMessageContext messageContext(Session session, String message) {
+		return new WsMessageContext("session-" + ids.incrementAndGet(), session, message);
+	}
+
+	private static final class OpenSession implements Session {
+
+		private final RemoteEndpoint remote = new ImmediateRemote();
+		private final InetSocketAddress address;
+
+		OpenSession(int id) {
+			address = InetSocketAddress.createUnresolved("client-" + id, 1024 + id % 60_000);
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void close(CloseStatus closeStatus) {
+		}
+
+		@Override
+		public void close(int statusCode, String reason) {
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public long getIdleTimeout() {
+			return 0;
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			return null;
+		}
+
+		@Override
+		public WebSocketPolicy getPolicy() {
+			return null;
+		}
+
+		@Override
+		public String getProtocolVersion() {
+			return "13";
+		}
+
+		@Override
+		public RemoteEndpoint getRemote() {
+			return remote;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteAddress() {
+			return address;
+		}
+
+		@Override
+		public UpgradeRequest getUpgradeRequest() {
+			return null;
+		}
+
+		@Override
+		public UpgradeResponse getUpgradeResponse() {
+			return null;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public boolean isSecure() {
+			return false;
+		}
+
+		@Override
+		public void setIdleTimeout(long ms) {
+		}
+
+		@Override
+		public SuspendToken suspend() {
+			return () -> {
+			};
+		}
+	}
+
+	private static final class ImmediateRemote implements RemoteEndpoint {
+
+		private static final Future<Void> DONE = CompletableFuture.completedFuture(null);
+
+		private BatchMode batchMode = BatchMode.AUTO;
+		private int maxOutgoingFrames = -1;
+
+		@Override
+		public void sendBytes(ByteBuffer data) {
+		}
+
+		@Override
+		public Future<Void> sendBytesByFuture(ByteBuffer data) {
+			return DONE;
+		}
+
+		@Override
+		public void sendBytes(ByteBuffer data, WriteCallback callback) {
+			if (callback != null)
+				callback.writeSuccess();
+		}
+
+		@Override
+		public void sendPartialBytes(ByteBuffer fragment, boolean isLast) {
+		}
+
+		@Override
+		public void sendPartialString(String fragment, boolean isLast) {
+		}
+
+		@Override
+		public void sendPing(ByteBuffer applicationData) {
+		}
+
+		@Override
+		public void sendPong(ByteBuffer applicationData) {
+		}
+
+		@Override
+		public void sendString(String text) {
+		}
+
+		@Override
+		public Future<Void> sendStringByFuture(String text) {
+			return DONE;
+		}
+
+		@Override
+		public void sendString(String text, WriteCallback callback) {
+			if (callback != null)
+				callback.writeSuccess();
+		}
+
+		@Override
+		public BatchMode getBatchMode() {
+			return batchMode;
+		}
+
+		@Override
+		public void setBatchMode(BatchMode mode) {
+			this.batchMode = mode;
+		}
+
+		@Override
+		public int getMaxOutgoingFrames() {
+			return maxOutgoingFrames;
+		}
+
+		@Override
+		public void setMaxOutgoingFrames(int maxOutgoingFrames) {
+			this.maxOutgoingFrames = maxOutgoingFrames;
+		}
+
+		@Override
+		public InetSocketAddress getInetSocketAddress() {
+			return null;
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+}
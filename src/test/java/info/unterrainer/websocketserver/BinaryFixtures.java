@@ -0,0 +1,44 @@
+package info.unterrainer.websocketserver;
+
+/**
+ * Record types and schemas of the {@link WsBinaryProtocol} shared by its tests
+ * and benchmarks.
+ */
+final class BinaryFixtures {
+
+	private BinaryFixtures() {
+	}
+
+	static class Sample {
+		long timestamp;
+		int sensor;
+		double value;
+		String unit;
+	}
+
+	static class Alarm {
+		int sensor;
+		boolean active;
+	}
+
+	static final WsBinarySchema<Sample> SAMPLE = WsBinarySchema.of(Sample::new)
+			.varLong(s -> s.timestamp, (s, v) -> s.timestamp = v)
+			.varInt(s -> s.sensor, (s, v) -> s.sensor = v)
+			.float64(s -> s.value, (s, v) -> s.value = v)
+			.string(s -> s.unit, (s, v) -> s.unit = v)
+			.build();
+
+	static final WsBinarySchema<Alarm> ALARM = WsBinarySchema.of(Alarm::new)
+			.int64(a -> a.sensor, (a, v) -> a.sensor = (int) v)
+			.bool(a -> a.active, (a, v) -> a.active = v)
+			.build();
+
+	static Sample sample(long timestamp, int sensor, double value, String unit) {
+		Sample s = new Sample();
+		s.timestamp = timestamp;
+		s.sensor = sensor;
+		s.value = value;
+		s.unit = unit;
+		return s;
+	}
+}
@@ -0,0 +1,83 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of microsecond latencies with a relative
+ * error below 0.2%. Its size is fixed, so it can record for hours without
+ * growing, which matters for soak-runs measuring the heap.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 10;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+
+	void recordNanos(long nanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+	}
+
+	void record(long micros) {
+		counts.incrementAndGet(index(micros));
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in microseconds
+	 */
+	long percentile(double percentile) {
+		long total = count();
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return valueAt(i);
+		}
+		return valueAt(counts.length() - 1);
+	}
+
+	long max() {
+		for (int i = counts.length() - 1; i >= 0; i--)
+			if (counts.get(i) > 0)
+				return valueAt(i);
+		return 0;
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	static long valueAt(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		return ((long) (index - SUB_BUCKETS) % HALF + HALF) << shift;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("p50=%dus p99=%dus p999=%dus max=%dus (n=%d)", percentile(50), percentile(99),
+				percentile(99.9), max(), count());
+	}
+}
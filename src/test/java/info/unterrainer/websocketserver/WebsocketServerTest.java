@@ -64,6 +64,24 @@ class WebsocketServerTest {
 		session.close();
 	}
 
+	@Test
+	void testTokenCacheIsOptIn() {
+		server = new WebsocketServer("test-server");
+		assertThat(server.getTokenCache()).isNull();
+
+		WsTokenCache cache = new WsTokenCache(100, 1, TimeUnit.MINUTES);
+		assertThat(server.tokenCache(cache).getTokenCache()).isSameAs(cache);
+	}
+
+	@Test
+	void testMetricsAreOptIn() {
+		server = new WebsocketServer("test-server");
+		assertThat(server.getMetrics()).isNull();
+
+		WsMetrics metrics = new WsMetrics();
+		assertThat(server.metrics(metrics).getMetrics()).isSameAs(metrics);
+	}
+
 	@Test
 	void testMessageEcho() throws Exception {
 		server = new WebsocketServer("test-server");
@@ -448,6 +466,139 @@ class WebsocketServerTest {
 	}
 
 	@WebSocket
+	@Test
+	void testDrainClosesSessionsWithGoingAwayAndReconnectHint() throws Exception {
+		server = new WebsocketServer("test-server");
+		WsLoadTest.EchoHandler echo = new WsLoadTest.EchoHandler("drain");
+		WsLoadTest.register(server, "/drain", echo);
+		server.start(testPort);
+		client.start();
+
+		int sessions = 4;
+		CountDownLatch closed = new CountDownLatch(sessions);
+		java.util.List<String> reasons = new java.util.concurrent.CopyOnWriteArrayList<>();
+		java.util.List<Integer> codes = new java.util.concurrent.CopyOnWriteArrayList<>();
+		for (int i = 0; i < sessions; i++) {
+			TestWebSocketHandler handler = new TestWebSocketHandler();
+			handler.onClose = (code, reason) -> {
+				codes.add(code);
+				reasons.add(reason);
+				closed.countDown();
+			};
+			org.eclipse.jetty.websocket.client.ClientUpgradeRequest request = new org.eclipse.jetty.websocket.client.ClientUpgradeRequest();
+			request.setHeader("Authorization", WsLoadTest.VALID_TOKEN);
+			client.connect(handler, new URI(wsUrl + "/drain"), request).get(5, TimeUnit.SECONDS);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (echo.clientsConnected.size() < sessions && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(echo.clientsConnected).hasSize(sessions);
+
+		server.stop(WsDrainConfig.defaults()
+				.batchSize(2)
+				.closeWindow(100, TimeUnit.MILLISECONDS)
+				.reconnectJitter(1, TimeUnit.SECONDS));
+		server = null;
+
+		assertThat(closed.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(codes).containsOnly(1001);
+		assertThat(reasons).allMatch(reason -> reason.startsWith("(test-server) Server shutting down; reconnect-after="));
+		assertThat(echo.isDraining()).isTrue();
+	}
+
+	@Test
+	void testDrainWaitsForTheCloseHandshakesOfTheLastBatch() throws Exception {
+		server = new WebsocketServer("test-server");
+		WsLoadTest.EchoHandler echo = new WsLoadTest.EchoHandler("drain");
+		WsLoadTest.register(server, "/drain", echo);
+		server.start(testPort);
+		client.start();
+
+		int sessions = 6;
+		CountDownLatch closed = new CountDownLatch(sessions);
+		java.util.List<String> reasons = new java.util.concurrent.CopyOnWriteArrayList<>();
+		java.util.List<Integer> codes = new java.util.concurrent.CopyOnWriteArrayList<>();
+		for (int i = 0; i < sessions; i++) {
+			TestWebSocketHandler handler = new TestWebSocketHandler();
+			handler.onClose = (code, reason) -> {
+				codes.add(code);
+				reasons.add(reason);
+				closed.countDown();
+			};
+			org.eclipse.jetty.websocket.client.ClientUpgradeRequest request = new org.eclipse.jetty.websocket.client.ClientUpgradeRequest();
+			request.setHeader("Authorization", WsLoadTest.VALID_TOKEN);
+			client.connect(handler, new URI(wsUrl + "/drain"), request).get(5, TimeUnit.SECONDS);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (echo.clientsConnected.size() < sessions && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(echo.clientsConnected).hasSize(sessions);
+
+		// A single batch, closed right before stopping.
+		server.stop(WsDrainConfig.defaults().batchSize(sessions).reconnectJitter(1, TimeUnit.SECONDS));
+		server = null;
+
+		assertThat(echo.clients.size()).isZero();
+		assertThat(closed.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(codes).hasSize(sessions).containsOnly(1001);
+		assertThat(reasons).allMatch(reason -> reason.startsWith("(test-server) Server shutting down; reconnect-after="));
+	}
+
+	@Test
+	void testPerformanceConfigIsApplied() throws Exception {
+		server = new WebsocketServer("test-server", WsPerformanceConfig.defaults()
+				.threads(4, 16)
+				.acceptors(1)
+				.selectors(2)
+				.maxTextMessageSize(1024)
+				.inputBufferSize(512));
+		server.ws("/echo", ws -> ws.onMessage(ctx -> ctx.send(ctx.message()))).start(testPort);
+
+		assertThat(server.getEffectiveSettings())
+				.containsEntry("minThreads", 4)
+				.containsEntry("maxThreads", 16)
+				.containsEntry("acceptors", 1)
+				.containsEntry("selectors", 2)
+				.containsEntry("maxTextMessageSize", 1024)
+				.containsEntry("inputBufferSize", 512);
+
+		client.start();
+		CountDownLatch messageLatch = new CountDownLatch(1);
+		TestWebSocketHandler handler = new TestWebSocketHandler();
+		handler.onMessageReceived = message -> messageLatch.countDown();
+		Session session = client.connect(handler, new URI(wsUrl + "/echo")).get(5, TimeUnit.SECONDS);
+		session.getRemote().sendString("Hello World");
+		assertThat(messageLatch.await(5, TimeUnit.SECONDS)).isTrue();
+
+		char[] tooLarge = new char[2048];
+		Arrays.fill(tooLarge, 'x');
+		session.getRemote().sendString(new String(tooLarge));
+		assertThat(handler.closeLatch.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	void testVirtualThreadPool() throws Exception {
+		server = new WebsocketServer("test-server", WsPerformanceConfig.defaults().virtualThreads(true));
+		server.ws("/echo", ws -> ws.onMessage(ctx -> ctx.send(ctx.message()))).start(testPort);
+
+		assertThat(server.getEffectiveSettings()).containsEntry("threads", "virtual");
+
+		client.start();
+		AtomicReference<String> receivedMessage = new AtomicReference<>();
+		CountDownLatch messageLatch = new CountDownLatch(1);
+		TestWebSocketHandler handler = new TestWebSocketHandler();
+		handler.onMessageReceived = message -> {
+			receivedMessage.set(message);
+			messageLatch.countDown();
+		};
+		Session session = client.connect(handler, new URI(wsUrl + "/echo")).get(5, TimeUnit.SECONDS);
+		session.getRemote().sendString("Hello World");
+
+		assertThat(messageLatch.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(receivedMessage.get()).isEqualTo("Hello World");
+		session.close();
+	}
+
 	public static class TestWebSocketHandler {
 		public volatile Session session;
 		public volatile CountDownLatch connectLatch = new CountDownLatch(1);
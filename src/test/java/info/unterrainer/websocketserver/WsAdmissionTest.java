@@ -0,0 +1,200 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.oauthtokenmanager.OauthTokenManager;
+import io.javalin.websocket.WsConnectContext;
+
+class WsAdmissionTest {
+
+	@Test
+	void testGlobalCapSpansEndpoints() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().maxConnections(2));
+		WsOauthHandlerBase a = handler("a", admission);
+		WsOauthHandlerBase b = handler("b", admission);
+
+		Session s1 = connect(a, "10.0.0.1", "tenant-1");
+		Session s2 = connect(b, "10.0.0.2", "tenant-1");
+		Session s3 = connect(b, "10.0.0.3", "tenant-1");
+
+		verify(s1, never()).close(eq(1013), anyString());
+		verify(s2, never()).close(eq(1013), anyString());
+		verify(s3).close(eq(1013), startsWith("(b) Server full; retry-after="));
+		assertThat(admission.connections()).isEqualTo(2);
+	}
+
+	@Test
+	void testEndpointCap() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().maxConnectionsPerEndpoint(1));
+		WsOauthHandlerBase a = handler("a", admission);
+		WsOauthHandlerBase b = handler("b", admission);
+
+		connect(a, "10.0.0.1", "tenant-1");
+		Session rejected = connect(a, "10.0.0.2", "tenant-1");
+		Session other = connect(b, "10.0.0.3", "tenant-1");
+
+		verify(rejected).close(eq(1013), startsWith("(a) Endpoint full"));
+		verify(other, never()).close(eq(1013), anyString());
+	}
+
+	@Test
+	void testTenantCapIsCheckedAfterValidation() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().maxConnectionsPerTenant(1));
+		WsOauthHandlerBase a = handler("a", admission);
+
+		connect(a, "10.0.0.1", "tenant-1");
+		Session rejected = connect(a, "10.0.0.2", "tenant-1");
+		Session otherTenant = connect(a, "10.0.0.3", "tenant-2");
+
+		verify(rejected).close(eq(1013), startsWith("(a) Tenant connection limit reached"));
+		verify(otherTenant, never()).close(eq(1013), anyString());
+		assertThat(a.clientsConnected).hasSize(2);
+		assertThat(admission.connectionsOf("tenant-1")).isEqualTo(1);
+	}
+
+	@Test
+	void testCapsHoldUnderConcurrentConnects() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().maxConnectionsPerEndpoint(5));
+		WsOauthHandlerBase a = handler("a", admission);
+
+		List<Session> sessions = connectConcurrently(a, 12, "tenant-1");
+
+		assertThat(a.clientsConnected).hasSize(5);
+		assertThat(admission.connections()).isEqualTo(5);
+		assertThat(rejected(a, sessions, "(a) Endpoint full")).isEqualTo(7);
+
+		a.removeClient(a.clientsConnected.iterator().next().session);
+		assertThat(admission.connections()).isEqualTo(4);
+		connect(a, "10.0.1.1", "tenant-1");
+		assertThat(a.clientsConnected).hasSize(5);
+	}
+
+	@Test
+	void testTenantCapHoldsUnderConcurrentConnects() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().maxConnectionsPerTenant(3));
+		WsOauthHandlerBase a = handler("a", admission);
+
+		List<Session> sessions = connectConcurrently(a, 12, "tenant-1");
+
+		assertThat(a.clientsConnected).hasSize(3);
+		assertThat(admission.connectionsOf("tenant-1")).isEqualTo(3);
+		assertThat(admission.connections()).isEqualTo(3);
+		assertThat(rejected(a, sessions, "(a) Tenant connection limit reached")).isEqualTo(9);
+	}
+
+	@Test
+	void testConnectRatePerIpLeavesOtherAddressesAlone() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults().connectRatePerIp(0.001, 2));
+		WsOauthHandlerBase a = handler("a", admission);
+
+		connect(a, "10.0.0.1", "tenant-1");
+		connect(a, "10.0.0.1", "tenant-1");
+		Session rejected = connect(a, "10.0.0.1", "tenant-1");
+		Session other = connect(a, "10.0.0.2", "tenant-1");
+
+		verify(rejected).close(eq(1013), startsWith("(a) Connect rate exceeded"));
+		verify(other, never()).close(eq(1013), anyString());
+		assertThat(admission.trackedIps()).isEqualTo(2);
+	}
+
+	@Test
+	void testGlobalConnectRateAndCustomCloseCode() throws Exception {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults()
+				.connectRate(0.001, 1)
+				.rejectWith(4429, 10, java.util.concurrent.TimeUnit.SECONDS));
+		WsOauthHandlerBase a = handler("a", admission);
+
+		connect(a, "10.0.0.1", "tenant-1");
+		Session rejected = connect(a, "10.0.0.2", "tenant-1");
+
+		verify(rejected).close(eq(4429), startsWith("(a) Server busy; retry-after="));
+	}
+
+	@Test
+	void testRetryAfterIsJitteredWithinBounds() {
+		WsAdmission admission = new WsAdmission(WsAdmissionConfig.defaults());
+		for (int i = 0; i < 100; i++) {
+			String reason = admission.reason("a", "Server busy");
+			long retryAfter = Long.parseLong(reason.substring(reason.indexOf('=') + 1));
+			assertThat(retryAfter).isBetween(5L, 10L);
+		}
+	}
+
+	private static List<Session> connectConcurrently(WsOauthHandlerBase handler, int threads, String tenant)
+			throws InterruptedException {
+		CyclicBarrier start = new CyclicBarrier(threads);
+		List<Session> sessions = new ArrayList<>();
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			String ip = "10.0.0." + (i + 1);
+			Session session = mock(Session.class);
+			sessions.add(session);
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+					connect(handler, session, ip, tenant);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			workers.add(t);
+			t.start();
+		}
+		for (Thread t : workers)
+			t.join();
+		return sessions;
+	}
+
+	/**
+	 * Verifies every session that didn't get connected was closed for the reason.
+	 */
+	private static int rejected(WsOauthHandlerBase handler, List<Session> sessions, String reason) {
+		int rejected = 0;
+		for (Session session : sessions)
+			if (handler.clientsConnected.stream().noneMatch(ctx -> ctx.session == session)) {
+				verify(session).close(eq(1013), startsWith(reason));
+				rejected++;
+			}
+		return rejected;
+	}
+
+	private static WsOauthHandlerBase handler(String name, WsAdmission admission) throws Exception {
+		OauthTokenManager tokenManager = mock(OauthTokenManager.class);
+		when(tokenManager.checkAccess("Bearer tenant-1")).thenReturn("tenant-1");
+		when(tokenManager.checkAccess("Bearer tenant-2")).thenReturn("tenant-2");
+		WsOauthHandlerBase handler = new WsOauthHandlerBase(name);
+		handler.setTokenHandler(tokenManager);
+		handler.setAdmission(admission);
+		return handler;
+	}
+
+	private static Session connect(WsOauthHandlerBase handler, String ip, String tenant) throws Exception {
+		return connect(handler, mock(Session.class), ip, tenant);
+	}
+
+	private static Session connect(WsOauthHandlerBase handler, Session session, String ip, String tenant)
+			throws Exception {
+		when(session.isOpen()).thenReturn(true);
+		when(session.getRemoteAddress()).thenReturn(new InetSocketAddress(ip, 40000));
+		WsConnectContext ctx = mock(WsConnectContext.class);
+		WsOauthHandlerBaseTest.setCtxSession(ctx, session);
+		when(ctx.header("Authorization")).thenReturn("Bearer " + tenant);
+		handler.handleConnect(ctx);
+		return session;
+	}
+}
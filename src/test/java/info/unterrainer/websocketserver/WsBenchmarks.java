@@ -0,0 +1,32 @@
+package info.unterrainer.websocketserver;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all {@code *Benchmark} classes with the GC-profiler attached, so every
+ * result comes with its allocation rate ({@code gc.alloc.rate.norm} is bytes
+ * per operation). Results are written to {@code target/jmh-result.json} to be
+ * compared against the one of the previous release.
+ * <p>
+ * Run with {@code mvn -Pbenchmark test -DskipTests}. Any JMH command-line
+ * options can be passed using {@code -Dbenchmark.args="..."}.
+ */
+public class WsBenchmarks {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("target/jmh-result.json")
+				.jvmArgsAppend("-Dlog4j2.configurationFile=log4j2-bench.xml");
+		if (cmd.getIncludes().isEmpty())
+			options.include(".*Benchmark.*");
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,111 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import info.unterrainer.websocketserver.BinaryFixtures.Sample;
+
+/**
+ * A frame of telemetry-samples encoded and decoded as JSON text, the way
+ * handlers did it before, against the {@link WsBinaryProtocol}. The size of the
+ * frame each benchmark produces or consumes is reported as the secondary result
+ * {@code bytes}; with the GC-profiler the allocations per frame show up as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WsBinaryProtocolBenchmark {
+
+	/**
+	 * The size of the frame, set on every invocation rather than summed up.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class FrameSize {
+		public long bytes;
+	}
+
+	@Param({ "1", "32" })
+	public int records;
+
+	private final WsJsonCodec<Object> json = WsJsonCodec.tree();
+	private WsBinaryProtocol binary;
+	private List<Object> samples;
+	private List<Object> tree;
+	private String jsonFrame;
+	private int jsonFrameSize;
+	private ByteBuffer binaryFrame;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		binary = new WsBinaryProtocol().register(1, Sample.class, BinaryFixtures.SAMPLE);
+		samples = new ArrayList<>();
+		tree = new ArrayList<>();
+		for (int i = 0; i < records; i++) {
+			long timestamp = 1_700_000_000_000L + i * 10;
+			double value = 20 + i * 0.25;
+			samples.add(BinaryFixtures.sample(timestamp, i, value, "C"));
+			tree.add(Map.of("timestamp", timestamp, "sensor", i, "value", value, "unit", "C"));
+		}
+		WsPreparedMessage jsonMessage = json.encode(tree);
+		jsonFrame = jsonMessage.getText();
+		jsonFrameSize = jsonMessage.size();
+		binaryFrame = binary.encode(samples).getPayload();
+	}
+
+	@Benchmark
+	public WsPreparedMessage jsonEncode(FrameSize size) {
+		WsPreparedMessage frame = json.encode(tree);
+		size.bytes = frame.size();
+		return frame;
+	}
+
+	@Benchmark
+	public Object jsonDecode(FrameSize size) {
+		size.bytes = jsonFrameSize;
+		return json.decode(jsonFrame);
+	}
+
+	@Benchmark
+	public WsPreparedMessage binaryEncode(FrameSize size) {
+		WsPreparedMessage frame = binary.encode(samples);
+		size.bytes = frame.size();
+		return frame;
+	}
+
+	@Benchmark
+	public Object binaryDecode(FrameSize size) throws Exception {
+		size.bytes = binaryFrame.remaining();
+		return binary.decode(binaryFrame);
+	}
+
+	/**
+	 * Passing the records on as they're read, without collecting them.
+	 */
+	@Benchmark
+	public int binaryRead(FrameSize size, Blackhole bh) throws Exception {
+		size.bytes = binaryFrame.remaining();
+		return binary.read(binaryFrame.duplicate(), (type, record) -> bh.consume(record));
+	}
+}
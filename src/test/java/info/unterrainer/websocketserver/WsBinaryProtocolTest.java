@@ -0,0 +1,103 @@
+package info.unterrainer.websocketserver;
+
+import static info.unterrainer.websocketserver.BinaryFixtures.ALARM;
+import static info.unterrainer.websocketserver.BinaryFixtures.SAMPLE;
+import static info.unterrainer.websocketserver.BinaryFixtures.sample;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.websocketserver.BinaryFixtures.Alarm;
+import info.unterrainer.websocketserver.BinaryFixtures.Sample;
+
+class WsBinaryProtocolTest {
+
+	@Test
+	void testVarintRoundTrip() {
+		ByteBuffer buffer = ByteBuffer.allocate(WsVarint.MAX_SIZE);
+		for (long value : new long[] { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE, -1,
+				Long.MIN_VALUE }) {
+			buffer.clear();
+			WsVarint.write(buffer, value);
+			assertThat(buffer.position()).as("size of %d", value).isEqualTo(WsVarint.size(value));
+			buffer.flip();
+			assertThat(WsVarint.read(buffer)).isEqualTo(value);
+
+			buffer.clear();
+			WsVarint.writeSigned(buffer, value);
+			buffer.flip();
+			assertThat(WsVarint.readSigned(buffer)).isEqualTo(value);
+		}
+		assertThat(WsVarint.size(WsVarint.zigZag(-64))).isEqualTo(1);
+	}
+
+	@Test
+	void testFrameWithSeveralRecordsRoundTrips() throws Exception {
+		WsBinaryProtocol protocol = new WsBinaryProtocol()
+				.register(1, Sample.class, SAMPLE)
+				.register(2, Alarm.class, ALARM);
+		Alarm alarm = new Alarm();
+		alarm.sensor = 7;
+		alarm.active = true;
+
+		WsPreparedMessage frame = protocol.encode(Arrays.asList(sample(1_700_000_000_000L, -3, 21.5, "°C"), alarm));
+		assertThat(frame.isText()).isFalse();
+
+		List<Object> records = protocol.decode(frame.getPayload());
+		assertThat(records).hasSize(2);
+		Sample s = (Sample) records.get(0);
+		assertThat(s.timestamp).isEqualTo(1_700_000_000_000L);
+		assertThat(s.sensor).isEqualTo(-3);
+		assertThat(s.value).isEqualTo(21.5);
+		assertThat(s.unit).isEqualTo("°C");
+		assertThat(((Alarm) records.get(1)).active).isTrue();
+		assertThat(((Alarm) records.get(1)).sensor).isEqualTo(7);
+	}
+
+	@Test
+	void testUnknownTypesAreSkipped() throws Exception {
+		WsBinaryProtocol sender = new WsBinaryProtocol()
+				.register(1, Sample.class, SAMPLE)
+				.register(2, Alarm.class, ALARM);
+		WsBinaryProtocol receiver = new WsBinaryProtocol().register(1, Sample.class, SAMPLE);
+
+		WsPreparedMessage frame = sender.encode(Arrays.asList(new Alarm(), sample(1, 2, 3, "x")));
+		List<Integer> types = new ArrayList<>();
+		int count = receiver.read(frame.getPayload(), (type, record) -> types.add(type));
+
+		assertThat(count).isEqualTo(2);
+		assertThat(types).containsExactly(1);
+	}
+
+	@Test
+	void testMalformedFramesAreRejected() {
+		WsBinaryProtocol protocol = new WsBinaryProtocol().register(1, Sample.class, SAMPLE).maxRecordSize(64);
+		ByteBuffer valid = protocol.encodeRecord(sample(1, 2, 3, "unit")).getPayload();
+		ByteBuffer truncated = valid.duplicate();
+		truncated.limit(truncated.limit() - 1);
+
+		assertThatThrownBy(() -> protocol.decode(truncated)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> protocol.decode(ByteBuffer.wrap(new byte[] { 100, 1 })))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> protocol.decode(protocol.encodeRecord(sample(1, 2, 3, "x".repeat(100))).getPayload()))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> protocol.encodeRecord(new Alarm())).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void testBinaryIsSmallerThanJson() {
+		WsBinaryProtocol protocol = new WsBinaryProtocol().register(1, Sample.class, SAMPLE);
+		Sample s = sample(1_700_000_000_000L, 42, 21.5, "C");
+		WsPreparedMessage json = WsJsonCodec.tree()
+				.encode(Map.of("timestamp", s.timestamp, "sensor", s.sensor, "value", s.value, "unit", s.unit));
+
+		assertThat(protocol.size(s)).isLessThan(json.size() / 2);
+	}
+}
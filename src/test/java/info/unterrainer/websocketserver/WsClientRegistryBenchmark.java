@@ -0,0 +1,85 @@
+package info.unterrainer.websocketserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.unterrainer.websocketserver.WsClient.State;
+import io.javalin.websocket.WsConnectContext;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+public class WsClientRegistryBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int sessions;
+
+	private WsClientRegistry registry;
+	private WsTenantIndex tenants;
+	private Session[] keys;
+	private int cursor;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		registry = new WsClientRegistry();
+		tenants = new WsTenantIndex();
+		keys = new Session[sessions];
+		for (int i = 0; i < sessions; i++) {
+			Session session = BenchmarkFixtures.openSession();
+			WsConnectContext ctx = BenchmarkFixtures.connectContext(session, null);
+			registry.add(ctx, i % 10 == 0 ? State.QUARANTINED : State.CONNECTED);
+			tenants.put(session, "tenant-" + i % 100);
+			keys[i] = session;
+		}
+		cursor = ThreadLocalRandom.current().nextInt(sessions);
+	}
+
+	private Session next() {
+		cursor = cursor + 7919 < sessions ? cursor + 7919 : (cursor + 7919) % sessions;
+		return keys[cursor];
+	}
+
+	@Benchmark
+	public WsConnectContext getConnected() {
+		return registry.get(next(), State.CONNECTED);
+	}
+
+	@Benchmark
+	public boolean isQuarantined() {
+		return registry.is(next(), State.QUARANTINED);
+	}
+
+	@Benchmark
+	public String tenantOf() {
+		return tenants.tenantOf(next());
+	}
+
+	@Benchmark
+	public int sessionsOfTenant() {
+		return tenants.sessionsOf("tenant-42").size();
+	}
+
+	@Benchmark
+	public WsClient removeAndAddAgain() {
+		Session session = next();
+		WsClient client = registry.remove(session);
+		registry.add(client.getContext(), client.getState());
+		return client;
+	}
+}
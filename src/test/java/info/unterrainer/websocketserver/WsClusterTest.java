@@ -0,0 +1,183 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.oauthtokenmanager.OauthTokenManager;
+import info.unterrainer.websocketserver.WsClusterMessage.Scope;
+import io.javalin.websocket.WsConnectContext;
+
+class WsClusterTest {
+
+	private final WsTimerWheel timer = new WsTimerWheel("test-cluster", 1, TimeUnit.MILLISECONDS, 64);
+	private final WsLoopbackBus bus = new WsLoopbackBus();
+
+	@AfterEach
+	void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	void testBroadcastReachesSessionsOfOtherNodesOnce() throws Exception {
+		WsOauthHandlerBase a = node(1);
+		WsOauthHandlerBase b = node(1);
+		RemoteEndpoint remoteA = connect(a, "tenant-1");
+		RemoteEndpoint remoteB = connect(b, "tenant-1");
+
+		assertThat(a.broadcast("hello").getAttempted()).isEqualTo(1);
+
+		verify(remoteA, times(1)).sendString(eq("hello"), any(WriteCallback.class));
+		verify(remoteB, times(1)).sendString(eq("hello"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testTenantSendsAndPublishesStayScoped() throws Exception {
+		WsOauthHandlerBase a = node(1);
+		WsOauthHandlerBase b = node(1);
+		RemoteEndpoint remote1 = connect(b, "tenant-1");
+		Session session2 = mock(Session.class);
+		RemoteEndpoint remote2 = connect(b, "tenant-2", session2);
+		b.subscribe(session2, "sensors/*");
+
+		a.broadcastToTenant("tenant-1", "for-1");
+		a.publish("sensors/7", "update");
+
+		verify(remote1).sendString(eq("for-1"), any(WriteCallback.class));
+		verify(remote2, never()).sendString(eq("for-1"), any(WriteCallback.class));
+		verify(remote2).sendString(eq("update"), any(WriteCallback.class));
+		verify(remote1, never()).sendString(eq("update"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testFilteredBroadcastsStayLocal() throws Exception {
+		WsOauthHandlerBase a = node(1);
+		WsOauthHandlerBase b = node(1);
+		RemoteEndpoint remoteB = connect(b, "tenant-1");
+
+		a.broadcast("filtered", ctx -> true);
+
+		verify(remoteB, never()).sendString(eq("filtered"), any(WriteCallback.class));
+		assertThat(bus.getMessages()).isZero();
+	}
+
+	@Test
+	void testMessagesAreBatchedBySizeAndDelay() throws Exception {
+		WsCluster cluster = new WsCluster(bus, timer, 3, 50, TimeUnit.MILLISECONDS).start();
+
+		cluster.forward("chat", Scope.ALL, null, WsPreparedMessage.text("1"));
+		cluster.forward("chat", Scope.ALL, null, WsPreparedMessage.text("2"));
+		assertThat(bus.getBatches()).isZero();
+		cluster.forward("chat", Scope.ALL, null, WsPreparedMessage.text("3"));
+		assertThat(bus.getBatches()).isEqualTo(1);
+		assertThat(bus.getMessages()).isEqualTo(3);
+
+		cluster.forward("chat", Scope.ALL, null, WsPreparedMessage.text("4"));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		while (bus.getBatches() < 2 && System.nanoTime() < deadline)
+			Thread.sleep(5);
+		assertThat(bus.getBatches()).isEqualTo(2);
+		assertThat(bus.getMessages()).isEqualTo(4);
+	}
+
+	@Test
+	void testStoppedNodeNoLongerReceives() throws Exception {
+		WsOauthHandlerBase a = node(1);
+		WsCluster clusterB = new WsCluster(bus, timer, 1, 0, TimeUnit.MILLISECONDS).start();
+		WsOauthHandlerBase b = handler();
+		b.setCluster(clusterB);
+		RemoteEndpoint remoteB = connect(b, "tenant-1");
+
+		clusterB.stop();
+		a.broadcast("after-stop");
+
+		verify(remoteB, never()).sendString(eq("after-stop"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testEncodeDecodeRoundTrip() throws Exception {
+		List<WsClusterMessage> batch = Arrays.asList(
+				new WsClusterMessage("node-1", "chat", Scope.ALL, null, WsPreparedMessage.text("hällo")),
+				new WsClusterMessage("node-1", "chat", Scope.TOPIC, "sensors/1",
+						WsPreparedMessage.binary(ByteBuffer.wrap(new byte[] { 1, 2, 3 }))));
+
+		List<WsClusterMessage> decoded = WsClusterMessage.decode(WsClusterMessage.encode(batch));
+
+		assertThat(decoded).hasSize(2);
+		assertThat(decoded.get(0).getOrigin()).isEqualTo("node-1");
+		assertThat(decoded.get(0).getScope()).isEqualTo(Scope.ALL);
+		assertThat(decoded.get(0).getKey()).isNull();
+		assertThat(decoded.get(0).getMessage().getText()).isEqualTo("hällo");
+		assertThat(decoded.get(1).getKey()).isEqualTo("sensors/1");
+		assertThat(decoded.get(1).getMessage().isText()).isFalse();
+		assertThat(decoded.get(1).getMessage().getPayload()).isEqualTo(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+	}
+
+	@Test
+	void testDecodeChecksCountsAndLengthsBeforeAllocating() throws Exception {
+		byte[] data = WsClusterMessage.encode(Arrays.asList(new WsClusterMessage("node-1", "chat", Scope.ALL, null,
+				WsPreparedMessage.binary(ByteBuffer.wrap(new byte[] { 1, 2, 3 })))));
+		assertThat(WsClusterMessage.decode(data)).hasSize(1);
+
+		byte[] count = data.clone();
+		ByteBuffer.wrap(count).putInt(1, Integer.MAX_VALUE);
+		assertThatThrownBy(() -> WsClusterMessage.decode(count)).isInstanceOf(IOException.class);
+
+		byte[] length = data.clone();
+		ByteBuffer.wrap(length).putInt(length.length - 3 - 4, Integer.MAX_VALUE);
+		assertThatThrownBy(() -> WsClusterMessage.decode(length)).isInstanceOf(IOException.class);
+		ByteBuffer.wrap(length).putInt(length.length - 3 - 4, -1);
+		assertThatThrownBy(() -> WsClusterMessage.decode(length)).isInstanceOf(IOException.class);
+
+		assertThatThrownBy(() -> WsClusterMessage.decode(data, 2)).isInstanceOf(IOException.class);
+	}
+
+	private WsOauthHandlerBase node(int maxBatch) throws Exception {
+		WsOauthHandlerBase handler = handler();
+		handler.setCluster(new WsCluster(bus, timer, maxBatch, 0, TimeUnit.MILLISECONDS).start());
+		return handler;
+	}
+
+	private static WsOauthHandlerBase handler() throws Exception {
+		OauthTokenManager tokenManager = mock(OauthTokenManager.class);
+		when(tokenManager.checkAccess("Bearer tenant-1")).thenReturn("tenant-1");
+		when(tokenManager.checkAccess("Bearer tenant-2")).thenReturn("tenant-2");
+		WsOauthHandlerBase handler = new WsOauthHandlerBase("chat");
+		handler.setTokenHandler(tokenManager);
+		return handler;
+	}
+
+	private static RemoteEndpoint connect(WsOauthHandlerBase handler, String tenant) throws Exception {
+		return connect(handler, tenant, mock(Session.class));
+	}
+
+	private static RemoteEndpoint connect(WsOauthHandlerBase handler, String tenant, Session session)
+			throws Exception {
+		RemoteEndpoint remote = mock(RemoteEndpoint.class);
+		when(session.isOpen()).thenReturn(true);
+		when(session.getRemote()).thenReturn(remote);
+		WsConnectContext ctx = mock(WsConnectContext.class);
+		WsOauthHandlerBaseTest.setCtxSession(ctx, session);
+		when(ctx.header("Authorization")).thenReturn("Bearer " + tenant);
+		handler.handleConnect(ctx);
+		return remote;
+	}
+}
@@ -0,0 +1,269 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Extension;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.ExtensionStack;
+import org.eclipse.jetty.websocket.common.frames.ContinuationFrame;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+import org.junit.jupiter.api.Test;
+
+class WsDeflateExtensionTest {
+
+	@Test
+	void testConfigureAppliesSettingsToNegotiatedExtension() {
+		WsDeflateExtension deflate = mock(WsDeflateExtension.class);
+		ExtensionStack stack = mock(ExtensionStack.class);
+		when(stack.getExtensions()).thenReturn(Arrays.<Extension>asList(mock(Extension.class), deflate));
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getOutgoingHandler()).thenReturn(stack);
+		WsCompressionConfig config = WsCompressionConfig.defaults().level(1).minSize(1024);
+
+		assertThat(WsDeflateExtension.configure(session, config)).isTrue();
+		verify(deflate).apply(config);
+	}
+
+	@Test
+	void testConfigureWithoutNegotiatedExtensionReturnsFalse() {
+		ExtensionStack stack = mock(ExtensionStack.class);
+		when(stack.getExtensions()).thenReturn(Arrays.<Extension>asList(mock(Extension.class)));
+		WebSocketSession session = mock(WebSocketSession.class);
+		when(session.getOutgoingHandler()).thenReturn(stack);
+
+		assertThat(WsDeflateExtension.configure(session, WsCompressionConfig.defaults())).isFalse();
+		assertThat(WsDeflateExtension.configure(mock(Session.class), WsCompressionConfig.defaults())).isFalse();
+	}
+
+	@Test
+	void testConfigRejectsInvalidValues() {
+		assertThatThrownBy(() -> WsCompressionConfig.defaults().level(10))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> WsCompressionConfig.defaults().minSize(-1))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThat(WsCompressionConfig.disabled().isEnabled()).isFalse();
+		assertThat(WsCompressionConfig.defaults().getMinSize()).isZero();
+	}
+
+	@Test
+	void testDefaultsCompressEveryMessage() throws Exception {
+		Capture capture = new Capture();
+		WsDeflateExtension deflate = extension(capture, WsCompressionConfig.defaults());
+
+		deflate.outgoingFrame(text("x", true), null, BatchMode.OFF);
+
+		assertThat(capture.sent).hasSize(1);
+		assertThat(capture.sent.get(0).rsv1).isTrue();
+		assertThat(inflate(capture.sent)).isEqualTo("x");
+	}
+
+	@Test
+	void testMessagesBelowMinSizeBypassCompression() throws Exception {
+		Capture capture = new Capture();
+		WsDeflateExtension deflate = extension(capture, WsCompressionConfig.defaults().minSize(64));
+		String large = "a".repeat(200);
+
+		deflate.outgoingFrame(text("small", true), null, BatchMode.OFF);
+		deflate.outgoingFrame(text(large, true), null, BatchMode.OFF);
+
+		assertThat(capture.sent).hasSize(2);
+		assertThat(capture.sent.get(0).rsv1).isFalse();
+		assertThat(capture.sent.get(0).text()).isEqualTo("small");
+		assertThat(capture.sent.get(1).rsv1).isTrue();
+		assertThat(capture.sent.get(1).payload.length).isLessThan(large.length());
+		assertThat(inflate(capture.sent.subList(1, 2))).isEqualTo(large);
+	}
+
+	@Test
+	void testContinuationFramesFollowTheFirstFrame() throws Exception {
+		Capture capture = new Capture();
+		WsDeflateExtension deflate = extension(capture, WsCompressionConfig.disabled());
+
+		// Bypassed first frame: the continuation stays uncompressed, even after
+		// compression was turned on in between.
+		deflate.outgoingFrame(text("ab", false), null, BatchMode.OFF);
+		deflate.apply(WsCompressionConfig.defaults());
+		deflate.outgoingFrame(continuation("cd", true), null, BatchMode.OFF);
+
+		assertThat(capture.sent).hasSize(2);
+		assertThat(capture.sent.get(0).rsv1).isFalse();
+		assertThat(capture.sent.get(1).opCode).isEqualTo(OpCode.CONTINUATION);
+		assertThat(capture.sent.get(1).text()).isEqualTo("cd");
+
+		// Compressed first frame: the continuation is compressed too, even after
+		// compression was turned off in between.
+		capture.sent.clear();
+		deflate.outgoingFrame(text("ef", false), null, BatchMode.OFF);
+		deflate.apply(WsCompressionConfig.disabled());
+		deflate.outgoingFrame(continuation("gh", true), null, BatchMode.OFF);
+
+		assertThat(capture.sent.get(0).rsv1).isTrue();
+		assertThat(capture.sent.get(capture.sent.size() - 1).fin).isTrue();
+		assertThat(inflate(capture.sent)).isEqualTo("efgh");
+	}
+
+	@Test
+	void testSmallMessageWaitsForCompressedMessageInFlight() throws Exception {
+		Capture capture = new Capture();
+		capture.complete = false;
+		WsDeflateExtension deflate = extension(capture, WsCompressionConfig.defaults().minSize(64));
+		List<String> completed = new ArrayList<>();
+
+		deflate.outgoingFrame(text("a".repeat(200), true), callback(completed, "large"), BatchMode.OFF);
+		deflate.outgoingFrame(text("x", true), callback(completed, "small"), BatchMode.OFF);
+
+		// The small message is queued behind the large one instead of overtaking it.
+		assertThat(capture.sent).hasSize(1);
+		capture.completeAll();
+		assertThat(capture.sent).hasSize(2);
+		assertThat(capture.sent.get(1).rsv1).isTrue();
+		capture.completeAll();
+		assertThat(completed).containsExactly("large", "small");
+
+		// Nothing in flight anymore, so the next small message bypasses again.
+		deflate.outgoingFrame(text("y", true), callback(completed, "bypassed"), BatchMode.OFF);
+		assertThat(capture.sent.get(2).rsv1).isFalse();
+		capture.completeAll();
+		assertThat(completed).containsExactly("large", "small", "bypassed");
+	}
+
+	@Test
+	void testDeflaterIsResetAfterEachMessageWithoutContextTakeover() throws Exception {
+		String message = "The quick brown fox jumps over the lazy dog, 0123456789.";
+
+		Capture shared = new Capture();
+		WsDeflateExtension takeover = extension(shared, WsCompressionConfig.defaults());
+		takeover.outgoingFrame(text(message, true), null, BatchMode.OFF);
+		takeover.outgoingFrame(text(message, true), null, BatchMode.OFF);
+		// The second message refers back to the first one.
+		assertThat(shared.sent.get(1).payload.length).isLessThan(shared.sent.get(0).payload.length);
+
+		Capture reset = new Capture();
+		WsDeflateExtension noTakeover = extension(reset, WsCompressionConfig.defaults().contextTakeover(false));
+		noTakeover.outgoingFrame(text(message, true), null, BatchMode.OFF);
+		noTakeover.outgoingFrame(text(message, true), null, BatchMode.OFF);
+		assertThat(reset.sent.get(1).payload).isEqualTo(reset.sent.get(0).payload);
+		assertThat(inflate(reset.sent.subList(1, 2))).isEqualTo(message);
+	}
+
+	private static WsDeflateExtension extension(Capture capture, WsCompressionConfig config) {
+		WsDeflateExtension deflate = new WsDeflateExtension();
+		deflate.setBufferPool(new MappedByteBufferPool());
+		deflate.setPolicy(WebSocketPolicy.newServerPolicy());
+		deflate.setConfig(ExtensionConfig.parse("permessage-deflate"));
+		deflate.setNextOutgoingFrames(capture);
+		deflate.apply(config);
+		return deflate;
+	}
+
+	private static Frame text(String payload, boolean fin) {
+		return new TextFrame().setPayload(payload).setFin(fin);
+	}
+
+	private static Frame continuation(String payload, boolean fin) {
+		return new ContinuationFrame().setPayload(payload).setFin(fin);
+	}
+
+	private static WriteCallback callback(List<String> completed, String name) {
+		return new WriteCallback() {
+			@Override
+			public void writeSuccess() {
+				completed.add(name);
+			}
+
+			@Override
+			public void writeFailed(Throwable x) {
+				completed.add(name + " failed");
+			}
+		};
+	}
+
+	/**
+	 * Inflates the payloads of the frames of one compressed message.
+	 */
+	private static String inflate(List<Sent> frames) throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		for (Sent frame : frames)
+			compressed.write(frame.payload);
+		compressed.write(new byte[] { 0, 0, (byte) 0xFF, (byte) 0xFF });
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed.toByteArray());
+			byte[] out = new byte[4096];
+			int length = inflater.inflate(out);
+			return new String(out, 0, length, StandardCharsets.UTF_8);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static class Sent {
+		final byte opCode;
+		final boolean fin;
+		final boolean rsv1;
+		final byte[] payload;
+
+		Sent(Frame frame) {
+			opCode = frame.getOpCode();
+			fin = frame.isFin();
+			rsv1 = frame.isRsv1();
+			ByteBuffer data = frame.getPayload();
+			payload = new byte[data == null ? 0 : data.remaining()];
+			if (data != null)
+				data.slice().get(payload);
+		}
+
+		String text() {
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Stands in for the connection; copies each frame, since the extension
+	 * releases compressed buffers once their write completed.
+	 */
+	private static class Capture implements OutgoingFrames {
+		final List<Sent> sent = new ArrayList<>();
+		final List<WriteCallback> pending = new ArrayList<>();
+		boolean complete = true;
+
+		@Override
+		public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+			sent.add(new Sent(frame));
+			if (callback == null)
+				return;
+			if (complete)
+				callback.writeSuccess();
+			else
+				pending.add(callback);
+		}
+
+		void completeAll() {
+			List<WriteCallback> callbacks = new ArrayList<>(pending);
+			pending.clear();
+			for (WriteCallback callback : callbacks)
+				callback.writeSuccess();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsMessageContext;
+
+class WsDispatcherTest {
+
+	private final WsDispatcher dispatcher = WsDispatcher.virtualThreads();
+
+	@AfterEach
+	void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Test
+	void testCallbacksOfOneSessionRunInOrder() throws Exception {
+		WsContext ctx = context(mock(Session.class));
+		List<Integer> seen = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+
+		for (int i = 0; i < 200; i++) {
+			int n = i;
+			dispatcher.dispatch(ctx, () -> {
+				if (n % 10 == 0)
+					Thread.sleep(1);
+				seen.add(n);
+			}, (e, c) -> {
+			}, false);
+		}
+		dispatcher.dispatch(ctx, done::countDown, (e, c) -> {
+		}, true);
+
+		assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(seen).hasSize(200).isSorted();
+		// The queue is dropped right after the last callback returned.
+		for (int i = 0; i < 100 && dispatcher.size() > 0; i++)
+			Thread.sleep(10);
+		assertThat(dispatcher.size()).isZero();
+	}
+
+	@Test
+	void testBlockedSessionDoesNotBlockOthers() throws Exception {
+		WsContext blocked = context(mock(Session.class));
+		WsContext other = context(mock(Session.class));
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch otherRan = new CountDownLatch(1);
+
+		dispatcher.dispatch(blocked, () -> release.await(5, TimeUnit.SECONDS), (e, c) -> {
+		}, false);
+		dispatcher.dispatch(other, otherRan::countDown, (e, c) -> {
+		}, false);
+
+		assertThat(otherRan.await(5, TimeUnit.SECONDS)).isTrue();
+		release.countDown();
+	}
+
+	@Test
+	void testExceptionsGoToErrorHandler() throws Exception {
+		WsContext ctx = context(mock(Session.class));
+		AtomicReference<Exception> error = new AtomicReference<>();
+		CountDownLatch handled = new CountDownLatch(1);
+
+		dispatcher.dispatch(ctx, () -> {
+			throw new IllegalStateException("boom");
+		}, (e, c) -> {
+			error.set(e);
+			handled.countDown();
+		}, false);
+
+		assertThat(handled.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(error.get()).hasMessage("boom");
+	}
+
+	@Test
+	void testFullQueueSuspendsReadsAndOverflowCloses() {
+		List<Runnable> drains = new ArrayList<>();
+		WsDispatcher bounded = new WsDispatcher(drains::add, 2);
+		Session session = mock(Session.class);
+		SuspendToken token = mock(SuspendToken.class);
+		when(session.suspend()).thenReturn(token);
+		WsContext ctx = context(session);
+		List<Integer> seen = new ArrayList<>();
+
+		for (int i = 0; i < 5; i++) {
+			int n = i;
+			bounded.dispatch(ctx, () -> seen.add(n), (e, c) -> {
+			}, false);
+		}
+		verify(session, times(1)).suspend();
+		verify(session).close(1008, "Dispatch queue overflow");
+		verify(token, never()).resume();
+
+		bounded.dispatch(ctx, () -> seen.add(-1), (e, c) -> {
+		}, true);
+		verify(session, times(1)).close(anyInt(), anyString());
+
+		assertThat(drains).hasSize(1);
+		drains.get(0).run();
+		assertThat(seen).containsExactly(0, 1, 2, 3, -1);
+		verify(token, times(1)).resume();
+	}
+
+	private static WsContext context(Session session) {
+		WsMessageContext ctx = mock(WsMessageContext.class);
+		WsOauthHandlerBaseTest.setCtxSession(ctx, session);
+		return ctx;
+	}
+}
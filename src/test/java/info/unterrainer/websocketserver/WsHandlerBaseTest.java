@@ -1,11 +1,18 @@
 package info.unterrainer.websocketserver;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import io.javalin.websocket.WsBinaryMessageContext;
@@ -120,6 +127,66 @@ class WsHandlerBaseTest {
 		assertThat(handler.lastMessage).isEqualTo("message-4");
 	}
 
+	@Test
+	void testBinaryMessageIsPassedAsReadOnlyViewOfTheFrame() throws Exception {
+		byte[] frame = new byte[] { 9, 9, 1, 2, 3, 9 };
+		when(binaryMessageContext.data()).thenReturn(frame);
+		when(binaryMessageContext.offset()).thenReturn(2);
+		when(binaryMessageContext.length()).thenReturn(3);
+		ByteBufferHandler bufferHandler = new ByteBufferHandler();
+
+		bufferHandler.onBinaryMsg(binaryMessageContext);
+
+		ByteBuffer data = bufferHandler.lastData;
+		assertThat(data.isReadOnly()).isTrue();
+		assertThat(data.remaining()).isEqualTo(3);
+		assertThat(data.get(0)).isEqualTo((byte) 1);
+		assertThat(data.get(2)).isEqualTo((byte) 3);
+		frame[2] = 7;
+		assertThat(data.get(0)).as("view, not a copy").isEqualTo((byte) 7);
+	}
+
+	@Test
+	void testSendBufferWritesWithoutCopying() throws Exception {
+		Session session = mock(Session.class);
+		RemoteEndpoint remote = mock(RemoteEndpoint.class);
+		when(session.isOpen()).thenReturn(true);
+		when(session.getRemote()).thenReturn(remote);
+		ByteBuffer data = ByteBuffer.allocateDirect(4);
+
+		assertThat(handler.send(session, data, null)).isTrue();
+
+		ArgumentCaptor<ByteBuffer> sent = ArgumentCaptor.forClass(ByteBuffer.class);
+		verify(remote).sendBytes(sent.capture(), isNull());
+		assertThat(sent.getValue().isDirect()).isTrue();
+		assertThat(sent.getValue().remaining()).isEqualTo(4);
+	}
+
+	private static class ByteBufferHandler extends WsHandlerBase {
+		ByteBuffer lastData;
+
+		@Override
+		public void onConnect(WsConnectContext ctx) throws Exception {
+		}
+
+		@Override
+		public void onMsg(WsMessageContext ctx) throws Exception {
+		}
+
+		@Override
+		public void onBinaryMsg(WsBinaryMessageContext ctx, ByteBuffer data) throws Exception {
+			lastData = data;
+		}
+
+		@Override
+		public void onClose(WsCloseContext ctx) throws Exception {
+		}
+
+		@Override
+		public void onError(WsErrorContext ctx) throws Exception {
+		}
+	}
+
 	/**
 	 * Test implementation of WsHandlerBase
 	 */
@@ -0,0 +1,80 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class WsInboundLimiterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void testMessageRate() {
+		WsInboundLimiter limiter = new WsInboundLimiter(WsInboundLimitConfig.defaults().messageRate(2, 2));
+		long now = 10 * SECOND;
+
+		assertThat(limiter.tryAcquire(100, now)).isTrue();
+		assertThat(limiter.tryAcquire(100, now)).isTrue();
+		assertThat(limiter.tryAcquire(100, now)).isFalse();
+		assertThat(limiter.nanosUntilAvailable(now)).isEqualTo(SECOND / 2);
+		assertThat(limiter.tryAcquire(100, now + SECOND / 2)).isTrue();
+	}
+
+	@Test
+	void testByteRateClampsLargeMessagesToBurst() {
+		WsInboundLimiter limiter = new WsInboundLimiter(WsInboundLimitConfig.defaults().byteRate(1000, 1000));
+		long now = 10 * SECOND;
+
+		assertThat(limiter.tryAcquire(5000, now)).isTrue();
+		assertThat(limiter.tryAcquire(1, now)).isFalse();
+		assertThat(limiter.tryAcquire(500, now + SECOND / 2)).isTrue();
+	}
+
+	@Test
+	void testMessageRejectedByBytesKeepsItsMessageToken() {
+		WsInboundLimiter limiter = new WsInboundLimiter(
+				WsInboundLimitConfig.defaults().messageRate(2, 2).byteRate(1000, 1000));
+		long now = 10 * SECOND;
+
+		assertThat(limiter.tryAcquire(1000, now)).isTrue();
+		assertThat(limiter.tryAcquire(1000, now)).isFalse();
+		assertThat(limiter.tryAcquire(1000, now)).isFalse();
+		// Only the first message was taken from the message-bucket.
+		assertThat(limiter.tryAcquire(1, now + SECOND / 1000)).isTrue();
+	}
+
+	@Test
+	void testChargeTakesMessagesBeyondTheLimits() {
+		WsInboundLimiter limiter = new WsInboundLimiter(WsInboundLimitConfig.defaults().messageRate(2, 2));
+		long now = 10 * SECOND;
+
+		assertThat(limiter.charge(100, now)).isTrue();
+		assertThat(limiter.charge(100, now)).isTrue();
+		assertThat(limiter.charge(100, now)).isFalse();
+		assertThat(limiter.charge(100, now)).isFalse();
+		// Both messages over the limit were charged, so it takes a second longer.
+		assertThat(limiter.nanosUntilAvailable(now)).isEqualTo(3 * SECOND / 2);
+		assertThat(limiter.tryAcquire(100, now + SECOND)).isFalse();
+		assertThat(limiter.tryAcquire(100, now + 3 * SECOND / 2)).isTrue();
+	}
+
+	@Test
+	void testUnlimitedAlwaysAdmits() {
+		WsInboundLimiter limiter = new WsInboundLimiter(WsInboundLimitConfig.defaults());
+		for (int i = 0; i < 10_000; i++)
+			assertThat(limiter.tryAcquire(1 << 20, 0)).isTrue();
+		assertThat(limiter.nanosUntilAvailable(0)).isZero();
+	}
+
+	@Test
+	void testSuspendOnlyOnce() {
+		WsInboundLimiter limiter = new WsInboundLimiter(WsInboundLimitConfig.defaults());
+
+		assertThat(limiter.suspend()).isTrue();
+		assertThat(limiter.suspend()).isFalse();
+		limiter.resumed();
+		assertThat(limiter.isSuspended()).isFalse();
+	}
+}
@@ -0,0 +1,79 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class WsJsonCodecTest {
+
+	@Test
+	void testDecodesAllValueTypesToTree() {
+		Object tree = WsJsonCodec.tree().decode(
+				" {\"s\":\"a\\\"b\\u00e4\",\"i\":-12,\"d\":1.5e2,\"t\":true,\"f\":false,\"n\":null,\"l\":[1,[],{}]} ");
+
+		Map<String, Object> expected = new LinkedHashMap<>();
+		expected.put("s", "a\"bä");
+		expected.put("i", -12);
+		expected.put("d", 150.0);
+		expected.put("t", true);
+		expected.put("f", false);
+		expected.put("n", null);
+		expected.put("l", Arrays.asList(1, List.of(), Map.of()));
+		assertThat(tree).isEqualTo(expected);
+	}
+
+	@Test
+	void testRejectsMalformedJson() {
+		WsJsonCodec<Object> codec = WsJsonCodec.tree();
+		for (String json : new String[] { "", "{", "[1,]", "{\"a\" 1}", "tru", "1 2", "\"abc", "0123", "-" })
+			assertThatThrownBy(() -> codec.decode(json)).as(json).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void testBindsToType() {
+		WsJsonCodec<Point> codec = WsJsonCodec.of(Point.class);
+
+		Point point = codec.decode("{\"x\":3,\"y\":4}");
+		assertThat(point.x).isEqualTo(3);
+		assertThat(point.y).isEqualTo(4);
+		assertThat(codec.encode(point).getText()).isEqualTo("{\"x\":3,\"y\":4}");
+		assertThatThrownBy(() -> codec.decode("{\"x\":\"a\"}")).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void testRoundTripThroughBinaryFrames() {
+		WsJsonCodec<Object> codec = WsJsonCodec.tree();
+		Map<String, Object> tree = new LinkedHashMap<>();
+		tree.put("id", 7);
+		tree.put("tags", List.of("a", "ä€😀"));
+
+		WsPreparedMessage encoded = codec.encode(tree);
+		assertThat(encoded.isText()).isTrue();
+		assertThat(codec.decode(encoded.getText())).isEqualTo(tree);
+		assertThat(codec.decode(encoded.getPayload())).isEqualTo(tree);
+		assertThat(codec.decode(encoded.getPayload().asReadOnlyBuffer())).isEqualTo(tree);
+	}
+
+	@Test
+	void testDecodesFromPositionToLimit() {
+		ByteBuffer frame = ByteBuffer.wrap("xx[\"ä\"]yy".getBytes(StandardCharsets.UTF_8));
+		frame.position(2).limit(frame.limit() - 2);
+
+		assertThat(WsJsonCodec.tree().decode(frame)).isEqualTo(List.of("ä"));
+		assertThat(WsJsonCodec.tree().decode(frame.asReadOnlyBuffer())).isEqualTo(List.of("ä"));
+		assertThat(frame.position()).isEqualTo(2);
+	}
+
+	public static class Point {
+		public int x;
+		public int y;
+	}
+}
@@ -0,0 +1,340 @@
+package info.unterrainer.websocketserver;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opens many local connections against a server echoing every message back
+ * and drives them at a fixed aggregate rate. Each message carries its send
+ * time, so the echo yields the round-trip time without any bookkeeping per
+ * message.
+ */
+@Slf4j
+class WsLoadGenerator implements AutoCloseable {
+
+	private final URI uri;
+	private int connections = 1000;
+	private int connectParallelism = 64;
+	private double messagesPerSecond = 1000;
+	private int payloadBytes = 64;
+	private String authorization;
+	private String firstMessage;
+
+	private final WebSocketClient client = new WebSocketClient();
+	private final List<Probe> probes = Collections.synchronizedList(new ArrayList<>());
+	private final LatencyHistogram connectTimes = new LatencyHistogram();
+	private final LatencyHistogram echoTimes = new LatencyHistogram();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong closedByServer = new AtomicLong();
+	private String padding = "";
+
+	WsLoadGenerator(URI uri) {
+		this.uri = uri;
+	}
+
+	WsLoadGenerator connections(int connections) {
+		this.connections = connections;
+		return this;
+	}
+
+	/**
+	 * Number of handshakes in flight at the same time.
+	 */
+	WsLoadGenerator connectParallelism(int connectParallelism) {
+		this.connectParallelism = connectParallelism;
+		return this;
+	}
+
+	/**
+	 * Aggregate rate over all connections.
+	 */
+	WsLoadGenerator messagesPerSecond(double messagesPerSecond) {
+		this.messagesPerSecond = messagesPerSecond;
+		return this;
+	}
+
+	WsLoadGenerator payloadBytes(int payloadBytes) {
+		this.payloadBytes = payloadBytes;
+		return this;
+	}
+
+	/**
+	 * Sent as Authorization-header during the handshake.
+	 */
+	WsLoadGenerator authorization(String authorization) {
+		this.authorization = authorization;
+		return this;
+	}
+
+	/**
+	 * Sent right after connecting, e.g. a Bearer-token for quarantined clients.
+	 */
+	WsLoadGenerator firstMessage(String firstMessage) {
+		this.firstMessage = firstMessage;
+		return this;
+	}
+
+	/**
+	 * Opens all connections and waits for their handshakes.
+	 *
+	 * @return the number of open connections
+	 */
+	int connect(long timeout, TimeUnit unit) throws Exception {
+		if (!client.isRunning()) {
+			client.start();
+			padding = payloadBytes > 20 ? "x".repeat(payloadBytes - 20) : "";
+		}
+		Semaphore inFlight = new Semaphore(connectParallelism);
+		CountDownLatch done = new CountDownLatch(connections);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int i = 0; i < connections; i++) {
+			if (!inFlight.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+				break;
+			Probe probe = new Probe(inFlight, done);
+			ClientUpgradeRequest request = new ClientUpgradeRequest();
+			if (authorization != null)
+				request.setHeader("Authorization", authorization);
+			probe.started = System.nanoTime();
+			try {
+				client.connect(probe, uri, request);
+			} catch (Exception e) {
+				probe.finish();
+				failed.incrementAndGet();
+			}
+		}
+		done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		return openConnections();
+	}
+
+	/**
+	 * Sends messages round-robin over all open connections at the configured
+	 * rate for the given time.
+	 */
+	void drive(long duration, TimeUnit unit) throws InterruptedException {
+		List<Probe> open = new ArrayList<>();
+		synchronized (probes) {
+			for (Probe p : probes)
+				if (p.session != null && p.session.isOpen())
+					open.add(p);
+		}
+		if (open.isEmpty())
+			return;
+		long tickNanos = TimeUnit.MILLISECONDS.toNanos(1);
+		double perTick = messagesPerSecond / 1000d;
+		double owed = 0;
+		int next = 0;
+		long end = System.nanoTime() + unit.toNanos(duration);
+		for (long tick = System.nanoTime(); tick < end; tick += tickNanos) {
+			owed += perTick;
+			for (; owed >= 1; owed--) {
+				Probe probe = open.get(next++ % open.size());
+				probe.send(System.nanoTime() + ":" + padding);
+			}
+			long sleep = tick + tickNanos - System.nanoTime();
+			if (sleep > 0)
+				TimeUnit.NANOSECONDS.sleep(sleep);
+		}
+	}
+
+	/**
+	 * Waits until every message sent got its echo or the timeout passed.
+	 */
+	boolean awaitEchoes(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (received.get() + failed.get() < sent.get()) {
+			if (System.nanoTime() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	int openConnections() {
+		int open = 0;
+		synchronized (probes) {
+			for (Probe p : probes)
+				if (p.session != null && p.session.isOpen())
+					open++;
+		}
+		return open;
+	}
+
+	/**
+	 * Closes all connections and waits for the close-handshakes.
+	 */
+	void disconnect(long timeout, TimeUnit unit) throws InterruptedException {
+		List<Probe> all;
+		synchronized (probes) {
+			all = new ArrayList<>(probes);
+			probes.clear();
+		}
+		for (Probe p : all) {
+			p.closing = true;
+			if (p.session != null)
+				p.session.close(1000, "Load run finished");
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Probe p : all)
+			p.closed.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	Report report() {
+		return new Report(connectTimes, echoTimes, sent.get(), received.get(), failed.get(), closedByServer.get());
+	}
+
+	void resetStatistics() {
+		connectTimes.reset();
+		echoTimes.reset();
+		sent.set(0);
+		received.set(0);
+		failed.set(0);
+		closedByServer.set(0);
+	}
+
+	@Override
+	public void close() throws Exception {
+		disconnect(5, TimeUnit.SECONDS);
+		client.stop();
+	}
+
+	/**
+	 * Heap in use after a full collection. Server and clients share the JVM, so
+	 * divide the difference of two of these by the number of connections and
+	 * compare the results of the same setup only.
+	 */
+	static long usedHeapAfterGc() throws InterruptedException {
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+			used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	static class Report {
+		final LatencyHistogram connect;
+		final LatencyHistogram echo;
+		final long sent;
+		final long received;
+		final long failed;
+		final long closedByServer;
+
+		Report(LatencyHistogram connect, LatencyHistogram echo, long sent, long received, long failed,
+				long closedByServer) {
+			this.connect = connect;
+			this.echo = echo;
+			this.sent = sent;
+			this.received = received;
+			this.failed = failed;
+			this.closedByServer = closedByServer;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("connect [%s], echo [%s], sent=%d received=%d failed=%d closedByServer=%d",
+					connect, echo, sent, received, failed, closedByServer);
+		}
+	}
+
+	@WebSocket
+	public class Probe implements WriteCallback {
+		private final Semaphore inFlight;
+		private final CountDownLatch connected;
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private boolean finished;
+		volatile long started;
+		volatile boolean closing;
+		volatile Session session;
+
+		Probe(Semaphore inFlight, CountDownLatch connected) {
+			this.inFlight = inFlight;
+			this.connected = connected;
+		}
+
+		private synchronized void finish() {
+			if (finished)
+				return;
+			finished = true;
+			inFlight.release();
+			connected.countDown();
+		}
+
+		void send(String message) {
+			Session s = session;
+			if (s == null || !s.isOpen())
+				return;
+			sent.incrementAndGet();
+			s.getRemote().sendString(message, this);
+		}
+
+		@Override
+		public void writeSuccess() {
+		}
+
+		@Override
+		public void writeFailed(Throwable x) {
+			failed.incrementAndGet();
+		}
+
+		@OnWebSocketConnect
+		public void onConnect(Session session) {
+			connectTimes.recordNanos(System.nanoTime() - started);
+			this.session = session;
+			probes.add(this);
+			if (firstMessage != null)
+				session.getRemote().sendString(firstMessage, this);
+			finish();
+		}
+
+		@OnWebSocketMessage
+		public void onMessage(String message) {
+			int colon = message.indexOf(':');
+			if (colon <= 0)
+				return;
+			try {
+				echoTimes.recordNanos(System.nanoTime() - Long.parseLong(message.substring(0, colon)));
+				received.incrementAndGet();
+			} catch (NumberFormatException e) {
+				// not an echo of ours
+			}
+		}
+
+		@OnWebSocketClose
+		public void onClose(int statusCode, String reason) {
+			if (!closing)
+				closedByServer.incrementAndGet();
+			closed.countDown();
+			finish();
+		}
+
+		@OnWebSocketError
+		public void onError(Throwable error) {
+			log.debug("Load-probe failed.", error);
+			failed.incrementAndGet();
+			closed.countDown();
+			finish();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.oauthtokenmanager.OauthTokenManager;
+import io.javalin.websocket.WsMessageContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opens thousands of local connections against an echoing OAuth-handler and
+ * reports connect time, echo round-trip percentiles and heap per connection.
+ * The generator runs in the same JVM as the server, so the heap covers both
+ * ends of a connection; it's an upper bound of what the server keeps and only
+ * comparable between runs of the same setup.
+ * Run with {@code mvn -Pload test}; size it using {@code -Dload.connections},
+ * {@code -Dload.rate} (messages per second) and {@code -Dload.seconds}.
+ */
+@Slf4j
+@Tag("load")
+class WsLoadTest {
+
+	static final String VALID_TOKEN = "Bearer load-test";
+
+	private final int connections = Integer.getInteger("load.connections", 2000);
+	private final int rate = Integer.getInteger("load.rate", 5000);
+	private final int seconds = Integer.getInteger("load.seconds", 30);
+	private final int port = 18082;
+
+	private WebsocketServer server;
+	private EchoHandler handler;
+
+	@BeforeEach
+	void setUp() {
+		server = new WebsocketServer("load-server");
+		handler = new EchoHandler("load-echo");
+		register(server, "/echo", handler);
+		server.start(port);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	void echoUnderLoad() throws Exception {
+		long heapBefore = WsLoadGenerator.usedHeapAfterGc();
+		try (WsLoadGenerator generator = new WsLoadGenerator(new URI("ws://localhost:" + port + "/echo"))
+				.connections(connections)
+				.messagesPerSecond(rate)
+				.authorization(VALID_TOKEN)) {
+			assertThat(generator.connect(2, TimeUnit.MINUTES)).isEqualTo(connections);
+			long jvmHeapPerConnection = (WsLoadGenerator.usedHeapAfterGc() - heapBefore) / connections;
+
+			generator.drive(seconds, TimeUnit.SECONDS);
+			assertThat(generator.awaitEchoes(30, TimeUnit.SECONDS)).isTrue();
+
+			WsLoadGenerator.Report report = generator.report();
+			log.info("[{}] connections, [{}] msg/s for [{}]s: {}, "
+					+ "heap per connection (server and client in one JVM) [{}] bytes", connections, rate, seconds,
+					report, jvmHeapPerConnection);
+			assertThat(report.failed).isZero();
+			assertThat(report.closedByServer).isZero();
+			assertThat(report.received).isEqualTo(report.sent);
+
+			generator.disconnect(30, TimeUnit.SECONDS);
+		}
+		awaitEmpty(handler, 10_000);
+	}
+
+	static void awaitEmpty(WsOauthHandlerBase handler, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (handler.clients.size() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertThat(handler.clients.size()).isZero();
+		assertThat(handler.clientsQuarantined).isEmpty();
+		assertThat(handler.tenantIdsBySession).isEmpty();
+	}
+
+	/**
+	 * Binds the handler the same way {@link WebsocketServer#wsOauth} does, but
+	 * with a token manager accepting {@link #VALID_TOKEN} only, so no Keycloak
+	 * is needed.
+	 */
+	static void register(WebsocketServer server, String path, WsOauthHandlerBase handler) {
+		OauthTokenManager tokenManager = mock(OauthTokenManager.class, withSettings().stubOnly());
+		try {
+			when(tokenManager.checkAccess(anyString())).thenAnswer(invocation -> {
+				if (!VALID_TOKEN.equals(invocation.getArgument(0)))
+					throw new SecurityException("Invalid token.");
+				return "load-tenant";
+			});
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		handler.setTokenHandler(tokenManager);
+		server.track(handler);
+		server.ws(path, ws -> {
+			ws.onConnect(handler::onConnect);
+			ws.onMessage(handler::handleMessage);
+			ws.onBinaryMessage(handler::handleBinaryMessage);
+			ws.onClose(handler::onClose);
+			ws.onError(handler::onError);
+		});
+	}
+
+	static class EchoHandler extends WsOauthHandlerBase {
+
+		EchoHandler(String name) {
+			super(name);
+		}
+
+		@Override
+		public void onMsg(WsMessageContext ctx) throws Exception {
+			send(ctx.session, ctx.message());
+		}
+	}
+}
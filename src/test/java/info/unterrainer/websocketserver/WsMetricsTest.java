@@ -0,0 +1,63 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.websocketserver.WsMetricsRegistry.Counter;
+import info.unterrainer.websocketserver.WsMetricsRegistry.Gauge;
+import info.unterrainer.websocketserver.WsMetricsRegistry.Timer;
+
+class WsMetricsTest {
+
+	private final WsMetrics metrics = new WsMetrics();
+
+	@Test
+	void testCountersAndGaugesArePerEndpoint() {
+		metrics.endpoint("a").increment(Counter.MESSAGES_IN, 3);
+		metrics.endpoint("b").increment(Counter.MESSAGES_IN, 1);
+		metrics.endpoint("a").gauge(Gauge.ACTIVE_SESSIONS, () -> 7);
+
+		assertThat(metrics.get("a", Counter.MESSAGES_IN)).isEqualTo(3);
+		assertThat(metrics.get("b", Counter.MESSAGES_IN)).isEqualTo(1);
+		assertThat(metrics.get("a", Gauge.ACTIVE_SESSIONS)).isEqualTo(7);
+		assertThat(metrics.get("b", Gauge.ACTIVE_SESSIONS)).isZero();
+		assertThat(metrics.get("unknown", Counter.MESSAGES_IN)).isZero();
+	}
+
+	@Test
+	void testSameEndpointIsReturnedForSameName() {
+		assertThat(metrics.endpoint("a")).isSameAs(metrics.endpoint("a"));
+	}
+
+	@Test
+	void testScrapeRendersPrometheusTextFormat() {
+		WsMetricsRegistry.Endpoint a = metrics.endpoint("a");
+		a.increment(Counter.CONNECTS, 2);
+		a.gauge(Gauge.QUARANTINED_SESSIONS, () -> 1);
+		a.recordNanos(Timer.AUTH, TimeUnit.MICROSECONDS.toNanos(50));
+		a.recordNanos(Timer.AUTH, TimeUnit.MILLISECONDS.toNanos(3));
+		a.recordNanos(Timer.AUTH, TimeUnit.SECONDS.toNanos(20));
+
+		String text = metrics.scrape();
+
+		assertThat(text).contains("# TYPE websocket_connects_total counter\n")
+				.contains("websocket_connects_total{endpoint=\"a\"} 2\n")
+				.contains("websocket_quarantined_sessions{endpoint=\"a\"} 1\n")
+				.contains("# TYPE websocket_auth_seconds histogram\n")
+				.contains("websocket_auth_seconds_bucket{endpoint=\"a\",le=\"1.0E-4\"} 1\n")
+				.contains("websocket_auth_seconds_bucket{endpoint=\"a\",le=\"0.005\"} 2\n")
+				.contains("websocket_auth_seconds_bucket{endpoint=\"a\",le=\"10.0\"} 2\n")
+				.contains("websocket_auth_seconds_bucket{endpoint=\"a\",le=\"+Inf\"} 3\n")
+				.contains("websocket_auth_seconds_count{endpoint=\"a\"} 3\n");
+	}
+
+	@Test
+	void testEndpointNamesAreEscaped() {
+		metrics.endpoint("a\"b").increment(Counter.CONNECTS, 1);
+
+		assertThat(metrics.scrape()).contains("websocket_connects_total{endpoint=\"a\\\"b\"} 1\n");
+	}
+}
@@ -0,0 +1,109 @@
+package info.unterrainer.websocketserver;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import info.unterrainer.oauthtokenmanager.OauthTokenManager;
+import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsMessageContext;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WsOauthHandlerBaseBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int clients;
+
+	private BlackholeHandler handler;
+	private WsMessageContext connectedMessage;
+	private WsConnectContext quarantined;
+	private WsMessageContext quarantinedBearer;
+	private WsPreparedMessage broadcastMessage;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		OauthTokenManager tokenManager = mock(OauthTokenManager.class, withSettings().stubOnly());
+		when(tokenManager.checkAccess(anyString())).thenReturn("tenant");
+		handler = new BlackholeHandler();
+		handler.setTokenHandler(tokenManager);
+
+		Session first = null;
+		for (int i = 0; i < clients; i++) {
+			Session session = BenchmarkFixtures.openSession();
+			handler.handleConnect(BenchmarkFixtures.connectContext(session, "Bearer token"));
+			if (first == null)
+				first = session;
+		}
+		connectedMessage = BenchmarkFixtures.messageContext(first, "{\"type\":\"update\",\"value\":42}");
+
+		Session session = BenchmarkFixtures.openSession();
+		quarantined = BenchmarkFixtures.connectContext(session, null);
+		quarantinedBearer = BenchmarkFixtures.messageContext(session, "Bearer token");
+		broadcastMessage = WsPreparedMessage.text("{\"type\":\"broadcast\",\"value\":42}");
+	}
+
+	@Benchmark
+	public void handleMessageConnected(Blackhole bh) throws Exception {
+		handler.blackhole = bh;
+		handler.handleMessage(connectedMessage);
+	}
+
+	/**
+	 * Quarantine, then authenticate using the first message; this is the
+	 * lookup, token-check and promotion of a client sending its token late.
+	 */
+	@Benchmark
+	public boolean handleMessageQuarantined() throws Exception {
+		handler.clients.add(quarantined, WsClient.State.QUARANTINED);
+		handler.handleMessage(quarantinedBearer);
+		return handler.clients.is(quarantined.session, WsClient.State.CONNECTED);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int broadcast() {
+		return handler.broadcast(broadcastMessage).getAttempted();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int broadcastToTenant() {
+		return handler.broadcastToTenant("tenant", broadcastMessage).getAttempted();
+	}
+
+	static class BlackholeHandler extends WsOauthHandlerBase {
+		Blackhole blackhole;
+
+		BlackholeHandler() {
+			super("benchmark");
+		}
+
+		@Override
+		public void onMsg(WsMessageContext ctx) throws Exception {
+			blackhole.consume(ctx);
+		}
+	}
+}
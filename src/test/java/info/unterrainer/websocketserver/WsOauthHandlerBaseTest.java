@@ -1,7 +1,15 @@
 package info.unterrainer.websocketserver;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -9,10 +17,19 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -77,6 +94,21 @@ class WsOauthHandlerBaseTest {
     assertThat(handler.tenantIdsBySession.get(session)).isEqualTo(tenantId);
   }
 
+  @Test
+  void testBaseHandlerIgnoresMessagesOfConnectedClients() throws Exception {
+    WsOauthHandlerBase base = new WsOauthHandlerBase("base");
+    base.setTokenHandler(tokenManager);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant");
+    base.handleConnect(connectContext);
+
+    when(messageContext.message()).thenReturn("hello");
+    base.handleMessage(messageContext);
+    base.onMsg(messageContext);
+
+    verify(session, never()).close(anyInt(), anyString());
+  }
+
   @Test
   void testHandleConnectWithInvalidToken() throws Exception {
     String invalidToken = "Bearer invalid-token";
@@ -254,9 +286,681 @@ class WsOauthHandlerBaseTest {
     // we do not wait 30s in a unit test; we just ensure setup does not explode
   }
 
+  @Test
+  void testHeartbeatPingsConnectedClientsUntilRemoved() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-heartbeat", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      handler.setHeartbeat(new WsHeartbeat(wheel, 20, TimeUnit.MILLISECONDS));
+      when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-heartbeat");
+      when(session.isOpen()).thenReturn(true);
+      when(session.getRemote()).thenReturn(remoteEndpoint);
+
+      handler.handleConnect(connectContext);
+
+      verify(remoteEndpoint, timeout(2000).atLeast(2)).sendPing(any(ByteBuffer.class));
+
+      handler.removeClient(session);
+      Thread.sleep(50);
+      clearInvocations(remoteEndpoint);
+      Thread.sleep(100);
+      verify(remoteEndpoint, never()).sendPing(any(ByteBuffer.class));
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testHeartbeatPingsAsynchronouslyAndSkipsWhileInFlight() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-heartbeat", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint remote =
+          mock(org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint.class);
+      java.util.List<WriteCallback> callbacks = new java.util.concurrent.CopyOnWriteArrayList<>();
+      doAnswer(inv -> {
+        callbacks.add(inv.getArgument(1));
+        return null;
+      }).when(remote).uncheckedSendFrame(any(), any(WriteCallback.class));
+      when(session.isOpen()).thenReturn(true);
+      when(session.getRemote()).thenReturn(remote);
+
+      new WsHeartbeat(wheel, 10, TimeUnit.MILLISECONDS).register(session, "test-handler");
+      verify(remote, timeout(2000)).uncheckedSendFrame(any(), any(WriteCallback.class));
+      Thread.sleep(100);
+      assertThat(callbacks).hasSize(1);
+      verify(session, never()).close(anyInt(), anyString());
+
+      callbacks.get(0).writeFailed(new IOException("broken pipe"));
+      verify(session).close(1000, "(test-handler) heartbeat failed");
+      Thread.sleep(50);
+      assertThat(callbacks).hasSize(1);
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testRegistryLookupsFollowClientState() throws Exception {
+    when(connectContext.header("Authorization")).thenReturn(null);
+    handler.handleConnect(connectContext);
+
+    assertThat(handler.isQuarantined(session)).isTrue();
+    assertThat(handler.isConnected(session)).isFalse();
+    assertThat(handler.getQuarantinedClient(session)).isSameAs(connectContext);
+    assertThat(handler.getClient(session)).isNull();
+
+    when(messageContext.message()).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-registry");
+    handler.handleMessage(messageContext);
+
+    assertThat(handler.isQuarantined(session)).isFalse();
+    assertThat(handler.isConnected(session)).isTrue();
+    assertThat(handler.getClient(session)).isSameAs(connectContext);
+    assertThat(handler.clients.size(WsClient.State.CONNECTED)).isEqualTo(1);
+    assertThat(handler.clients.size(WsClient.State.QUARANTINED)).isZero();
+
+    handler.removeClient(session);
+
+    assertThat(handler.isConnected(session)).isFalse();
+    assertThat(handler.clientsConnected).isEmpty();
+    assertThat(handler.clients.size()).isZero();
+  }
+
+  @Test
+  void testPromoteOnlyMovesQuarantinedClients() throws Exception {
+    when(connectContext.header("Authorization")).thenReturn(null);
+    handler.handleConnect(connectContext);
+
+    assertThat(handler.clients.promote(session)).isNotNull();
+    assertThat(handler.clients.promote(session)).isNull();
+    assertThat(handler.clientsConnected).containsExactly(connectContext);
+    assertThat(handler.clientsQuarantined).isEmpty();
+  }
+
+  @Test
+  void testBroadcastReachesConnectedClientsOnly() throws Exception {
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-broadcast");
+    when(session.isOpen()).thenReturn(true);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+    completeWritesImmediately();
+    handler.handleConnect(connectContext);
+
+    WsBroadcastResult result = handler.broadcast("hello");
+    WsBroadcastResult tenantResult = handler.broadcastToTenant("tenant-broadcast", "hello tenant");
+    WsBroadcastResult otherTenantResult = handler.broadcastToTenant("other", "nobody");
+
+    verify(remoteEndpoint).sendString(eq("hello"), any(WriteCallback.class));
+    verify(remoteEndpoint).sendString(eq("hello tenant"), any(WriteCallback.class));
+    assertThat(result.getAttempted()).isEqualTo(1);
+    assertThat(result.getDelivered()).isEqualTo(1);
+    assertThat(tenantResult.getAttempted()).isEqualTo(1);
+    assertThat(otherTenantResult.getAttempted()).isZero();
+  }
+
+  @Test
+  void testBroadcastSkipsClosedSessions() throws Exception {
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-closed");
+    when(session.isOpen()).thenReturn(false);
+    handler.handleConnect(connectContext);
+
+    WsBroadcastResult result = handler.broadcast("hello", client -> true);
+
+    assertThat(result.getAttempted()).isZero();
+    assertThat(result.getSkipped()).isEqualTo(1);
+  }
+
+  @Test
+  void testSendQueuesBehindPendingWriteAndClearsOnRemove() throws Exception {
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-queue");
+    when(session.isOpen()).thenReturn(true);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+    handler.handleConnect(connectContext);
+
+    // the mocked remote never completes a write, so everything after the first message waits
+    assertThat(handler.send(session, "one")).isTrue();
+    assertThat(handler.send(session, "two")).isTrue();
+    assertThat(handler.send(session, "three")).isTrue();
+
+    assertThat(handler.getQueueDepth(session)).isEqualTo(3);
+    assertThat(handler.getQueuedBytes(session)).isEqualTo(11);
+    verify(remoteEndpoint).sendString(eq("one"), any(WriteCallback.class));
+
+    handler.removeClient(session);
+
+    assertThat(handler.getQueueDepth(session)).isZero();
+    assertThat(handler.send(session, "four")).isFalse();
+  }
+
+  @Test
+  void testAsyncAuthenticationBuffersEarlyFramesInOrder() throws Exception {
+    WsAuthExecutor executor = WsAuthExecutor.threads(1, 10, 5);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      handler.setAuthExecutor(executor);
+      when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(tokenManager.checkAccess("Bearer valid-token")).thenAnswer(invocation -> {
+        release.await(5, TimeUnit.SECONDS);
+        return "tenant-async";
+      });
+      when(messageContext.message()).thenReturn("early");
+
+      handler.handleConnect(connectContext);
+      handler.handleMessage(messageContext);
+      handler.handleMessage(messageContext);
+
+      assertThat(handler.clients.is(session, WsClient.State.PENDING)).isTrue();
+      assertThat(handler.clientsConnected).isEmpty();
+      TestWsOauthHandler th = (TestWsOauthHandler) handler;
+      assertThat(th.messageCount).isZero();
+
+      release.countDown();
+
+      awaitTrue(() -> handler.isConnected(session));
+      assertThat(th.messageCount).isEqualTo(2);
+      assertThat(handler.getTenantId(session)).isEqualTo("tenant-async");
+
+      handler.handleMessage(messageContext);
+      assertThat(th.messageCount).isEqualTo(3);
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testAsyncAuthenticationClosesOnTooManyEarlyFrames() throws Exception {
+    WsAuthExecutor executor = WsAuthExecutor.threads(1, 10, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      handler.setAuthExecutor(executor);
+      when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(tokenManager.checkAccess("Bearer valid-token")).thenAnswer(invocation -> {
+        release.await(5, TimeUnit.SECONDS);
+        return "tenant-async";
+      });
+      when(messageContext.message()).thenReturn("early");
+
+      handler.handleConnect(connectContext);
+      handler.handleMessage(messageContext);
+      handler.handleMessage(messageContext);
+
+      verify(session).close(1008, "(test-handler) Message before authentication finished");
+      assertThat(handler.clients.size()).isZero();
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testAsyncAuthenticationShedsWhenQueueIsFull() throws Exception {
+    WsAuthExecutor executor = WsAuthExecutor.threads(1, 1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    Session otherSession = mock(Session.class);
+    WsConnectContext otherContext = mock(WsConnectContext.class);
+    setCtxSession(otherContext, otherSession);
+    try {
+      handler.setAuthExecutor(executor);
+      when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(otherContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(tokenManager.checkAccess("Bearer valid-token")).thenAnswer(invocation -> {
+        release.await(5, TimeUnit.SECONDS);
+        return "tenant-async";
+      });
+
+      handler.handleConnect(connectContext);
+      handler.handleConnect(otherContext);
+
+      verify(otherSession).close(1013, "(test-handler) Server busy, try again later");
+      assertThat(handler.clients.get(otherSession)).isNull();
+
+      release.countDown();
+      awaitTrue(() -> handler.isConnected(session));
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testSampledLoggingStillDispatchesEveryMessage() throws Exception {
+    handler.setMessageLogSampling(2);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-sampled");
+    handler.handleConnect(connectContext);
+
+    when(messageContext.message()).thenReturn("hello");
+    for (int i = 0; i < 5; i++)
+      handler.handleMessage(messageContext);
+    handler.handleBinaryMessage(binaryMessageContext);
+
+    TestWsOauthHandler th = (TestWsOauthHandler) handler;
+    assertThat(th.messageCount).isEqualTo(5);
+    assertThat(th.binaryMessageCount).isEqualTo(1);
+  }
+
+  @Test
+  void testMetricsCountConnectsMessagesAndAuthFailures() throws Exception {
+    WsMetrics metrics = new WsMetrics();
+    handler.setMetrics(metrics);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-metrics");
+    handler.handleConnect(connectContext);
+    when(messageContext.message()).thenReturn("hällo");
+    handler.handleMessage(messageContext);
+
+    WsConnectContext rejected = mock(WsConnectContext.class);
+    setCtxSession(rejected, mock(Session.class));
+    when(rejected.header("Authorization")).thenReturn("Bearer invalid-token");
+    when(tokenManager.checkAccess("Bearer invalid-token")).thenThrow(new RuntimeException("Invalid token"));
+    handler.handleConnect(rejected);
+
+    assertThat(metrics.get("test-handler", WsMetricsRegistry.Counter.CONNECTS)).isEqualTo(2);
+    assertThat(metrics.get("test-handler", WsMetricsRegistry.Counter.AUTH_FAILURES)).isEqualTo(1);
+    assertThat(metrics.get("test-handler", WsMetricsRegistry.Counter.MESSAGES_IN)).isEqualTo(1);
+    assertThat(metrics.get("test-handler", WsMetricsRegistry.Counter.BYTES_IN)).isEqualTo(6);
+    assertThat(metrics.get("test-handler", WsMetricsRegistry.Gauge.ACTIVE_SESSIONS)).isEqualTo(1);
+    assertThat(metrics.count("test-handler", WsMetricsRegistry.Timer.AUTH)).isEqualTo(2);
+    assertThat(metrics.count("test-handler", WsMetricsRegistry.Timer.HANDLER)).isEqualTo(1);
+  }
+
+  @Test
+  void testPublishReachesSubscribersAndRemoveClientDropsSubscriptions() throws Exception {
+    completeWritesImmediately();
+    when(session.isOpen()).thenReturn(true);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-topics");
+    handler.handleConnect(connectContext);
+
+    WsConnectContext quarantined = mock(WsConnectContext.class);
+    Session quarantinedSession = mock(Session.class);
+    setCtxSession(quarantined, quarantinedSession);
+    handler.handleConnect(quarantined);
+
+    assertThat(handler.subscribe(session, "sensors/*")).isTrue();
+    assertThat(handler.subscribe(quarantinedSession, "sensors/*")).isFalse();
+
+    assertThat(handler.publish("sensors/1", "update").getDelivered()).isEqualTo(1);
+    assertThat(handler.publish("alarms", "alarm").getAttempted()).isZero();
+    verify(remoteEndpoint).sendString(eq("update"), any(WriteCallback.class));
+
+    handler.removeClient(session);
+    assertThat(handler.getSubscriptions(session)).isEmpty();
+    assertThat(handler.topics.size()).isZero();
+  }
+
+  @Test
+  void testResumedSessionGetsMissedBroadcastsReplayed() throws Exception {
+    handler.setResumeConfig(WsResumeConfig.defaults().controlMessage("%s|%d|%b"));
+    java.util.List<String> sent = new java.util.ArrayList<>();
+    doAnswer(invocation -> {
+      sent.add(invocation.getArgument(0));
+      ((WriteCallback) invocation.getArgument(1)).writeSuccess();
+      return null;
+    }).when(remoteEndpoint).sendString(anyString(), any(WriteCallback.class));
+    when(session.isOpen()).thenReturn(true);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-resume");
+    handler.handleConnect(connectContext);
+    handler.broadcast("1");
+    handler.broadcast("2");
+    handler.removeClient(session);
+    handler.broadcast("3");
+    handler.broadcastToTenant("other-tenant", "not-mine");
+
+    assertThat(sent).hasSize(3);
+    String token = sent.get(0).split("\\|")[0];
+    assertThat(sent.get(0)).isEqualTo(token + "|0|false");
+    sent.clear();
+
+    WsConnectContext reconnect = mock(WsConnectContext.class);
+    setCtxSession(reconnect, session);
+    when(reconnect.header("Authorization")).thenReturn("Bearer valid-token");
+    when(reconnect.header(WsResumeConfig.TOKEN_HEADER)).thenReturn(token);
+    when(reconnect.header(WsResumeConfig.SEQ_HEADER)).thenReturn("1");
+    handler.handleConnect(reconnect);
+
+    assertThat(sent).containsExactly(token + "|1|true", "2", "3");
+    assertThat(handler.clientsConnected).contains(reconnect);
+    assertThat(handler.resumes.size()).isEqualTo(1);
+
+    WsConnectContext stranger = mock(WsConnectContext.class);
+    Session strangerSession = mock(Session.class);
+    when(strangerSession.isOpen()).thenReturn(true);
+    when(strangerSession.getRemote()).thenReturn(remoteEndpoint);
+    setCtxSession(stranger, strangerSession);
+    when(stranger.header("Authorization")).thenReturn("Bearer other-token");
+    when(tokenManager.checkAccess("Bearer other-token")).thenReturn("tenant-other");
+    when(stranger.header(WsResumeConfig.TOKEN_HEADER)).thenReturn(token);
+    when(stranger.header(WsResumeConfig.SEQ_HEADER)).thenReturn("0");
+    sent.clear();
+    handler.handleConnect(stranger);
+
+    assertThat(sent).hasSize(1);
+    assertThat(sent.get(0)).endsWith("|0|false").doesNotStartWith(token);
+  }
+
+  @Test
+  void testClientAuthenticatingFromQuarantineGetsResumableSession() throws Exception {
+    handler.setResumeConfig(WsResumeConfig.defaults().controlMessage("%s|%d|%b"));
+    completeWritesImmediately();
+    when(session.isOpen()).thenReturn(true);
+    when(session.getRemote()).thenReturn(remoteEndpoint);
+    when(connectContext.header("Authorization")).thenReturn(null);
+    when(connectContext.queryParam(WsResumeConfig.TOKEN_PARAM)).thenReturn("unknown-token");
+    when(connectContext.queryParam(WsResumeConfig.SEQ_PARAM)).thenReturn("3");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-resume");
+    when(messageContext.message()).thenReturn("Bearer valid-token");
+
+    handler.handleConnect(connectContext);
+    handler.handleMessage(messageContext);
+
+    assertThat(handler.clientsConnected).contains(connectContext);
+    assertThat(handler.resumes.size()).isEqualTo(1);
+    verify(remoteEndpoint).sendString(org.mockito.ArgumentMatchers.endsWith("|0|false"), any(WriteCallback.class));
+  }
+
+  @Test
+  void testQuarantinedClientIsClosedAfterDeadline() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-quarantine", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      handler.setTimer(wheel);
+      handler.setQuarantineConfig(WsQuarantineConfig.defaults().deadline(30, TimeUnit.MILLISECONDS));
+      when(connectContext.header("Authorization")).thenReturn(null);
+
+      handler.handleConnect(connectContext);
+      assertThat(handler.clientsQuarantined).contains(connectContext);
+
+      verify(session, timeout(2000)).close(eq(1008), anyString());
+      assertThat(handler.clientsQuarantined).isEmpty();
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testPromotedClientOutlivesQuarantineDeadline() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-quarantine", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      handler.setTimer(wheel);
+      handler.setQuarantineConfig(WsQuarantineConfig.defaults().deadline(30, TimeUnit.MILLISECONDS));
+      when(connectContext.header("Authorization")).thenReturn(null);
+      when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-quarantine");
+      when(messageContext.message()).thenReturn("Bearer valid-token");
+
+      handler.handleConnect(connectContext);
+      handler.handleMessage(messageContext);
+      Thread.sleep(100);
+
+      assertThat(handler.clientsConnected).contains(connectContext);
+      verify(session, never()).close(anyInt(), anyString());
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testQuarantineIsUnlimitedWithoutConfig() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-quarantine", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      WebSocketPolicy policy = mock(WebSocketPolicy.class);
+      when(session.getPolicy()).thenReturn(policy);
+      handler.setTimer(wheel);
+      when(connectContext.header("Authorization")).thenReturn(null);
+
+      handler.handleConnect(connectContext);
+      Thread.sleep(100);
+
+      assertThat(handler.clientsQuarantined).contains(connectContext);
+      verify(session, never()).close(anyInt(), anyString());
+      verify(policy, never()).setMaxTextMessageSize(anyInt());
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testQuarantineCapRejectsFurtherClients() throws Exception {
+    handler.setQuarantineConfig(WsQuarantineConfig.defaults().maxSessions(1));
+    when(connectContext.header("Authorization")).thenReturn(null);
+    handler.handleConnect(connectContext);
+
+    WsConnectContext second = mock(WsConnectContext.class);
+    Session secondSession = mock(Session.class);
+    setCtxSession(second, secondSession);
+    handler.handleConnect(second);
+
+    assertThat(handler.clientsQuarantined).containsExactly(connectContext);
+    verify(secondSession).close(eq(1013), anyString());
+  }
+
+  @Test
+  void testQuarantineCapHoldsUnderConcurrentConnects() throws Exception {
+    int threads = 8;
+    handler.setQuarantineConfig(WsQuarantineConfig.defaults().maxSessions(3));
+    Session[] sessions = new Session[threads];
+    WsConnectContext[] contexts = new WsConnectContext[threads];
+    for (int i = 0; i < threads; i++) {
+      sessions[i] = mock(Session.class);
+      contexts[i] = mock(WsConnectContext.class);
+      setCtxSession(contexts[i], sessions[i]);
+    }
+    CyclicBarrier start = new CyclicBarrier(threads);
+    List<Thread> workers = new ArrayList<>();
+    for (WsConnectContext ctx : contexts) {
+      Thread t = new Thread(() -> {
+        try {
+          start.await();
+          handler.handleConnect(ctx);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      workers.add(t);
+      t.start();
+    }
+    for (Thread t : workers)
+      t.join();
+
+    assertThat(handler.clientsQuarantined).hasSize(3);
+    assertThat(handler.clients.size(WsClient.State.QUARANTINED)).isEqualTo(3);
+    int rejected = 0;
+    for (int i = 0; i < threads; i++)
+      if (!handler.clientsQuarantined.contains(contexts[i])) {
+        verify(sessions[i]).close(eq(1013), anyString());
+        rejected++;
+      }
+    assertThat(rejected).isEqualTo(threads - 3);
+  }
+
+  @Test
+  void testQuarantineLimitsMessageSize() throws Exception {
+    WebSocketPolicy policy = mock(WebSocketPolicy.class);
+    when(policy.getMaxTextMessageSize()).thenReturn(65536);
+    when(policy.getMaxBinaryMessageSize()).thenReturn(65536);
+    when(session.getPolicy()).thenReturn(policy);
+    handler.setQuarantineConfig(WsQuarantineConfig.defaults().maxMessageSize(64));
+    when(connectContext.header("Authorization")).thenReturn(null);
+
+    handler.handleConnect(connectContext);
+    verify(policy).setMaxTextMessageSize(64);
+    verify(policy).setMaxBinaryMessageSize(64);
+
+    char[] padding = new char[100];
+    Arrays.fill(padding, 'x');
+    when(messageContext.message()).thenReturn("Bearer " + new String(padding));
+    handler.handleMessage(messageContext);
+
+    verify(tokenManager, never()).checkAccess(anyString());
+    verify(session).close(1000, "(test-handler) Unauthorized access from quarantined client");
+    assertThat(handler.clientsQuarantined).isEmpty();
+  }
+
+  @Test
+  void testPromotionRestoresMessageSizeLimits() throws Exception {
+    WebSocketPolicy policy = mock(WebSocketPolicy.class);
+    when(policy.getMaxTextMessageSize()).thenReturn(65536);
+    when(policy.getMaxBinaryMessageSize()).thenReturn(32768);
+    when(session.getPolicy()).thenReturn(policy);
+    handler.setQuarantineConfig(WsQuarantineConfig.defaults());
+    when(connectContext.header("Authorization")).thenReturn(null);
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-quarantine");
+    when(messageContext.message()).thenReturn("Bearer valid-token");
+
+    handler.handleConnect(connectContext);
+    handler.handleMessage(messageContext);
+
+    verify(policy).setMaxTextMessageSize(65536);
+    verify(policy).setMaxBinaryMessageSize(32768);
+  }
+
+  @Test
+  void testInboundLimitDropsMessagesBeyondRate() throws Exception {
+    handler.setInboundLimitConfig(WsInboundLimitConfig.defaults().messageRate(0.001, 2));
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-flood");
+    handler.handleConnect(connectContext);
+    when(messageContext.message()).thenReturn("flood");
+
+    for (int i = 0; i < 5; i++)
+      handler.handleMessage(messageContext);
+
+    assertThat(((TestWsOauthHandler) handler).messageCount).isEqualTo(2);
+    verify(session, never()).close(anyInt(), anyString());
+  }
+
+  @Test
+  void testInboundLimitClosesFloodingClient() throws Exception {
+    handler.setInboundLimitConfig(WsInboundLimitConfig.defaults()
+        .byteRate(0.001, 8)
+        .action(WsInboundLimitConfig.Action.CLOSE));
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-flood");
+    handler.handleConnect(connectContext);
+    when(messageContext.message()).thenReturn("12345678");
+
+    handler.handleMessage(messageContext);
+    handler.handleMessage(messageContext);
+
+    assertThat(((TestWsOauthHandler) handler).messageCount).isEqualTo(1);
+    verify(session).close(1008, "(test-handler) Rate limit exceeded");
+    assertThat(handler.clientsConnected).isEmpty();
+  }
+
+  @Test
+  void testInboundLimitSuspendsReadsUntilBucketRefilled() throws Exception {
+    WsTimerWheel wheel = new WsTimerWheel("test-inbound", 5, TimeUnit.MILLISECONDS, 16);
+    try {
+      handler.setTimer(wheel);
+      handler.setInboundLimitConfig(WsInboundLimitConfig.defaults()
+          .messageRate(20, 1)
+          .action(WsInboundLimitConfig.Action.SUSPEND));
+      org.eclipse.jetty.websocket.api.SuspendToken token = mock(org.eclipse.jetty.websocket.api.SuspendToken.class);
+      when(session.suspend()).thenReturn(token);
+      when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+      when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-flood");
+      handler.handleConnect(connectContext);
+      when(messageContext.message()).thenReturn("flood");
+
+      handler.handleMessage(messageContext);
+      handler.handleMessage(messageContext);
+      handler.handleMessage(messageContext);
+
+      assertThat(((TestWsOauthHandler) handler).messageCount).isEqualTo(3);
+      verify(session, org.mockito.Mockito.times(1)).suspend();
+      verify(token, timeout(2000)).resume();
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  void testDrainingHandlerTurnsAwayNewClients() throws Exception {
+    when(session.isOpen()).thenReturn(true);
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant-drain");
+    handler.handleConnect(connectContext);
+    assertThat(handler.getSessions()).containsExactly(session);
+
+    handler.drain(WsDrainConfig.defaults().reconnectJitter(0, TimeUnit.SECONDS));
+    WsConnectContext late = mock(WsConnectContext.class);
+    Session lateSession = mock(Session.class);
+    setCtxSession(late, lateSession);
+    handler.handleConnect(late);
+
+    verify(lateSession).close(1001, "(test-handler) Server shutting down; reconnect-after=0");
+    verify(tokenManager, org.mockito.Mockito.times(1)).checkAccess(anyString());
+    assertThat(handler.getSessions()).containsExactly(session);
+    assertThat(handler.getQueuedMessages()).isZero();
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline)
+        throw new AssertionError("Condition not met within 5 seconds.");
+      Thread.sleep(5);
+    }
+  }
+
+  private void completeWritesImmediately() {
+    doAnswer(invocation -> {
+      ((WriteCallback) invocation.getArgument(1)).writeSuccess();
+      return null;
+    }).when(remoteEndpoint).sendString(anyString(), any(WriteCallback.class));
+  }
+
+  @Test
+  void testCodecDecodesEachFrameOnce() throws Exception {
+    java.util.concurrent.atomic.AtomicInteger decodes = new java.util.concurrent.atomic.AtomicInteger();
+    java.util.List<Object> seen = new java.util.ArrayList<>();
+    WsOauthHandlerBase h = new WsOauthHandlerBase("codec") {
+      @Override
+      public void onMsg(WsMessageContext ctx) throws Exception {
+        seen.add(decoded(ctx));
+        seen.add(decoded(ctx));
+      }
+    };
+    h.setTokenHandler(tokenManager);
+    WsJsonCodec<Object> json = WsJsonCodec.tree();
+    h.setCodec(new WsCodec<Object>() {
+      @Override
+      public Object decode(String text) {
+        decodes.incrementAndGet();
+        return json.decode(text);
+      }
+
+      @Override
+      public WsPreparedMessage encode(Object message) {
+        return json.encode(message);
+      }
+    });
+    when(connectContext.header("Authorization")).thenReturn("Bearer valid-token");
+    when(tokenManager.checkAccess("Bearer valid-token")).thenReturn("tenant");
+    h.handleConnect(connectContext);
+
+    when(messageContext.message()).thenReturn("{\"a\":1}");
+    h.handleMessage(messageContext);
+    assertThat(decodes.get()).isEqualTo(1);
+    assertThat(seen.get(0)).isSameAs(seen.get(1));
+
+    WsMessageContext next = mock(WsMessageContext.class);
+    setCtxSession(next, session);
+    when(next.message()).thenReturn("{\"a\":2}");
+    h.handleMessage(next);
+    assertThat(decodes.get()).isEqualTo(2);
+    assertThat(seen.get(2)).isEqualTo(java.util.Map.of("a", 2));
+    assertThat(h.encode(seen.get(2)).getText()).isEqualTo("{\"a\":2}");
+  }
+
   // ---- helper: set public final ctx.session field ----
 
-  private static void setCtxSession(Object ctx, Session s) {
+  static void setCtxSession(Object ctx, Session s) {
     // Try reflection first
     try {
       Field f = ctx.getClass().getField("session"); // public field inherited from ctx class
@@ -312,8 +1016,8 @@ class WsOauthHandlerBaseTest {
 
   // ---- test impl ----
   private static class TestWsOauthHandler extends WsOauthHandlerBase {
-    public int messageCount = 0;
-    public int binaryMessageCount = 0;
+    public volatile int messageCount = 0;
+    public volatile int binaryMessageCount = 0;
 
     public TestWsOauthHandler(String name) { super(name); }
 
@@ -0,0 +1,289 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import info.unterrainer.websocketserver.WsOutboundQueue.Result;
+import info.unterrainer.websocketserver.WsOutboundQueueConfig.Overflow;
+
+class WsOutboundQueueTest {
+
+	private Session session;
+	private RemoteEndpoint remote;
+	private Deque<WriteCallback> writes;
+
+	@BeforeEach
+	void setUp() {
+		session = mock(Session.class);
+		remote = mock(RemoteEndpoint.class);
+		writes = new ArrayDeque<>();
+		when(session.getRemote()).thenReturn(remote);
+		doAnswer(invocation -> writes.add(invocation.getArgument(1))).when(remote)
+				.sendString(anyString(), any(WriteCallback.class));
+		doAnswer(invocation -> writes.add(invocation.getArgument(1))).when(remote)
+				.sendBytes(any(ByteBuffer.class), any(WriteCallback.class));
+	}
+
+	@Test
+	void testDropNewestKeepsQueuedMessages() {
+		WsOutboundQueue queue = new WsOutboundQueue(session,
+				WsOutboundQueueConfig.defaults().maxMessages(2).overflow(Overflow.DROP_NEWEST));
+
+		assertThat(queue.offer(WsPreparedMessage.text("a"), null)).isEqualTo(Result.ENQUEUED);
+		assertThat(queue.offer(WsPreparedMessage.text("b"), null)).isEqualTo(Result.ENQUEUED);
+		assertThat(queue.offer(WsPreparedMessage.text("c"), null)).isEqualTo(Result.DROPPED);
+
+		assertThat(queue.depth()).isEqualTo(2);
+		completeWrite();
+		verify(remote).sendString(eq("b"), any(WriteCallback.class));
+		verify(remote, never()).sendString(eq("c"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testDropOldestNeverDropsMessageInFlight() {
+		WsOutboundQueue queue = new WsOutboundQueue(session,
+				WsOutboundQueueConfig.defaults().maxMessages(2).overflow(Overflow.DROP_OLDEST));
+		List<String> failed = new ArrayList<>();
+
+		queue.offer(WsPreparedMessage.text("a"), null);
+		queue.offer(WsPreparedMessage.text("b"), recordingFailures(failed, "b"));
+		assertThat(queue.offer(WsPreparedMessage.text("c"), null)).isEqualTo(Result.ENQUEUED);
+
+		assertThat(failed).containsExactly("b");
+		completeWrite();
+		verify(remote).sendString(eq("a"), any(WriteCallback.class));
+		verify(remote).sendString(eq("c"), any(WriteCallback.class));
+		verify(remote, never()).sendString(eq("b"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testByteLimitDisconnectsSlowConsumer() {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults()
+				.maxBytes(4)
+				.overflow(Overflow.DISCONNECT)
+				.disconnectWith(4000, "too slow"));
+
+		assertThat(queue.offer(WsPreparedMessage.text("abc"), null)).isEqualTo(Result.ENQUEUED);
+		assertThat(queue.offer(WsPreparedMessage.text("de"), null)).isEqualTo(Result.DISCONNECTED);
+
+		verify(session).close(4000, "too slow");
+		assertThat(queue.depth()).isEqualTo(1);
+		assertThat(queue.offer(WsPreparedMessage.text("f"), null)).isEqualTo(Result.DROPPED);
+		completeWrite();
+		assertThat(queue.depth()).isZero();
+	}
+
+	@Test
+	void testCloseLeavesMessageInFlightToJetty() {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+		List<String> delivered = new ArrayList<>();
+		List<String> failed = new ArrayList<>();
+
+		queue.offer(WsPreparedMessage.text("a"), recording(delivered, failed, "a"));
+		queue.offer(WsPreparedMessage.text("b"), recording(delivered, failed, "b"));
+		queue.close();
+
+		assertThat(failed).containsExactly("b");
+		assertThat(delivered).isEmpty();
+		completeWrite();
+		assertThat(delivered).containsExactly("a");
+		assertThat(failed).containsExactly("b");
+		assertThat(queue.depth()).isZero();
+		assertThat(queue.bytes()).isZero();
+		verify(remote, never()).sendString(eq("b"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testOnlyOneWriteIsInFlight() {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+
+		queue.offer(WsPreparedMessage.text("a"), null);
+		queue.offer(WsPreparedMessage.text("b"), null);
+
+		verify(remote).sendString(anyString(), any(WriteCallback.class));
+		assertThat(queue.depth()).isEqualTo(2);
+		assertThat(queue.bytes()).isEqualTo(2);
+
+		completeWrite();
+		completeWrite();
+
+		assertThat(queue.depth()).isZero();
+		assertThat(queue.bytes()).isZero();
+	}
+
+	@Test
+	void testMessagesQueuedBehindWriteAreSentInOneEnvelope() {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+		queue.batch(WsBatchConfig.defaults().maxDelay(0, TimeUnit.MILLISECONDS).envelope(WsBatchEnvelope.JSON_ARRAY),
+				null);
+		List<String> delivered = new ArrayList<>();
+
+		queue.offer(WsPreparedMessage.text("1"), null);
+		queue.offer(WsPreparedMessage.text("{\"a\":2}"), recordingSuccess(delivered, "2"));
+		queue.offer(WsPreparedMessage.text("3"), recordingSuccess(delivered, "3"));
+		verify(remote).sendString(eq("[1]"), any(WriteCallback.class));
+		completeWrite();
+
+		ArgumentCaptor<WriteCallback> callback = ArgumentCaptor.forClass(WriteCallback.class);
+		verify(remote).sendString(eq("[{\"a\":2},3]"), callback.capture());
+		assertThat(queue.depth()).isEqualTo(2);
+		callback.getValue().writeSuccess();
+		assertThat(delivered).containsExactly("2", "3");
+		assertThat(queue.depth()).isZero();
+		assertThat(queue.bytes()).isZero();
+	}
+
+	@Test
+	void testFirstMessageWaitsForDelay() {
+		WsTimerWheel timer = new WsTimerWheel("test-flush", 1, TimeUnit.MILLISECONDS, 64);
+		try {
+			WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+			queue.batch(WsBatchConfig.defaults()
+					.maxDelay(50, TimeUnit.MILLISECONDS)
+					.envelope(WsBatchEnvelope.JSON_ARRAY), timer);
+
+			queue.offer(WsPreparedMessage.text("1"), null);
+			queue.offer(WsPreparedMessage.text("2"), null);
+
+			verify(remote, never()).sendString(anyString(), any(WriteCallback.class));
+			verify(remote, timeout(2000)).sendString(eq("[1,2]"), any(WriteCallback.class));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	void testByteBudgetFlushesBeforeDelay() {
+		WsTimerWheel timer = new WsTimerWheel("test-flush", 1, TimeUnit.MILLISECONDS, 64);
+		try {
+			WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+			queue.batch(WsBatchConfig.defaults()
+					.maxDelay(1, TimeUnit.HOURS)
+					.maxBytes(2)
+					.envelope(WsBatchEnvelope.JSON_ARRAY), timer);
+
+			queue.offer(WsPreparedMessage.text("a"), null);
+			queue.offer(WsPreparedMessage.text("b"), null);
+
+			verify(remote).sendString(eq("[a,b]"), any(WriteCallback.class));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	void testEnvelopeWrapsSingleMessagesButNotBinaryOnes() {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+		queue.batch(WsBatchConfig.defaults().maxDelay(0, TimeUnit.MILLISECONDS).envelope(WsBatchEnvelope.JSON_ARRAY),
+				null);
+
+		queue.offer(WsPreparedMessage.text("[1,2]"), null);
+		verify(remote).sendString(eq("[[1,2]]"), any(WriteCallback.class));
+		queue.offer(WsPreparedMessage.binary(ByteBuffer.wrap(new byte[] { 7 })), null);
+		queue.offer(WsPreparedMessage.text("3"), null);
+		completeWrite();
+
+		verify(remote).sendBytes(eq(ByteBuffer.wrap(new byte[] { 7 })), any(WriteCallback.class));
+		completeWrite();
+		verify(remote).sendString(eq("[3]"), any(WriteCallback.class));
+	}
+
+	@Test
+	void testFailingFrameOfGatheredWriteFailsOnlyTheFramesNotSent() throws Exception {
+		WsOutboundQueue queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+		queue.batch(WsBatchConfig.defaults().maxDelay(0, TimeUnit.MILLISECONDS), null);
+		doThrow(new IllegalStateException("broken")).when(remote).sendString(eq("c"), any(WriteCallback.class));
+		List<String> delivered = new ArrayList<>();
+		List<String> failed = new ArrayList<>();
+
+		queue.offer(WsPreparedMessage.text("a"), null);
+		for (String name : new String[] { "b", "c", "d" })
+			queue.offer(WsPreparedMessage.text(name), recording(delivered, failed, name));
+		completeWrite();
+
+		assertThat(failed).containsExactly("c", "d");
+		assertThat(delivered).isEmpty();
+		assertThat(queue.depth()).isEqualTo(1);
+		verify(remote).flush();
+
+		completeWrite();
+		assertThat(delivered).containsExactly("b");
+		assertThat(failed).containsExactly("c", "d");
+		assertThat(queue.depth()).isZero();
+		assertThat(queue.bytes()).isZero();
+		assertThat(writes).isEmpty();
+
+		queue.offer(WsPreparedMessage.text("e"), null);
+		verify(remote).sendString(eq("e"), any(WriteCallback.class));
+	}
+
+	/**
+	 * Completes the oldest write handed to the remote endpoint.
+	 */
+	private void completeWrite() {
+		writes.removeFirst().writeSuccess();
+	}
+
+	private static WriteCallback recording(List<String> delivered, List<String> failed, String name) {
+		return new WriteCallback() {
+			@Override
+			public void writeFailed(Throwable x) {
+				failed.add(name);
+			}
+
+			@Override
+			public void writeSuccess() {
+				delivered.add(name);
+			}
+		};
+	}
+
+	private static WriteCallback recordingSuccess(List<String> delivered, String name) {
+		return new WriteCallback() {
+			@Override
+			public void writeFailed(Throwable x) {
+			}
+
+			@Override
+			public void writeSuccess() {
+				delivered.add(name);
+			}
+		};
+	}
+
+	private static WriteCallback recordingFailures(List<String> failed, String name) {
+		return new WriteCallback() {
+			@Override
+			public void writeFailed(Throwable x) {
+				failed.add(name);
+			}
+
+			@Override
+			public void writeSuccess() {
+			}
+		};
+	}
+}
@@ -0,0 +1,50 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class WsPerformanceConfigTest {
+
+	@Test
+	void testDefaultsAreJettyDefaults() {
+		WsPerformanceConfig config = WsPerformanceConfig.defaults();
+
+		assertThat(config.getMinThreads()).isEqualTo(8);
+		assertThat(config.getMaxThreads()).isEqualTo(200);
+		assertThat(config.isVirtualThreads()).isFalse();
+		assertThat(config.getAcceptors()).isEqualTo(-1);
+		assertThat(config.getSelectors()).isEqualTo(-1);
+		assertThat(config.getIdleTimeoutMillis()).isEqualTo(300_000);
+		assertThat(config.getMaxTextMessageSize()).isEqualTo(65_536);
+		assertThat(config.getInputBufferSize()).isEqualTo(4_096);
+	}
+
+	@Test
+	void testInvalidValuesAreRejected() {
+		WsPerformanceConfig config = WsPerformanceConfig.defaults();
+
+		assertThatThrownBy(() -> config.threads(0, 10)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> config.threads(10, 5)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> config.selectors(0)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> config.acceptors(-2)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> config.idleTimeout(0, TimeUnit.SECONDS)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> config.maxBinaryMessageSize(0)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void testVirtualThreadPoolRunsTasks() throws Exception {
+		WsVirtualThreadPool pool = new WsVirtualThreadPool("test");
+		java.util.concurrent.CountDownLatch ran = new java.util.concurrent.CountDownLatch(1);
+		pool.execute(() -> {
+			if (Thread.currentThread().isVirtual())
+				ran.countDown();
+		});
+
+		assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(pool.isLowOnThreads()).isFalse();
+	}
+}
@@ -0,0 +1,70 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class WsRateLimiterTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void testBurstThenRefillAtRate() {
+		WsRateLimiter limiter = new WsRateLimiter(10, 3);
+		long now = 1_000 * SECOND;
+
+		assertThat(limiter.tryAcquire(1, now)).isTrue();
+		assertThat(limiter.tryAcquire(1, now)).isTrue();
+		assertThat(limiter.tryAcquire(1, now)).isTrue();
+		assertThat(limiter.tryAcquire(1, now)).isFalse();
+		assertThat(limiter.nanosUntilAvailable(now)).isEqualTo(SECOND / 10);
+
+		assertThat(limiter.tryAcquire(1, now + SECOND / 10)).isTrue();
+		assertThat(limiter.tryAcquire(1, now + SECOND / 10)).isFalse();
+	}
+
+	@Test
+	void testRejectedAcquireTakesNothing() {
+		WsRateLimiter limiter = new WsRateLimiter(1, 4);
+		long now = 5 * SECOND;
+
+		assertThat(limiter.tryAcquire(5, now)).isFalse();
+		assertThat(limiter.tryAcquire(4, now)).isTrue();
+		assertThat(limiter.isIdle(now)).isFalse();
+		assertThat(limiter.isIdle(now + 4 * SECOND)).isTrue();
+	}
+
+	@Test
+	void testForcedAcquireRunsIntoDebt() {
+		WsRateLimiter limiter = new WsRateLimiter(10, 1);
+		long now = 1_000 * SECOND;
+
+		assertThat(limiter.acquire(1, now)).isTrue();
+		assertThat(limiter.acquire(1, now)).isFalse();
+		assertThat(limiter.acquire(1, now)).isFalse();
+		assertThat(limiter.nanosUntilAvailable(now)).isEqualTo(3 * SECOND / 10);
+
+		assertThat(limiter.tryAcquire(1, now + SECOND / 4)).isFalse();
+		assertThat(limiter.tryAcquire(1, now + 3 * SECOND / 10)).isTrue();
+	}
+
+	@Test
+	void testReleaseGivesTokensBack() {
+		WsRateLimiter limiter = new WsRateLimiter(10, 2);
+		long now = 1_000 * SECOND;
+
+		assertThat(limiter.tryAcquire(2, now)).isTrue();
+		limiter.release(1);
+		assertThat(limiter.tryAcquire(1, now)).isTrue();
+		assertThat(limiter.tryAcquire(1, now)).isFalse();
+	}
+
+	@Test
+	void testInvalidSettingsAreRejected() {
+		assertThatThrownBy(() -> new WsRateLimiter(0, 1)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new WsRateLimiter(1, 0)).isInstanceOf(IllegalArgumentException.class);
+	}
+}
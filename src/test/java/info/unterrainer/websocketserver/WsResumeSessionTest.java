@@ -0,0 +1,114 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import info.unterrainer.websocketserver.WsClient.State;
+import io.javalin.websocket.WsConnectContext;
+
+class WsResumeSessionTest {
+
+	private static final String CONTROL = "%s|%d|%b";
+
+	private final List<String> sent = new ArrayList<>();
+	private WsClient client;
+	private WsOutboundQueue queue;
+
+	@BeforeEach
+	void setUp() {
+		Session session = mock(Session.class);
+		RemoteEndpoint remote = mock(RemoteEndpoint.class);
+		when(session.isOpen()).thenReturn(true);
+		when(session.getRemote()).thenReturn(remote);
+		doAnswer(invocation -> {
+			sent.add(invocation.getArgument(0));
+			((WriteCallback) invocation.getArgument(1)).writeSuccess();
+			return null;
+		}).when(remote).sendString(anyString(), any(WriteCallback.class));
+		WsConnectContext ctx = mock(WsConnectContext.class);
+		WsOauthHandlerBaseTest.setCtxSession(ctx, session);
+		client = new WsClient(ctx, State.PENDING);
+		queue = new WsOutboundQueue(session, WsOutboundQueueConfig.defaults());
+	}
+
+	@Test
+	void testDetachedSessionBuffersAndReplaysMissedSuffix() {
+		WsResumeSession resume = new WsResumeSession("token", "tenant", WsResumeConfig.defaults());
+		assertThat(resume.attach(client, queue, 0, false, CONTROL)).isZero();
+		resume.offer(WsPreparedMessage.text("1"), 0, null);
+		resume.offer(WsPreparedMessage.text("2"), 0, null);
+		assertThat(resume.detach(client, Collections.singleton("sensors/*"))).isTrue();
+
+		resume.offer(WsPreparedMessage.text("3"), 0, null);
+		assertThat(sent).containsExactly("token|0|false", "1", "2");
+
+		sent.clear();
+		assertThat(resume.attach(client, queue, 1, true, CONTROL)).isEqualTo(2);
+		assertThat(sent).containsExactly("token|1|true", "2", "3");
+		assertThat(resume.seq()).isEqualTo(3);
+		assertThat(resume.isSubscribed("sensors/1")).isTrue();
+		assertThat(resume.isSubscribed("alarms")).isFalse();
+	}
+
+	@Test
+	void testEvictedMessagesCantBeResumed() {
+		WsResumeSession resume = new WsResumeSession("token", "tenant",
+				WsResumeConfig.defaults().maxMessages(2));
+		for (int i = 1; i <= 5; i++)
+			resume.offer(WsPreparedMessage.text(String.valueOf(i)), 0, null);
+
+		assertThat(resume.attach(client, queue, 2, true, CONTROL)).isEqualTo(-1);
+		assertThat(resume.attach(client, queue, 6, true, CONTROL)).isEqualTo(-1);
+		assertThat(sent).isEmpty();
+		assertThat(resume.attach(client, queue, 3, true, CONTROL)).isEqualTo(2);
+		assertThat(sent).containsExactly("token|3|true", "4", "5");
+	}
+
+	@Test
+	void testByteBudgetEvictsOldestButKeepsLatest() {
+		WsResumeSession resume = new WsResumeSession("token", "tenant", WsResumeConfig.defaults().maxBytes(4));
+		resume.offer(WsPreparedMessage.text("ab"), 0, null);
+		resume.offer(WsPreparedMessage.text("cd"), 0, null);
+		resume.offer(WsPreparedMessage.text("toolong"), 0, null);
+
+		assertThat(resume.attach(client, queue, 1, true, CONTROL)).isEqualTo(-1);
+		assertThat(resume.attach(client, queue, 2, true, CONTROL)).isEqualTo(1);
+		assertThat(sent).containsExactly("token|2|true", "toolong");
+	}
+
+	@Test
+	void testSameBroadcastIsTakenOnce() {
+		WsResumeSession resume = new WsResumeSession("token", "tenant", WsResumeConfig.defaults());
+		WsPreparedMessage message = WsPreparedMessage.text("b");
+
+		resume.offer(message, 7, null);
+		resume.offer(message, 7, null);
+		resume.offer(message, 8, null);
+
+		assertThat(resume.seq()).isEqualTo(2);
+	}
+
+	@Test
+	void testDetachOfReplacedClientIsIgnored() {
+		WsResumeSession resume = new WsResumeSession("token", "tenant", WsResumeConfig.defaults());
+		resume.attach(client, queue, 0, false, CONTROL);
+
+		assertThat(resume.detach(mock(WsClient.class), Collections.emptySet())).isFalse();
+		assertThat(resume.client()).isSameAs(client);
+		assertThat(resume.detachedFor(System.nanoTime())).isEqualTo(-1);
+	}
+}
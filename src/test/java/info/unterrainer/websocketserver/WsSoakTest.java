@@ -0,0 +1,117 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Churns connections for a long time (default 65 minutes) and fails, if the
+ * heap per connection grows from cycle to cycle or anything is left in the
+ * handler's registries once all clients are gone. Every cycle mixes clients
+ * authenticating during the handshake, clients authenticating from quarantine
+ * and clients being thrown out of quarantine. The generators share the JVM
+ * with the server, so the heap measured is that of both ends together.
+ * <p>
+ * Run with {@code mvn -Psoak test}; tune using {@code -Dsoak.minutes},
+ * {@code -Dsoak.connections}, {@code -Dsoak.rate} and
+ * {@code -Dsoak.tolerance} (allowed relative growth, default 0.15).
+ */
+@Slf4j
+@Tag("soak")
+class WsSoakTest {
+
+	private final long minutes = Long.getLong("soak.minutes", 65);
+	private final int connections = Integer.getInteger("soak.connections", 2000);
+	private final int rate = Integer.getInteger("soak.rate", 2000);
+	private final double tolerance = Double.parseDouble(System.getProperty("soak.tolerance", "0.15"));
+	private final int warmupCycles = 3;
+	private final int port = 18083;
+
+	@Test
+	void heapPerConnectionStaysFlat() throws Exception {
+		WebsocketServer server = new WebsocketServer("soak-server");
+		WsLoadTest.EchoHandler handler = new WsLoadTest.EchoHandler("soak-echo");
+		WsLoadTest.register(server, "/echo", handler);
+		server.start(port);
+		URI uri = new URI("ws://localhost:" + port + "/echo");
+
+		List<Long> perConnection = new ArrayList<>();
+		List<Long> residual = new ArrayList<>();
+		long end = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes);
+		try (WsLoadGenerator authorized = new WsLoadGenerator(uri).authorization(WsLoadTest.VALID_TOKEN)
+				.connections(connections / 2)
+				.messagesPerSecond(rate / 2d);
+				WsLoadGenerator late = new WsLoadGenerator(uri).firstMessage(WsLoadTest.VALID_TOKEN)
+						.connections(connections / 4)
+						.messagesPerSecond(rate / 2d);
+				WsLoadGenerator rejected = new WsLoadGenerator(uri).firstMessage("not a token")
+						.connections(connections / 4)) {
+			long baseline = WsLoadGenerator.usedHeapAfterGc();
+			for (int cycle = 0; System.currentTimeMillis() < end; cycle++) {
+				rejected.connect(1, TimeUnit.MINUTES);
+				int open = authorized.connect(1, TimeUnit.MINUTES) + late.connect(1, TimeUnit.MINUTES);
+				Thread driver = new Thread(() -> drive(late));
+				driver.start();
+				drive(authorized);
+				driver.join();
+				long heap = WsLoadGenerator.usedHeapAfterGc();
+
+				authorized.disconnect(30, TimeUnit.SECONDS);
+				late.disconnect(30, TimeUnit.SECONDS);
+				rejected.disconnect(30, TimeUnit.SECONDS);
+				WsLoadTest.awaitEmpty(handler, 30_000);
+
+				long after = WsLoadGenerator.usedHeapAfterGc();
+				log.info("Soak cycle [{}]: [{}] open, "
+						+ "heap per connection (server and client in one JVM) [{}] bytes, residual [{}] bytes, {}", cycle,
+						open, (heap - after) / Math.max(1, open), after - baseline, authorized.report());
+				if (cycle >= warmupCycles) {
+					perConnection.add((heap - after) / Math.max(1, open));
+					residual.add(after - baseline);
+				}
+				authorized.resetStatistics();
+				late.resetStatistics();
+				rejected.resetStatistics();
+			}
+		} finally {
+			server.stop();
+		}
+
+		assertThat(perConnection).as("cycles after warm-up").hasSizeGreaterThanOrEqualTo(2);
+		assertGrowthWithin("heap per connection", perConnection, 0);
+		assertGrowthWithin("residual heap", residual, connections * 64L);
+	}
+
+	private void drive(WsLoadGenerator generator) {
+		try {
+			generator.drive(60, TimeUnit.SECONDS);
+			generator.awaitEchoes(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Compares the mean of the last third of the samples with the one of the
+	 * first third, so single collections with unlucky timing don't fail the run.
+	 */
+	private void assertGrowthWithin(String what, List<Long> samples, long slack) {
+		int third = Math.max(1, samples.size() / 3);
+		double first = samples.subList(0, third).stream().mapToLong(Long::longValue).average().orElse(0);
+		double last = samples.subList(samples.size() - third, samples.size())
+				.stream()
+				.mapToLong(Long::longValue)
+				.average()
+				.orElse(0);
+		assertThat(last).as(what + " grew from [%.0f] to [%.0f] bytes", first, last)
+				.isLessThanOrEqualTo(Math.max(first, 0) * (1 + tolerance) + slack);
+	}
+}
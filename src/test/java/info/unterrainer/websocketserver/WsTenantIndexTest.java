@@ -0,0 +1,83 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.jupiter.api.Test;
+
+class WsTenantIndexTest {
+
+	private final WsTenantIndex index = new WsTenantIndex();
+	private final Session s1 = mock(Session.class);
+	private final Session s2 = mock(Session.class);
+	private final Session s3 = mock(Session.class);
+
+	@Test
+	void testBothDirectionsAreMaintained() {
+		index.put(s1, "a");
+		index.put(s2, "a");
+		index.put(s3, "b");
+
+		assertThat(index.tenantOf(s1)).isEqualTo("a");
+		assertThat(index.tenantOf(s3)).isEqualTo("b");
+		assertThat(index.sessionsOf("a")).containsExactlyInAnyOrder(s1, s2);
+		assertThat(index.sessionsOf("b")).containsExactly(s3);
+		assertThat(index.sessionsOf("unknown")).isEmpty();
+	}
+
+	@Test
+	void testReassigningMovesSessionToNewTenant() {
+		index.put(s1, "a");
+		index.put(s1, "b");
+
+		assertThat(index.tenantOf(s1)).isEqualTo("b");
+		assertThat(index.sessionsOf("a")).isEmpty();
+		assertThat(index.tenants()).containsExactly("b");
+	}
+
+	@Test
+	void testRemoveCleansUpEmptyTenants() {
+		index.put(s1, "a");
+		index.put(s2, "a");
+
+		assertThat(index.remove(s1)).isEqualTo("a");
+		assertThat(index.sessionsOf("a")).containsExactly(s2);
+		assertThat(index.remove(s2)).isEqualTo("a");
+		assertThat(index.remove(s2)).isNull();
+		assertThat(index.tenants()).isEmpty();
+		assertThat(index.asMap()).isEmpty();
+	}
+
+	@Test
+	void testConcurrentChurnKeepsBothDirectionsInSync() throws Exception {
+		int threads = 4;
+		Session[] sessions = new Session[threads];
+		for (int i = 0; i < threads; i++)
+			sessions[i] = mock(Session.class);
+		java.util.concurrent.CyclicBarrier start = new java.util.concurrent.CyclicBarrier(threads);
+		java.util.List<Thread> workers = new java.util.ArrayList<>();
+		for (Session session : sessions) {
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+				} catch (Exception e) {
+					return;
+				}
+				for (int i = 0; i < 20_000; i++) {
+					index.put(session, "a");
+					index.remove(session);
+				}
+				index.put(session, "a");
+			});
+			workers.add(t);
+			t.start();
+		}
+		for (Thread t : workers)
+			t.join();
+
+		for (Session session : sessions)
+			assertThat(index.tenantOf(session)).isEqualTo("a");
+		assertThat(index.sessionsOf("a")).containsExactlyInAnyOrder(sessions);
+	}
+}
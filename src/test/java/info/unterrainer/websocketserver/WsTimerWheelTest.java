@@ -0,0 +1,68 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class WsTimerWheelTest {
+
+	private final WsTimerWheel wheel = new WsTimerWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+
+	@AfterEach
+	void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	void testTaskRunsAfterDelay() throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+
+		WsTimerWheel.Timeout timeout = wheel.schedule(latch::countDown, 30, TimeUnit.MILLISECONDS);
+
+		assertThat(latch.await(2, TimeUnit.SECONDS)).isTrue();
+		assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(30));
+		assertThat(timeout.isExpired()).isTrue();
+	}
+
+	@Test
+	void testDelaysLongerThanOneRevolutionWaitForTheirRound() throws Exception {
+		// 8 buckets * 5ms = 40ms per revolution
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+
+		wheel.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+
+		assertThat(latch.await(2, TimeUnit.SECONDS)).isTrue();
+		assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	@Test
+	void testCancelledTaskDoesNotRun() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch later = new CountDownLatch(1);
+
+		WsTimerWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+		assertThat(timeout.cancel()).isTrue();
+		wheel.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+
+		assertThat(later.await(2, TimeUnit.SECONDS)).isTrue();
+		assertThat(runs.get()).isZero();
+		assertThat(timeout.isCancelled()).isTrue();
+		assertThat(timeout.cancel()).isFalse();
+	}
+
+	@Test
+	void testSchedulingAfterStopFails() {
+		wheel.stop();
+
+		assertThatThrownBy(() -> wheel.schedule(() -> {
+		}, 1, TimeUnit.MILLISECONDS)).isInstanceOf(IllegalStateException.class);
+	}
+}
@@ -0,0 +1,81 @@
+package info.unterrainer.websocketserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Token-check paths against a local RS256 verifier standing in for Keycloak's
+ * public keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WsTokenCacheBenchmark {
+
+	private String token;
+	private WsTokenCache cache;
+	private WsTokenCache.Validator verifier;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keys = generator.generateKeyPair();
+
+		Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+		String header = enc.encodeToString("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+		String payload = enc.encodeToString(("{\"sub\":\"benchmark\",\"tenant\":\"tenant\",\"exp\":"
+				+ (System.currentTimeMillis() / 1000 + 3600) + "}").getBytes(StandardCharsets.UTF_8));
+		Signature signer = Signature.getInstance("SHA256withRSA");
+		signer.initSign(keys.getPrivate());
+		signer.update((header + "." + payload).getBytes(StandardCharsets.US_ASCII));
+		token = "Bearer " + header + "." + payload + "." + enc.encodeToString(signer.sign());
+
+		verifier = rs256Verifier(keys.getPublic());
+		cache = new WsTokenCache(10_000, 5, TimeUnit.MINUTES);
+		cache.checkAccess(token, verifier);
+	}
+
+	@Benchmark
+	public String verifyEveryTime() throws Exception {
+		return verifier.validate(token);
+	}
+
+	@Benchmark
+	public String cached() throws Exception {
+		return cache.checkAccess(token, verifier);
+	}
+
+	private static WsTokenCache.Validator rs256Verifier(PublicKey key) {
+		return token -> {
+			String jwt = token.substring("Bearer ".length());
+			int lastDot = jwt.lastIndexOf('.');
+			Signature verifier = Signature.getInstance("SHA256withRSA");
+			verifier.initVerify(key);
+			verifier.update(jwt.substring(0, lastDot).getBytes(StandardCharsets.US_ASCII));
+			if (!verifier.verify(Base64.getUrlDecoder().decode(jwt.substring(lastDot + 1))))
+				throw new SecurityException("Invalid signature.");
+			return "tenant";
+		};
+	}
+}
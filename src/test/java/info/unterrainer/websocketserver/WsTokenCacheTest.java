@@ -0,0 +1,118 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class WsTokenCacheTest {
+
+	private final AtomicInteger validations = new AtomicInteger();
+	private final WsTokenCache.Validator validator = token -> {
+		validations.incrementAndGet();
+		return "tenant";
+	};
+
+	@Test
+	void testValidTokenIsValidatedOnlyOnce() throws Exception {
+		WsTokenCache cache = new WsTokenCache(10, 5, TimeUnit.MINUTES);
+		String token = "Bearer " + jwt(System.currentTimeMillis() / 1000 + 3600);
+
+		assertThat(cache.checkAccess(token, validator)).isEqualTo("tenant");
+		assertThat(cache.checkAccess(token, validator)).isEqualTo("tenant");
+
+		assertThat(validations.get()).isEqualTo(1);
+		assertThat(cache.getHits()).isEqualTo(1);
+		assertThat(cache.getMisses()).isEqualTo(1);
+	}
+
+	@Test
+	void testTokensWithoutFutureExpiryAreNotCached() throws Exception {
+		WsTokenCache cache = new WsTokenCache(10, 5, TimeUnit.MINUTES);
+		String expired = jwt(System.currentTimeMillis() / 1000 - 10);
+
+		cache.checkAccess(expired, validator);
+		cache.checkAccess(expired, validator);
+		cache.checkAccess("Bearer not-a-jwt", validator);
+		cache.checkAccess("Bearer not-a-jwt", validator);
+
+		assertThat(validations.get()).isEqualTo(4);
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	void testFailedValidationIsNotCached() {
+		WsTokenCache cache = new WsTokenCache(10, 5, TimeUnit.MINUTES);
+		String token = jwt(System.currentTimeMillis() / 1000 + 3600);
+
+		assertThatThrownBy(() -> cache.checkAccess(token, t -> {
+			throw new IllegalArgumentException("invalid");
+		})).isInstanceOf(IllegalArgumentException.class);
+
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	void testCacheIsBounded() throws Exception {
+		WsTokenCache cache = new WsTokenCache(2, 5, TimeUnit.MINUTES);
+		long exp = System.currentTimeMillis() / 1000 + 3600;
+
+		cache.checkAccess(jwt(exp), validator);
+		cache.checkAccess(jwt(exp + 1), validator);
+		cache.checkAccess(jwt(exp + 2), validator);
+
+		assertThat(cache.size()).isEqualTo(2);
+		assertThat(cache.getEvictions()).isEqualTo(1);
+	}
+
+	@Test
+	void testFullCacheEvictsOnlyAFewEntriesPerMiss() throws Exception {
+		WsTokenCache cache = new WsTokenCache(100, 5, TimeUnit.MINUTES);
+		long exp = System.currentTimeMillis() / 1000 + 3600;
+		for (int i = 0; i < 100; i++)
+			cache.checkAccess(jwt(exp + i), validator);
+
+		for (int i = 100; i < 150; i++)
+			cache.checkAccess(jwt(exp + i), validator);
+
+		assertThat(cache.size()).isEqualTo(100);
+		assertThat(cache.getEvictions()).isEqualTo(50);
+	}
+
+	@Test
+	void testExpiryIsReadFromPayload() {
+		assertThat(WsTokenCache.expiresAtMillis(jwt(1700000000))).isEqualTo(1700000000000L);
+		assertThat(WsTokenCache.expiresAtMillis("Bearer abc")).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"exp\":1700000000.5}"))).isEqualTo(1700000000500L);
+	}
+
+	@Test
+	void testOnlyTopLevelNumericExpiryCounts() {
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"act\":{\"exp\":1700000000}}"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"note\":\"\\\"exp\\\": 1700000000\"}")))
+				.isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"exp\":\"1700000000\"}"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"exp\":-1}"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"exp\":1e300}"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("[1700000000]"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(jwtWithClaims("{\"exp\":"))).isEqualTo(-1);
+		assertThat(WsTokenCache.expiresAtMillis(
+				jwtWithClaims("{\"act\":{\"exp\":1},\"exp\":1700000000}"))).isEqualTo(1700000000000L);
+	}
+
+	private static String jwt(long exp) {
+		return jwtWithClaims("{\"sub\":\"x\",\"exp\": " + exp + "}");
+	}
+
+	private static String jwtWithClaims(String claims) {
+		Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+		String header = enc.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8));
+		String payload = enc.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+		return header + "." + payload + ".signature";
+	}
+}
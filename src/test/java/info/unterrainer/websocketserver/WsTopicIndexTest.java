@@ -0,0 +1,94 @@
+package info.unterrainer.websocketserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.jupiter.api.Test;
+
+class WsTopicIndexTest {
+
+	private final WsTopicIndex index = new WsTopicIndex();
+	private final Session s1 = mock(Session.class);
+	private final Session s2 = mock(Session.class);
+	private final Session s3 = mock(Session.class);
+
+	@Test
+	void testExactSubscriptions() {
+		assertThat(index.subscribe(s1, "sensors/1")).isTrue();
+		assertThat(index.subscribe(s1, "sensors/1")).isFalse();
+		index.subscribe(s2, "sensors/2");
+
+		assertThat(index.subscribersOf("sensors/1")).containsExactly(s1);
+		assertThat(index.subscribersOf("sensors/2")).containsExactly(s2);
+		assertThat(index.subscribersOf("sensors")).isEmpty();
+	}
+
+	@Test
+	void testPrefixSubscriptionsMatchEachSessionOnce() {
+		index.subscribe(s1, "sensors/*");
+		index.subscribe(s1, "sensors/1");
+		index.subscribe(s2, "*");
+		index.subscribe(s3, "sensors/1");
+
+		assertThat(index.subscribersOf("sensors/1")).containsExactlyInAnyOrder(s1, s2, s3);
+		assertThat(index.subscribersOf("sensors/2")).containsExactlyInAnyOrder(s1, s2);
+		assertThat(index.subscribersOf("alarms")).containsExactly(s2);
+	}
+
+	@Test
+	void testUnsubscribeAndRemoveCleanUp() {
+		index.subscribe(s1, "sensors/*");
+		index.subscribe(s1, "alarms");
+		index.subscribe(s2, "alarms");
+
+		assertThat(index.unsubscribe(s1, "alarms")).isTrue();
+		assertThat(index.unsubscribe(s1, "alarms")).isFalse();
+		assertThat(index.subscribersOf("alarms")).containsExactly(s2);
+		assertThat(index.subscriptionsOf(s1)).containsExactly("sensors/*");
+
+		assertThat(index.remove(s1)).isEqualTo(1);
+		assertThat(index.subscribersOf("sensors/1")).isEmpty();
+		assertThat(index.subscriptionsOf(s1)).isEmpty();
+		assertThat(index.size()).isEqualTo(1);
+	}
+
+	@Test
+	void testConcurrentChurnKeepsSubscribers() throws Exception {
+		int threads = 4;
+		Session[] exact = new Session[threads];
+		Session[] wildcard = new Session[threads];
+		java.util.concurrent.CyclicBarrier start = new java.util.concurrent.CyclicBarrier(threads * 2);
+		java.util.List<Thread> workers = new java.util.ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			exact[i] = mock(Session.class);
+			wildcard[i] = mock(Session.class);
+			workers.add(churn(start, exact[i], "sensors/1"));
+			workers.add(churn(start, wildcard[i], "sensors/*"));
+		}
+		for (Thread t : workers)
+			t.join();
+
+		java.util.List<Session> all = new java.util.ArrayList<>(java.util.Arrays.asList(exact));
+		all.addAll(java.util.Arrays.asList(wildcard));
+		assertThat(index.subscribersOf("sensors/1")).containsExactlyInAnyOrderElementsOf(all);
+		assertThat(index.subscribersOf("sensors/2")).containsExactlyInAnyOrder(wildcard);
+	}
+
+	private Thread churn(java.util.concurrent.CyclicBarrier start, Session session, String pattern) {
+		Thread t = new Thread(() -> {
+			try {
+				start.await();
+			} catch (Exception e) {
+				return;
+			}
+			for (int i = 0; i < 20_000; i++) {
+				index.subscribe(session, pattern);
+				index.unsubscribe(session, pattern);
+			}
+			index.subscribe(session, pattern);
+		});
+		t.start();
+		return t;
+	}
+}